@@ -3,6 +3,8 @@ package org.webbitserver.sitemesh;
 import org.sitemesh.DecoratorSelector;
 import org.sitemesh.builder.BaseSiteMeshBuilder;
 import org.sitemesh.config.PathMapper;
+import org.sitemesh.content.ContentProcessor;
+import org.sitemesh.content.tagrules.TagRuleBundle;
 import org.webbitserver.HttpControl;
 import org.webbitserver.HttpHandler;
 import org.webbitserver.HttpRequest;
@@ -10,13 +12,24 @@ import org.webbitserver.HttpResponse;
 import org.webbitserver.handler.AliasHandler;
 import org.webbitserver.handler.NotFoundHttpHandler;
 import org.webbitserver.handler.StringHttpHandler;
-import org.webbitserver.sitemesh.contentbuffer.BasicSelector;
+import org.webbitserver.sitemesh.contentbuffer.BufferLimits;
+import org.webbitserver.sitemesh.contentbuffer.ByteBufferPool;
 import org.webbitserver.sitemesh.contentbuffer.Selector;
+import org.webbitserver.sitemesh.contentbuffer.SelectorBuilder;
+import org.webbitserver.sitemesh.metrics.JmxSiteMeshMetrics;
+import org.webbitserver.sitemesh.metrics.SiteMeshMetrics;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Functionality for building a {@link SiteMeshHandler}.
@@ -35,12 +48,48 @@ public abstract class BaseSiteMeshHandlerBuilder<BUILDER extends BaseSiteMeshBui
 
     private Collection<String> mimeTypes;
 
-    private PathMapper<HttpHandler[]> decorators = new PathMapper<HttpHandler[]>();
-    private PathMapper<Boolean> excludesMapper = new PathMapper<Boolean>();
+    private Map<String, HttpHandler[]> decorators = new LinkedHashMap<String, HttpHandler[]>();
+    private Set<String> excludes = new LinkedHashSet<String>();
+    private int routeCacheSize = 1024;
+    private DecoratorRoutes routes;
     private Selector customSelector;
+    private SelectorBuilder selectorRules;
 
     private HttpHandler defaultHandler = new NotFoundHttpHandler();
 
+    private boolean decoratorCacheEnabled;
+    private long decoratorCacheTimeToLive;
+    private TimeUnit decoratorCacheTimeToLiveUnit = TimeUnit.MILLISECONDS;
+    private File decoratorCacheDirectory;
+    private DecoratorCache decoratorCache;
+    private long decoratorFetchTimeout = SiteMeshHandler.DEFAULT_DECORATOR_FETCH_TIMEOUT;
+
+    private ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    private int maxBufferSize = Integer.MAX_VALUE;
+    private long bufferBudget = Long.MAX_VALUE;
+    private BufferLimits bufferLimits;
+    private int outputChunkSize;
+    private boolean compression;
+    private boolean compiledDecorators;
+    private boolean streamingExtraction;
+    private boolean decoratorPrefetch;
+    // Set when the content processor or its tag rules are changed from the defaults. Deliberately
+    // not initialized: setupDefaults() is called by the superclass constructor.
+    private boolean customContentRules;
+    private Executor processingExecutor;
+
+    private DecoratedPageCache pageCache;
+    private ContentCache contentCache;
+    private boolean conditionalPassthrough;
+
+    private boolean warmUpEnabled;
+    private int warmUpDecorations;
+    private DecoratorWarmUp warmUp;
+
+    private FragmentSelector fragmentSelector;
+
+    private SiteMeshMetrics metrics = SiteMeshMetrics.NONE;
+
     public BUILDER setDefaultHandler(HttpHandler handler) {
         this.defaultHandler = handler;
         return self();
@@ -60,9 +109,72 @@ public abstract class BaseSiteMeshHandlerBuilder<BUILDER extends BaseSiteMeshBui
     @Override
     protected void setupDefaults() {
         super.setupDefaults();
+        customContentRules = false;
         setMimeTypes("text/html");
     }
 
+    // --------------------------------------------------------------
+    // Content processor setup.
+
+    @Override
+    public BUILDER addTagRuleBundle(TagRuleBundle tagRuleBundle) {
+        customContentRules = true;
+        return super.addTagRuleBundle(tagRuleBundle);
+    }
+
+    @Override
+    public BUILDER addTagRuleBundles(TagRuleBundle... tagRuleBundles) {
+        customContentRules = true;
+        return super.addTagRuleBundles(tagRuleBundles);
+    }
+
+    @Override
+    public BUILDER addTagRuleBundles(Iterable<TagRuleBundle> tagRuleBundles) {
+        customContentRules = true;
+        return super.addTagRuleBundles(tagRuleBundles);
+    }
+
+    @Override
+    public BUILDER clearTagRuleBundles() {
+        customContentRules = true;
+        return super.clearTagRuleBundles();
+    }
+
+    @Override
+    public BUILDER setTagRuleBundles(TagRuleBundle... tagRuleBundles) {
+        customContentRules = true;
+        return super.setTagRuleBundles(tagRuleBundles);
+    }
+
+    @Override
+    public BUILDER setTagRuleBundles(Iterable<TagRuleBundle> tagRuleBundles) {
+        customContentRules = true;
+        return super.setTagRuleBundles(tagRuleBundles);
+    }
+
+    @Override
+    public BUILDER setCustomContentProcessor(ContentProcessor contentProcessor) {
+        customContentRules = true;
+        return super.setCustomContentProcessor(contentProcessor);
+    }
+
+    /**
+     * Extract the title, head, body and meta tags of pages while they are being buffered, with a
+     * {@link ContentExtractor}, instead of parsing each page once it is complete. Pages with markup the
+     * extractor does not handle are parsed as usual.
+     *
+     * <p>The extractor only knows the default tag rules, so this is ignored if they have been changed
+     * (e.g. with {@link #addTagRuleBundle(TagRuleBundle)} or {@link #setCustomContentProcessor(ContentProcessor)}).</p>
+     */
+    public BUILDER enableStreamingExtraction() {
+        this.streamingExtraction = true;
+        return self();
+    }
+
+    public boolean isStreamingExtractionEnabled() {
+        return streamingExtraction && !customContentRules;
+    }
+
     // --------------------------------------------------------------
     // Selector setup.
 
@@ -70,10 +182,31 @@ public abstract class BaseSiteMeshHandlerBuilder<BUILDER extends BaseSiteMeshBui
      * Add a path to be excluded by SiteMesh.
      */
     public BUILDER addExcludedPath(String exclude) {
-        excludesMapper.put(exclude, true);
+        excludes.add(exclude);
+        routes = null;
+        return self();
+    }
+
+    /**
+     * Set how many request paths to remember the decorators and exclusions for. The default is 1024.
+     */
+    public BUILDER setRouteCacheSize(int routeCacheSize) {
+        this.routeCacheSize = routeCacheSize;
+        routes = null;
         return self();
     }
 
+    /**
+     * The decorator and exclude mappings, compiled. The same instance is returned until the
+     * mappings change.
+     */
+    public DecoratorRoutes getRoutes() {
+        if (routes == null) {
+            routes = new DecoratorRoutes(decorators, excludes, routeCacheSize);
+        }
+        return routes;
+    }
+
     // --------------------------------------------------------------
     // Selector setup.
 
@@ -111,6 +244,18 @@ public abstract class BaseSiteMeshHandlerBuilder<BUILDER extends BaseSiteMeshBui
         return self();
     }
 
+    /**
+     * Choose which responses are buffered with rules covering paths, methods, status codes and request
+     * headers, as well as MIME types. Paths added with {@link #addExcludedPath(String)} are still excluded.
+     * <p/>
+     * <p>Note: The rules replace any MIME types passed to {@link #setMimeTypes(String[])}, and are
+     * ignored if {@link #setCustomSelector(Selector)} is called.</p>
+     */
+    public BUILDER setSelectorRules(SelectorBuilder selectorRules) {
+        this.selectorRules = selectorRules;
+        return self();
+    }
+
     /**
      * Get configured {@link Selector}.
      */
@@ -118,27 +263,450 @@ public abstract class BaseSiteMeshHandlerBuilder<BUILDER extends BaseSiteMeshBui
         if (customSelector != null) {
             return customSelector;
         } else {
-            String[] mimeTypesArray = mimeTypes.toArray(new String[mimeTypes.size()]);
-            return new BasicSelector(mimeTypesArray) {
-                @Override
+            final Selector rules = selectorRules != null ? selectorRules.create()
+                    : new SelectorBuilder().mimeTypes(mimeTypes.toArray(new String[mimeTypes.size()])).create();
+            final DecoratorRoutes routes = getRoutes();
+            return new Selector() {
+                public boolean shouldBufferForContentType(String contentType, String mimeType, String encoding) {
+                    return rules.shouldBufferForContentType(contentType, mimeType, encoding);
+                }
+
+                public boolean shouldAbortBufferingForHttpStatusCode(int statusCode) {
+                    return rules.shouldAbortBufferingForHttpStatusCode(statusCode);
+                }
+
                 public boolean shouldBufferForRequest(HttpRequest request) {
-                    String requestPath = WebbitSiteMeshContext.getRequestPath(request);
-                    return super.shouldBufferForRequest(request)
-                            && excludesMapper.get(requestPath) == null;
+                    return rules.shouldBufferForRequest(request)
+                            && !routes.route(WebbitSiteMeshContext.getRequestPath(request)).isExcluded();
                 }
             };
         }
     }
 
+    // --------------------------------------------------------------
+    // Buffer setup.
+
+    /**
+     * Set the pool that response buffers are taken from. The default is {@link ByteBufferPool#DEFAULT}.
+     * Use this to change the segment size, how much memory is retained between requests, or to
+     * buffer in direct memory.
+     */
+    public BUILDER setBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return self();
+    }
+
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the maximum number of bytes buffered for a single response. A response that grows beyond
+     * this is written out as it is, undecorated. Unlimited by default.
+     */
+    public BUILDER setMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+        this.bufferLimits = null;
+        return self();
+    }
+
+    /**
+     * Set the maximum number of bytes buffered across all responses in flight. Responses that would
+     * take the total beyond this are written out as they are, undecorated. Unlimited by default.
+     */
+    public BUILDER setBufferBudget(long bufferBudget) {
+        this.bufferBudget = bufferBudget;
+        this.bufferLimits = null;
+        return self();
+    }
+
+    /**
+     * The limits set by {@link #setMaxBufferSize(int)} and {@link #setBufferBudget(long)}. All handlers
+     * created by this builder share the same instance, and so the same budget.
+     */
+    public BufferLimits getBufferLimits() {
+        if (maxBufferSize == Integer.MAX_VALUE && bufferBudget == Long.MAX_VALUE) {
+            return BufferLimits.UNLIMITED;
+        }
+        if (bufferLimits == null) {
+            bufferLimits = new BufferLimits(maxBufferSize, bufferBudget);
+        }
+        return bufferLimits;
+    }
+
+    /**
+     * Stream decorated pages to the response in encoded chunks of 8KB, instead of building the
+     * complete page as a String first.
+     */
+    public BUILDER enableStreamingOutput() {
+        return setOutputChunkSize(8192);
+    }
+
+    /**
+     * Stream decorated pages to the response in encoded chunks of the given size. Zero (the default)
+     * writes each page as a single String.
+     */
+    public BUILDER setOutputChunkSize(int outputChunkSize) {
+        this.outputChunkSize = outputChunkSize;
+        return self();
+    }
+
+    public int getOutputChunkSize() {
+        return outputChunkSize;
+    }
+
+    /**
+     * Compress decorated pages with gzip or deflate, if the request's <code>Accept-Encoding</code> allows.
+     * When the {@link #enablePageCache(int, long) page cache} is enabled, the compressed page is cached,
+     * so repeat requests are not compressed again.
+     */
+    public BUILDER enableCompression() {
+        this.compression = true;
+        return self();
+    }
+
+    public boolean isCompressionEnabled() {
+        return compression;
+    }
+
+    /**
+     * Compile decorators into {@link DecoratorTemplate}s: literal segments with slots for
+     * <code>&lt;sitemesh:write property="..."/&gt;</code>. Pages are then rendered by copying the
+     * segments and the content's properties, without scanning the decorator for tags. Combine with
+     * {@link #enableDecoratorCache()} so each decorator is only compiled once.
+     *
+     * <p>Only the outermost decorator of a chain is rendered this way, and decorators using other
+     * SiteMesh tags are processed as usual.</p>
+     *
+     * <p>A template applies no tag rules to the decorator, so this is ignored if they have been changed
+     * (e.g. with {@link #addTagRuleBundle(TagRuleBundle)} or {@link #setCustomContentProcessor(ContentProcessor)}).</p>
+     */
+    public BUILDER enableCompiledDecorators() {
+        this.compiledDecorators = true;
+        return self();
+    }
+
+    public boolean isCompiledDecoratorsEnabled() {
+        return compiledDecorators && !customContentRules;
+    }
+
+    /**
+     * Request the decorators for a page as soon as the page starts being buffered, instead of once it has
+     * ended. For pages that are slow to generate, the decorators (and their templates, with
+     * {@link #enableCompiledDecorators()}) are then ready when the page ends, and only the merge is left.
+     *
+     * <p>Decorators are fetched even for pages that turn out not to be decorated (e.g. an error status
+     * is set after content has been written). Their content is then discarded, but any headers they set
+     * have already been passed on to the response.</p>
+     */
+    public BUILDER enableDecoratorPrefetch() {
+        this.decoratorPrefetch = true;
+        return self();
+    }
+
+    public boolean isDecoratorPrefetchEnabled() {
+        return decoratorPrefetch;
+    }
+
+    // --------------------------------------------------------------
+    // Threading setup.
+
+    /**
+     * Parse content and merge decorators on the given executor (e.g. a fixed thread pool sized to the
+     * number of cores), instead of on the single Webbit thread. Dispatching to decorator handlers and
+     * writing the response still happen on the Webbit thread.
+     *
+     * <p>By default, everything runs on the Webbit thread.</p>
+     */
+    public BUILDER setProcessingExecutor(Executor processingExecutor) {
+        this.processingExecutor = processingExecutor;
+        return self();
+    }
+
+    public Executor getProcessingExecutor() {
+        return processingExecutor;
+    }
+
+    // --------------------------------------------------------------
+    // Decorator cache setup.
+
+    /**
+     * Cache decorators added with {@link #addDecoratorPath(String, String)}, so they are not
+     * fetched from the default handler on every request. By default, cached decorators never expire.
+     *
+     * @see DecoratorCache
+     */
+    public BUILDER enableDecoratorCache() {
+        this.decoratorCacheEnabled = true;
+        return self();
+    }
+
+    /**
+     * Enable the decorator cache, expiring entries after the given time.
+     */
+    public BUILDER setDecoratorCacheTimeToLive(long timeToLive, TimeUnit unit) {
+        this.decoratorCacheTimeToLive = timeToLive;
+        this.decoratorCacheTimeToLiveUnit = unit;
+        return enableDecoratorCache();
+    }
+
+    /**
+     * Enable the decorator cache, expiring entries when the modification time of the decorator
+     * file changes. Decorator paths are resolved against the given directory, which would
+     * typically be the same directory the default {@link org.webbitserver.handler.StaticFileHandler}
+     * serves.
+     */
+    public BUILDER setDecoratorCacheDirectory(File directory) {
+        this.decoratorCacheDirectory = directory;
+        return enableDecoratorCache();
+    }
+
+    /**
+     * How long a cached decorator may take to fetch. After that, the request fetching it and any requests
+     * waiting for it write their pages undecorated, and the decorator is fetched again by the next request.
+     * Zero waits for ever. The default is 10 seconds.
+     */
+    public BUILDER setDecoratorFetchTimeout(long timeout, TimeUnit unit) {
+        this.decoratorFetchTimeout = unit.toMillis(timeout);
+        return self();
+    }
+
+    /**
+     * Get the decorator fetch timeout, in milliseconds.
+     */
+    public long getDecoratorFetchTimeout() {
+        return decoratorFetchTimeout;
+    }
+
+    /**
+     * Discard a cached decorator, so it is fetched again on the next request.
+     */
+    public BUILDER invalidateDecorator(String decoratorPath) {
+        DecoratorCache cache = getDecoratorCache();
+        if (cache != null) {
+            cache.invalidate(decoratorPath);
+        }
+        return self();
+    }
+
+    /**
+     * Discard all cached decorators.
+     */
+    public BUILDER invalidateAllDecorators() {
+        DecoratorCache cache = getDecoratorCache();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        return self();
+    }
+
+    /**
+     * Get the configured {@link DecoratorCache}, or null if caching is not enabled.
+     */
+    public DecoratorCache getDecoratorCache() {
+        if (decoratorCacheEnabled && decoratorCache == null) {
+            decoratorCache = new DecoratorCache(
+                    decoratorCacheTimeToLive, decoratorCacheTimeToLiveUnit, decoratorCacheDirectory);
+        }
+        return decoratorCache;
+    }
+
+    // --------------------------------------------------------------
+    // Warm-up setup.
+
+    /**
+     * Load every decorator, and decorate a number of synthetic pages, in {@link #create()}, so that the first
+     * real requests do not pay for reading and compiling decorators, or for code the JIT has not compiled yet.
+     * <code>create()</code> returns once the warm-up is done, so call it before starting the server.
+     * The report is available from {@link #getWarmUp()}. Best used with {@link #enableDecoratorCache()}, so
+     * that the decorators stay loaded.
+     *
+     * @param decorations Number of synthetic pages to decorate. A few thousand gets the JIT going.
+     * @see DecoratorWarmUp
+     */
+    public BUILDER enableWarmUp(int decorations) {
+        this.warmUpEnabled = true;
+        this.warmUpDecorations = decorations;
+        return self();
+    }
+
+    public boolean isWarmUpEnabled() {
+        return warmUpEnabled;
+    }
+
+    /**
+     * Warm up a handler created by this builder, if warm-up is enabled. If the thread is interrupted,
+     * the warm-up stops where it is.
+     */
+    protected void warmUp(SiteMeshHandler siteMeshHandler) {
+        if (!warmUpEnabled) {
+            return;
+        }
+        warmUp = new DecoratorWarmUp(decorators, getDecoratorCache(), isCompiledDecoratorsEnabled(),
+                warmUpDecorations, DecoratorWarmUp.DEFAULT_TIMEOUT_MILLIS, getBufferPool());
+        try {
+            warmUp.run(siteMeshHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the report of the warm-up run by the last {@link #create()}: how long each decorator took to load,
+     * and what failed. Null if warm-up is not enabled, or nothing has been created yet.
+     */
+    public DecoratorWarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    // --------------------------------------------------------------
+    // Metrics setup.
+
+    /**
+     * Set the listener that records per-stage latencies, buffered bytes, outcomes and decorator cache
+     * hits. Use {@link JmxSiteMeshMetrics} to expose them through JMX. The default is {@link SiteMeshMetrics#NONE}.
+     */
+    public BUILDER setMetrics(SiteMeshMetrics metrics) {
+        this.metrics = metrics;
+        return self();
+    }
+
+    /**
+     * Record metrics with a {@link JmxSiteMeshMetrics}, registered in the platform MBean server under the
+     * given name.
+     */
+    public BUILDER enableJmxMetrics(String name) {
+        return setMetrics(new JmxSiteMeshMetrics().register(name));
+    }
+
+    public SiteMeshMetrics getMetrics() {
+        return metrics;
+    }
+
+    // --------------------------------------------------------------
+    // Page cache setup.
+
+    /**
+     * Cache decorated pages, and give them entity tags so that conditional requests can be answered with
+     * 304 Not Modified before any decorator runs. Pages that are not decorated are given entity tags too.
+     *
+     * <p>A page is identified by its path, a hash of its undecorated content, and the version of each
+     * decorator in the {@link DecoratorCache} or {@link #addDecoratorFile(String, File) read from a file}.
+     * Other decorators (those added with {@link #addDecoratorHandlers(String, HttpHandler...)}, or with
+     * {@link #addDecoratorPath(String, String)} while the decorator cache is off) have no version, so pages
+     * decorated with them are neither cached nor given entity tags. To cache those, also
+     * {@link #enableDecoratorCache() enable the decorator cache}.</p>
+     *
+     * @param maxEntries Maximum number of pages held.
+     * @param maxBytes   Maximum total size of the pages held.
+     * @see DecoratedPageCache
+     */
+    public BUILDER enablePageCache(int maxEntries, long maxBytes) {
+        this.pageCache = new DecoratedPageCache(maxEntries, maxBytes);
+        return self();
+    }
+
+    /**
+     * Get the configured {@link DecoratedPageCache}, or null if it is not enabled.
+     */
+    public DecoratedPageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * Pass the conditional headers of requests on to the handlers that serve the content, so that they can
+     * answer with 304 Not Modified before anything is buffered or any decorator is fetched. The
+     * <code>ETag</code> (or <code>Last-Modified</code> date) they give is turned into an <code>ETag</code>
+     * that also covers the version of each decorator, as with {@link #enablePageCache(int, long)}, so it is
+     * best to also {@link #enableDecoratorCache() enable the decorator cache}.
+     *
+     * @see org.webbitserver.sitemesh.contentbuffer.ContentBufferingHandler#conditionalPassthrough(boolean)
+     */
+    public BUILDER enableConditionalPassthrough() {
+        this.conditionalPassthrough = true;
+        return self();
+    }
+
+    public boolean isConditionalPassthroughEnabled() {
+        return conditionalPassthrough;
+    }
+
+    // --------------------------------------------------------------
+    // Content cache setup.
+
+    /**
+     * Cache parsed pages, so that a page that has not changed is merged into its decorators without
+     * being parsed again. Only pages whose upstream response has an ETag or Last-Modified header are cached.
+     *
+     * @param maxBytes Maximum total size of the pages held.
+     * @see ContentCache
+     */
+    public BUILDER enableContentCache(long maxBytes) {
+        return enableContentCache(maxBytes, null);
+    }
+
+    /**
+     * Cache parsed pages, so that a page that has not changed is merged into its decorators without
+     * being parsed again. Pages are cached if their upstream response has an ETag or Last-Modified header,
+     * or if they are served from a file in the given directory (e.g. by a {@link org.webbitserver.handler.StaticFileHandler}),
+     * in which case the file's modification time is checked instead.
+     *
+     * @param maxBytes  Maximum total size of the pages held.
+     * @param directory Directory that request paths are resolved against to find their files.
+     * @see ContentCache
+     */
+    public BUILDER enableContentCache(long maxBytes, File directory) {
+        this.contentCache = new ContentCache(maxBytes, directory);
+        return self();
+    }
+
+    /**
+     * Get the configured {@link ContentCache}, or null if it is not enabled.
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    // --------------------------------------------------------------
+    // Fragment setup.
+
+    /**
+     * Answer pjax requests (those with an <code>X-PJAX</code> header) with just the title and body of the
+     * page, as a {@link PjaxFragment}, instead of the decorated page. The decorators are not fetched for them.
+     */
+    public BUILDER enablePjaxFragments() {
+        return setFragmentSelector(new HeaderFragmentSelector(HeaderFragmentSelector.PJAX_HEADER, new PjaxFragment()));
+    }
+
+    /**
+     * Set the {@link FragmentSelector} that decides which requests are answered with a {@link PageFragment}
+     * (e.g. a {@link JsonFragment} of the title and body) instead of the decorated page. Only pages that
+     * would be decorated are affected. By default, there is none.
+     */
+    public BUILDER setFragmentSelector(FragmentSelector fragmentSelector) {
+        this.fragmentSelector = fragmentSelector;
+        return self();
+    }
+
+    /**
+     * Get the configured {@link FragmentSelector}, or null if there is none.
+     */
+    public FragmentSelector getFragmentSelector() {
+        return fragmentSelector;
+    }
+
+    // --------------------------------------------------------------
+    // Decorator setup.
+
     @Override
     public BUILDER addDecoratorPaths(String contentPath, String... decoratorPaths) {
         HttpHandler[] handlers = new HttpHandler[decoratorPaths.length];
         int i = 0;
         for (final String decoratorPath : decoratorPaths) {
-            handlers[i++] = new HttpHandler() {
-                public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) throws Exception {
-                    request.uri(decoratorPath);
-                    defaultHandler.handleHttpRequest(request, response, control);
+            handlers[i++] = new DecoratorPathHandler(decoratorPath) {
+                @Override
+                protected HttpHandler delegate() {
+                    return defaultHandler;
                 }
             };
         }
@@ -155,8 +723,28 @@ public abstract class BaseSiteMeshHandlerBuilder<BUILDER extends BaseSiteMeshBui
         return addDecoratorPaths(contentPath, decoratorPath);
     }
 
+    /**
+     * Decorate content with decorators read straight from files, rather than served by the default handler.
+     * Each file is decoded once, and read again when it changes.
+     *
+     * @see DecoratorFile
+     */
+    public BUILDER addDecoratorFiles(String contentPath, File... decoratorFiles) {
+        HttpHandler[] handlers = new HttpHandler[decoratorFiles.length];
+        int i = 0;
+        for (File decoratorFile : decoratorFiles) {
+            handlers[i++] = new DecoratorFile(decoratorFile);
+        }
+        return addDecoratorHandlers(contentPath, handlers);
+    }
+
+    public BUILDER addDecoratorFile(String contentPath, File decoratorFile) {
+        return addDecoratorFiles(contentPath, decoratorFile);
+    }
+
     public BUILDER addDecoratorHandlers(String contentPath, HttpHandler... decoratorHandlers) {
         decorators.put(contentPath, decoratorHandlers);
+        routes = null;
         return self();
     }
 
@@ -178,8 +766,15 @@ public abstract class BaseSiteMeshHandlerBuilder<BUILDER extends BaseSiteMeshBui
         throw new UnsupportedOperationException("This cannot be used in Webbit. Use addDecoratorPath() or addDecoratorHandler() instead.");
     }
 
+    /**
+     * The decorator mappings, as a {@link PathMapper}. Lookups through {@link #getRoutes()} are faster.
+     */
     public PathMapper<HttpHandler[]> getDecorators() {
-        return decorators;
+        PathMapper<HttpHandler[]> mapper = new PathMapper<HttpHandler[]>();
+        for (Map.Entry<String, HttpHandler[]> decorator : decorators.entrySet()) {
+            mapper.put(decorator.getKey(), decorator.getValue());
+        }
+        return mapper;
     }
 
 }
@@ -0,0 +1,188 @@
+package org.webbitserver.sitemesh;
+
+import org.sitemesh.content.Content;
+import org.sitemesh.content.ContentChunk;
+import org.sitemesh.content.ContentProperty;
+import org.sitemesh.content.memory.InMemoryContent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of parsed content pages, so that pages that have not changed are not parsed again on every request.
+ *
+ * <p>Each page is held with a validator: whatever identifies the version of the page, such as the upstream
+ * response's ETag or Last-Modified header, or the modification time of the file it was served from (see
+ * {@link #fileValidator(String)}). A page is only returned for the same validator, and only the latest
+ * version of each page is kept. Pages without a validator are not cached.</p>
+ *
+ * <p>A {@link Content} is not safe to share between requests (reading a property it does not have adds it),
+ * so the properties are copied out when a page is cached, and every hit gets its own {@link Content} built
+ * from them. That costs a few objects per property, rather than a parse of the whole page.</p>
+ *
+ * <p>The least recently used pages are evicted once the total size of the cached pages exceeds the limit.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#enableContentCache(long)
+ */
+public class ContentCache {
+
+    // Rough size of a cached property besides its value.
+    private static final int PROPERTY_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private final File directory;
+    private final LinkedHashMap<String, Entry> pages = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param maxBytes  Maximum total size of the pages held, counting two bytes per character.
+     * @param directory Directory that request paths are resolved against for {@link #fileValidator(String)}.
+     *                  May be null, to only cache pages that come with a validator.
+     */
+    public ContentCache(long maxBytes, File directory) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Validator for a page served from a file: its modification time and length.
+     *
+     * @param path Path of the request, as returned by {@link WebbitSiteMeshContext#getPath()}.
+     * @return The validator, or null if there is no directory, or the path is not a regular file (e.g. it is a
+     *         directory, whose modification time does not change when the files in it are edited).
+     */
+    public String fileValidator(String path) {
+        if (directory == null || path.contains("..")) {
+            return null;
+        }
+        File file = new File(directory, path.startsWith("/") ? path.substring(1) : path);
+        if (!file.isFile()) {
+            return null;
+        }
+        return "file " + file.lastModified() + '-' + file.length();
+    }
+
+    /**
+     * @return A new copy of the cached page, or null if it is not cached with this validator.
+     */
+    public Content get(String uri, String validator) {
+        Entry entry;
+        synchronized (this) {
+            entry = pages.get(uri);
+        }
+        if (entry == null || !entry.validator.equals(validator)) {
+            return null;
+        }
+        InMemoryContent content = new InMemoryContent();
+        if (entry.data != null) {
+            content.getData().setValue(entry.data);
+        }
+        entry.properties.restore(content.getExtractedProperties());
+        return content;
+    }
+
+    /**
+     * Cache a page, replacing any other version of it. Pages larger than the byte limit are ignored.
+     */
+    public void put(String uri, String validator, Content content) throws IOException {
+        Entry entry = new Entry(validator, value(content.getData()), new Property(content.getExtractedProperties()));
+        if (entry.size > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = pages.put(uri, entry);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += entry.size;
+            Iterator<Entry> eldest = pages.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        pages.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * The value of a chunk, as it would be written out. Values may be lazy views over the page, so
+     * {@link ContentChunk#getValue()} does not always give the same.
+     */
+    private static String value(ContentChunk chunk) throws IOException {
+        if (!chunk.hasValue()) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        chunk.writeValueTo(value);
+        return value.toString();
+    }
+
+    private static class Entry {
+        final String validator;
+        final String data;
+        final Property properties;
+        final long size;
+
+        Entry(String validator, String data, Property properties) {
+            this.validator = validator;
+            this.data = data;
+            this.properties = properties;
+            this.size = (data == null ? 0 : data.length() * 2L) + properties.size();
+        }
+    }
+
+    /**
+     * Immutable copy of a {@link ContentProperty} and its children.
+     */
+    private static class Property {
+        final String name;
+        final String value;
+        final Property[] children;
+
+        Property(ContentProperty property) throws IOException {
+            name = property.getName();
+            value = value(property);
+            List<Property> children = new ArrayList<Property>();
+            for (ContentProperty child : property.getChildren()) {
+                children.add(new Property(child));
+            }
+            this.children = children.toArray(new Property[children.size()]);
+        }
+
+        void restore(ContentProperty property) {
+            if (value != null) {
+                property.setValue(value);
+            }
+            for (Property child : children) {
+                child.restore(property.getChild(child.name));
+            }
+        }
+
+        long size() {
+            long size = PROPERTY_OVERHEAD + (value == null ? 0 : value.length() * 2L);
+            for (Property child : children) {
+                size += child.size();
+            }
+            return size;
+        }
+    }
+
+}
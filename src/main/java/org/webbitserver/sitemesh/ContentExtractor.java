@@ -0,0 +1,542 @@
+package org.webbitserver.sitemesh;
+
+import org.sitemesh.content.Content;
+import org.sitemesh.content.ContentProperty;
+import org.sitemesh.content.memory.InMemoryContent;
+import org.webbitserver.sitemesh.contentbuffer.BufferListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Extracts the properties of a page (<code>title</code>, <code>head</code>, <code>body</code>, their attributes,
+ * and <code>meta</code> tags) incrementally, as the page is buffered, rather than parsing the whole page
+ * once it is complete.
+ *
+ * <p>The result is the same as {@link org.sitemesh.content.tagrules.html.CoreHtmlTagRuleBundle} produces.
+ * The extractor is a small state machine that carries incomplete tags across chunk boundaries. It does not
+ * copy the page: it only remembers where each block starts and ends, and the values are cut out of the
+ * whole page by {@link #extract(CharSequence)}.</p>
+ *
+ * <p>It only understands well formed markup. If it meets anything where it cannot be sure to agree with
+ * SiteMesh (e.g. malformed tags, CDATA sections or SiteMesh tags in the page), it gives up, and
+ * {@link #extract(CharSequence)} returns null so the page can be parsed by the
+ * {@link org.sitemesh.content.ContentProcessor} as usual.</p>
+ *
+ * <p>Not thread-safe.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#enableStreamingExtraction()
+ */
+public class ContentExtractor implements BufferListener {
+
+    /**
+     * Longest tag the extractor will hold while waiting for its end.
+     */
+    private static final int MAX_MARKUP_LENGTH = 16 * 1024;
+
+    private static final String DOCTYPE = "<!doctype";
+
+    // Start of the end tag that closes a script. SiteMesh reads tags in style elements, so they are not raw text.
+    private static final String SCRIPT_END = "</script";
+
+    private enum State {
+        TEXT, MARKUP, COMMENT, RAW_TEXT, FAILED
+    }
+
+    /**
+     * The text of the page outside any block, or of a head, title or body block: the ranges of the page
+     * it covers, leaving out any blocks nested in it.
+     */
+    private static class Block {
+        final String name;
+        private int[] ranges = new int[4];
+        private int count;
+        // Start of the range in progress, or -1 while a nested block is open.
+        private int segmentStart;
+
+        Block(String name, int start) {
+            this.name = name;
+            this.segmentStart = start;
+        }
+
+        /**
+         * A nested block starts, or this one ends.
+         */
+        void pause(int end) {
+            if (segmentStart == -1) {
+                return;
+            }
+            if (count == ranges.length) {
+                int[] bigger = new int[ranges.length * 2];
+                System.arraycopy(ranges, 0, bigger, 0, count);
+                ranges = bigger;
+            }
+            ranges[count++] = segmentStart;
+            ranges[count++] = end;
+            segmentStart = -1;
+        }
+
+        /**
+         * A nested block has ended.
+         */
+        void resume(int start) {
+            segmentStart = start;
+        }
+
+        CharSequence text(CharSequence data) {
+            if (count == 2) {
+                return data.subSequence(ranges[0], ranges[1]); // A view of the page, not a copy.
+            }
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < count; i += 2) {
+                text.append(data, ranges[i], ranges[i + 1]);
+            }
+            return text.toString();
+        }
+    }
+
+    private final InMemoryContent content = new InMemoryContent();
+    private final ContentProperty properties = content.getExtractedProperties();
+
+    private State state = State.TEXT;
+    // Characters seen before the current chunk.
+    private int offset;
+
+    // Incomplete tag, declaration, or candidate end of raw text, and where it started.
+    private final StringBuilder markup = new StringBuilder();
+    private final Tag tag = new Tag();
+    private int markupStart;
+    private char quote;
+    // Whether the markup is a DOCTYPE declaration.
+    private boolean declaration;
+    // Characters of the current comment seen so far, and how many of the last were '-'.
+    private int commentLength;
+    private int dashes;
+
+    private final Block root = new Block(null, 0);
+    private final List<Block> blocks = new ArrayList<Block>();
+    // Blocks that give properties their values: the first of each name to close.
+    private final List<Block> values = new ArrayList<Block>();
+    private boolean inXml;
+
+    public void buffered(CharSequence chars) {
+        int i = 0;
+        int length = chars.length();
+        while (i < length) {
+            int start = i;
+            switch (state) {
+                case TEXT:
+                    i = indexOf(chars, '<', i);
+                    if (i < length) {
+                        markupStart = offset + i;
+                        markup.append('<');
+                        state = State.MARKUP;
+                        i++;
+                    }
+                    break;
+                case MARKUP:
+                    if (markup.length() < 2 || (markup.charAt(1) == '!' && !declaration)) {
+                        markup(chars.charAt(i++), offset + i);
+                        break;
+                    }
+                    // Inside a tag: skip to its end.
+                    while (i < length) {
+                        char c = chars.charAt(i);
+                        if (quote != 0) {
+                            if (c == quote) {
+                                quote = 0;
+                            }
+                        } else if (c == '"' || c == '\'') {
+                            quote = c;
+                        } else if (c == '>') {
+                            break;
+                        }
+                        i++;
+                    }
+                    markup.append(chars, start, i);
+                    if (markup.length() >= MAX_MARKUP_LENGTH) {
+                        fail();
+                    } else if (i < length) {
+                        markup.append('>');
+                        i++;
+                        tag(offset + i);
+                    }
+                    break;
+                case COMMENT:
+                    while (i < length) {
+                        char c = chars.charAt(i++);
+                        commentLength++;
+                        if (commentLength == 1 && (c == '-' || c == '>')) {
+                            fail(); // <!--> and <!----> are not read as closed comments.
+                            return;
+                        }
+                        if (c == '>' && dashes >= 2) {
+                            state = State.TEXT;
+                            break;
+                        }
+                        dashes = c == '-' ? dashes + 1 : 0;
+                    }
+                    break;
+                case RAW_TEXT:
+                    if (markup.length() == 0) {
+                        i = indexOf(chars, '<', i);
+                        if (i == length) {
+                            break;
+                        }
+                        markupStart = offset + i;
+                    }
+                    rawText(chars.charAt(i++), offset + i);
+                    break;
+                default:
+                    return; // Failed.
+            }
+        }
+        offset += length;
+    }
+
+    /**
+     * The extracted page, once all of it has been passed to {@link #buffered(CharSequence)}.
+     *
+     * @param data The whole page, exactly as it was passed to {@link #buffered(CharSequence)}.
+     * @return The content, or null if the extractor gave up.
+     */
+    public Content extract(CharSequence data) {
+        if (state != State.TEXT || data.length() != offset) {
+            return null; // Failed, ended part way through a tag, comment or script, or not the same page.
+        }
+        for (Block block : values) {
+            properties.getChild(block.name).setValue(block.text(data));
+        }
+        // As SiteMesh does: the rest of the page is the value of the root property, and of the body if it has no body.
+        root.pause(offset);
+        CharSequence rest = root.text(data);
+        properties.setValue(rest);
+        ContentProperty body = properties.getChild("body");
+        if (!body.hasValue()) {
+            body.setValue(rest);
+        }
+        content.getData().setValue(data);
+        return content;
+    }
+
+    /**
+     * The start of a tag or declaration, up to the point where it is clear which.
+     */
+    private void markup(char c, int position) {
+        markup.append(c);
+        int length = markup.length();
+        char second = markup.charAt(1);
+        if (length == 2 && !(second == '/' || second == '!' || isLetter(second))) {
+            fail(); // A bare '<' in text.
+        } else if (second != '!') {
+            if (c == '>') {
+                tag(position);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            }
+        } else if (length <= 4 && "<!--".startsWith(markup.toString())) {
+            if (length == 4) {
+                markup.setLength(0);
+                commentLength = 0;
+                dashes = 0;
+                state = State.COMMENT;
+            }
+        } else if (length <= DOCTYPE.length() && DOCTYPE.regionMatches(true, 0, markup.toString(), 0, length)) {
+            declaration = length == DOCTYPE.length();
+        } else {
+            fail(); // Other declarations (CDATA, ...).
+        }
+    }
+
+    private void rawText(char c, int position) {
+        markup.append(c);
+        int length = markup.length();
+        if (length <= SCRIPT_END.length()) {
+            if (!SCRIPT_END.regionMatches(true, 0, markup.toString(), 0, length)) {
+                markup.setLength(0);
+                if (c == '<') {
+                    markupStart = position - 1;
+                    markup.append(c);
+                }
+            }
+        } else if (c == '>') {
+            tag(position);
+        } else if (Character.isWhitespace(c)) {
+            state = State.MARKUP; // The end tag, with something after its name.
+        } else {
+            fail();
+        }
+    }
+
+    /**
+     * The markup holds a complete tag, which ends just before <code>end</code>.
+     */
+    private void tag(int end) {
+        state = State.TEXT;
+        quote = 0;
+        if (declaration) {
+            declaration = false;
+            markup.setLength(0);
+            return;
+        }
+        if (!tag.parse(markup, null) || tag.nameStartsWith("sitemesh:")) {
+            fail();
+            return;
+        }
+        // Raw text is found before any tag rules apply, so even inside <xml> blocks.
+        if (tag.is("script") && !tag.end) {
+            if (tag.empty) {
+                fail(); // SiteMesh reads <script/> as opening a script, if a </script> follows.
+                return;
+            }
+            state = State.RAW_TEXT;
+        } else if (tag.is("xmp")) {
+            fail(); // Raw text to SiteMesh as well, but rare enough to leave to it.
+            return;
+        } else if (inXml) {
+            if (tag.is("xml")) {
+                if (!tag.end) {
+                    fail(); // Nested.
+                    return;
+                }
+                inXml = false;
+            }
+        } else if (tag.is("head") || tag.is("title") || tag.is("body")) {
+            block(end);
+        } else if (tag.is("meta") && !tag.end) {
+            meta();
+        } else if (tag.is("xml")) {
+            if (tag.end || tag.empty) {
+                fail();
+                return;
+            }
+            inXml = true;
+        }
+        markup.setLength(0);
+    }
+
+    private void block(int end) {
+        if (tag.empty) {
+            fail();
+            return;
+        }
+        String name = tag.name();
+        if (!tag.end) {
+            List<String> attributes = new ArrayList<String>();
+            tag.parse(markup, attributes);
+            ContentProperty property = properties.getChild(name);
+            for (int i = 0; i < attributes.size(); i += 2) {
+                property.getChild(attributes.get(i)).setValue(attributes.get(i + 1));
+            }
+            current().pause(markupStart);
+            blocks.add(new Block(name, end));
+            return;
+        }
+        if (blocks.isEmpty() || !blocks.get(blocks.size() - 1).name.equals(name)) {
+            fail(); // Unbalanced.
+            return;
+        }
+        Block block = blocks.remove(blocks.size() - 1);
+        block.pause(markupStart);
+        if (!hasValue(name)) {
+            values.add(block);
+        }
+        current().resume(end);
+    }
+
+    private boolean hasValue(String name) {
+        for (Block block : values) {
+            if (block.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void meta() {
+        List<String> attributes = new ArrayList<String>();
+        tag.parse(markup, attributes);
+        ContentProperty meta = properties.getChild("meta");
+        String name = attribute(attributes, "name");
+        if (name != null) {
+            meta.getChild(name).setValue(attribute(attributes, "content"));
+        }
+        String httpEquiv = attribute(attributes, "http-equiv");
+        if (httpEquiv != null) {
+            meta.getChild("http-equiv").getChild(httpEquiv).setValue(attribute(attributes, "content"));
+        }
+    }
+
+    private static String attribute(List<String> attributes, String name) {
+        for (int i = 0; i < attributes.size(); i += 2) {
+            if (attributes.get(i).equalsIgnoreCase(name)) {
+                return attributes.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Position of the next <code>c</code>, or the length of the chars if there is none.
+     */
+    private static int indexOf(CharSequence chars, char c, int from) {
+        if (chars instanceof String) {
+            int index = ((String) chars).indexOf(c, from); // Much faster than charAt().
+            return index == -1 ? chars.length() : index;
+        }
+        int length = chars.length();
+        int i = from;
+        while (i < length && chars.charAt(i) != c) {
+            i++;
+        }
+        return i;
+    }
+
+    private Block current() {
+        return blocks.isEmpty() ? root : blocks.get(blocks.size() - 1);
+    }
+
+    private void fail() {
+        state = State.FAILED;
+        markup.setLength(0);
+        blocks.clear();
+        values.clear();
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(char c) {
+        return isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == ':' || c == '.';
+    }
+
+    /**
+     * A complete tag. Only accepts the plain forms: <code>&lt;name attr attr=value attr="value" attr='value'&gt;</code>,
+     * optionally ending in <code>/&gt;</code>, and <code>&lt;/name&gt;</code>.
+     *
+     * <p>Only one tag is looked at at a time, so each extractor parses them all into the same instance.</p>
+     */
+    private static class Tag {
+        CharSequence raw;
+        int nameStart;
+        int nameEnd;
+        boolean end;
+        boolean empty;
+
+        boolean is(String name) {
+            return nameEnd - nameStart == name.length() && nameStartsWith(name);
+        }
+
+        boolean nameStartsWith(String prefix) {
+            if (nameEnd - nameStart < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (Character.toLowerCase(raw.charAt(nameStart + i)) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String name() {
+            return raw.subSequence(nameStart, nameEnd).toString().toLowerCase(Locale.ENGLISH);
+        }
+
+        /**
+         * @param attributes If not null, gets the attributes: name, value, name, value... Values may be null.
+         * @return false if the tag is not in one of the plain forms.
+         */
+        boolean parse(CharSequence raw, List<String> attributes) {
+            int i = 1;
+            int last = raw.length() - 1; // The '>'.
+            this.raw = raw;
+            end = raw.charAt(i) == '/';
+            empty = false;
+            if (end) {
+                i++;
+            }
+            nameStart = i;
+            while (i < last && isNameChar(raw.charAt(i))) {
+                i++;
+            }
+            if (i == nameStart || !isLetter(raw.charAt(nameStart))) {
+                return false;
+            }
+            nameEnd = i;
+            while (true) {
+                int whitespace = i;
+                while (i < last && Character.isWhitespace(raw.charAt(i))) {
+                    i++;
+                }
+                if (i == last) {
+                    return true;
+                }
+                if (raw.charAt(i) == '/' && i == last - 1 && !end) {
+                    empty = true;
+                    return true;
+                }
+                if (end || i == whitespace) {
+                    return false;
+                }
+                int attributeStart = i;
+                while (i < last && isNameChar(raw.charAt(i))) {
+                    i++;
+                }
+                if (i == attributeStart) {
+                    return false;
+                }
+                int attributeEnd = i;
+                while (i < last && Character.isWhitespace(raw.charAt(i))) {
+                    i++;
+                }
+                if (i == last || raw.charAt(i) != '=') {
+                    i = attributeEnd;
+                    add(attributes, raw, attributeStart, attributeEnd, -1, -1);
+                    continue;
+                }
+                i++;
+                while (i < last && Character.isWhitespace(raw.charAt(i))) {
+                    i++;
+                }
+                if (i == last) {
+                    return false;
+                }
+                char q = raw.charAt(i);
+                int valueStart;
+                int valueEnd;
+                if (q == '"' || q == '\'') {
+                    valueStart = i + 1;
+                    valueEnd = valueStart;
+                    while (valueEnd < last && raw.charAt(valueEnd) != q) {
+                        valueEnd++;
+                    }
+                    if (valueEnd == last) {
+                        return false;
+                    }
+                    i = valueEnd + 1;
+                } else {
+                    valueStart = i;
+                    while (i < last && isNameChar(raw.charAt(i))) {
+                        i++;
+                    }
+                    if (i == valueStart || (i < last && !Character.isWhitespace(raw.charAt(i)))) {
+                        return false; // e.g. <a href=/>, which SiteMesh reads differently.
+                    }
+                    valueEnd = i;
+                }
+                add(attributes, raw, attributeStart, attributeEnd, valueStart, valueEnd);
+            }
+        }
+
+        private static void add(List<String> attributes, CharSequence raw, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            if (attributes != null) {
+                attributes.add(raw.subSequence(nameStart, nameEnd).toString());
+                attributes.add(valueStart == -1 ? null : raw.subSequence(valueStart, valueEnd).toString());
+            }
+        }
+    }
+
+}
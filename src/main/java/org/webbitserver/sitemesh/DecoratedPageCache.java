@@ -0,0 +1,77 @@
+package org.webbitserver.sitemesh;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of fully decorated pages, keyed by their entity tag.
+ *
+ * <p>The {@link SiteMeshHandler} derives each entity tag from the request path, a hash of the
+ * undecorated content, the response charset and the version of every decorator applied, so a hit
+ * can be written straight to the response without running the {@link org.sitemesh.content.ContentProcessor}
+ * or any decorator.</p>
+ *
+ * <p>The least recently used pages are evicted once either the number of entries or the total size
+ * of the cached pages exceeds its limit.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#enablePageCache(int, long)
+ */
+public class DecoratedPageCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> pages = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param maxEntries Maximum number of pages held.
+     * @param maxBytes   Maximum total size of the pages held.
+     */
+    public DecoratedPageCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The encoded page, or null if not cached. The caller must not modify it.
+     */
+    public synchronized byte[] get(String entityTag) {
+        return pages.get(entityTag);
+    }
+
+    /**
+     * Cache an encoded page. Pages larger than the byte limit are ignored.
+     */
+    public synchronized void put(String entityTag, byte[] page) {
+        if (page.length > maxBytes) {
+            return;
+        }
+        byte[] previous = pages.put(entityTag, page);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += page.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = pages.entrySet().iterator();
+        while ((pages.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        pages.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.webbitserver.sitemesh;
+
+import org.webbitserver.sitemesh.contentbuffer.EntityTags;
+
+import java.io.File;
+import java.nio.CharBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of fetched decorators, keyed by decorator path.
+ *
+ * <p>Without a cache, every decorated page view dispatches to the decorator's
+ * {@link org.webbitserver.HttpHandler} again (e.g. reading the file through a
+ * {@link org.webbitserver.handler.StaticFileHandler}) and decodes the result. With a cache,
+ * the decorator text is held in memory and handed straight to the
+ * {@link org.sitemesh.content.ContentProcessor}.</p>
+ *
+ * <p>Note that SiteMesh merges the content into the decorator while the decorator is being
+ * parsed, so it is the decorator <i>text</i> that is cached here, not a parsed
+ * {@link org.sitemesh.content.Content}.</p>
+ *
+ * <p>Entries can be invalidated in three ways:</p>
+ * <ul>
+ * <li>A time-to-live, after which the decorator is fetched again.</li>
+ * <li>A directory that the decorator paths are resolved against. The modification time of the
+ * decorator file is checked (at most once every {@link #MODIFICATION_CHECK_INTERVAL_MILLIS})
+ * and the entry is discarded when the file changes.</li>
+ * <li>Explicitly, through {@link #invalidate(String)} or {@link #invalidateAll()}.</li>
+ * </ul>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#enableDecoratorCache()
+ */
+public class DecoratorCache {
+
+    /**
+     * Minimum time between file modification checks for a single entry.
+     */
+    public static final long MODIFICATION_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final long timeToLiveMillis;
+    private final File directory;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Create a cache where entries never expire, and can only be removed by explicit invalidation.
+     */
+    public DecoratorCache() {
+        this(0, TimeUnit.MILLISECONDS, null);
+    }
+
+    /**
+     * @param timeToLive How long an entry remains valid. Zero or less means forever.
+     * @param unit       Unit of timeToLive.
+     * @param directory  Directory that decorator paths are resolved against for modification
+     *                   time checks. May be null, to disable modification checks.
+     */
+    public DecoratorCache(long timeToLive, TimeUnit unit, File directory) {
+        this.timeToLiveMillis = unit.toMillis(timeToLive);
+        this.directory = directory;
+    }
+
+    /**
+     * Get the cached decorator text for a path.
+     *
+     * @return A new read-only buffer over the decorator, or null if there is no valid entry.
+     */
+    public CharBuffer get(String decoratorPath) {
+        Entry entry = validEntry(decoratorPath);
+        return entry == null ? null : CharBuffer.wrap(entry.text);
+    }
+
+    /**
+     * A hash of the cached decorator text for a path, used to version decorated pages.
+     *
+     * @return The version, or zero if there is no valid entry.
+     */
+    public long version(String decoratorPath) {
+        Entry entry = validEntry(decoratorPath);
+        return entry == null ? 0 : entry.version;
+    }
+
+    /**
+     * The cached decorator for a path, compiled into a {@link DecoratorTemplate}. Each entry is
+     * compiled once, the first time it is asked for.
+     *
+     * @return The template, or null if there is no valid entry, or the decorator cannot be compiled.
+     */
+    public DecoratorTemplate template(String decoratorPath) {
+        Entry entry = validEntry(decoratorPath);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.compiled) {
+            entry.template = DecoratorTemplate.compile(entry.text);
+            entry.compiled = true;
+        }
+        return entry.template;
+    }
+
+    /**
+     * Store the decorator text for a path. The buffer is copied, so the caller is free to
+     * reuse it.
+     */
+    public void put(String decoratorPath, CharBuffer decorator) {
+        long now = System.currentTimeMillis();
+        File file = fileFor(decoratorPath);
+        entries.put(decoratorPath, new Entry(decorator.toString(), now, file, file == null ? 0 : file.lastModified()));
+    }
+
+    /**
+     * Discard the cached decorator for a path. The next request will fetch it again.
+     */
+    public void invalidate(String decoratorPath) {
+        entries.remove(decoratorPath);
+    }
+
+    /**
+     * Discard all cached decorators.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * The entry for a path, unless it is missing or stale. A stale entry is discarded as soon as it is
+     * found: the modification check that finds it is not repeated for a while, so whichever method
+     * happens to make the check must act on it.
+     */
+    private Entry validEntry(String decoratorPath) {
+        Entry entry = entries.get(decoratorPath);
+        if (entry == null) {
+            return null;
+        }
+        if (isStale(entry, System.currentTimeMillis())) {
+            entries.remove(decoratorPath, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private boolean isStale(Entry entry, long now) {
+        if (timeToLiveMillis > 0 && now - entry.loadedAt >= timeToLiveMillis) {
+            return true;
+        }
+        if (entry.file != null && now - entry.lastChecked >= MODIFICATION_CHECK_INTERVAL_MILLIS) {
+            entry.lastChecked = now;
+            return entry.file.lastModified() != entry.lastModified;
+        }
+        return false;
+    }
+
+    private File fileFor(String decoratorPath) {
+        if (directory == null) {
+            return null;
+        }
+        return new File(directory, decoratorPath.startsWith("/") ? decoratorPath.substring(1) : decoratorPath);
+    }
+
+    private static class Entry {
+        final String text;
+        final long version;
+        final long loadedAt;
+        final File file;
+        final long lastModified;
+        volatile long lastChecked;
+        volatile DecoratorTemplate template;
+        volatile boolean compiled;
+
+        Entry(String text, long loadedAt, File file, long lastModified) {
+            this.text = text;
+            this.version = EntityTags.hash(EntityTags.INITIAL_HASH, text);
+            this.loadedAt = loadedAt;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.lastChecked = loadedAt;
+        }
+    }
+
+}
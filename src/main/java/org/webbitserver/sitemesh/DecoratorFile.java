@@ -0,0 +1,200 @@
+package org.webbitserver.sitemesh;
+
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.sitemesh.contentbuffer.EntityTags;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * A decorator read straight from a file, rather than fetched through another {@link HttpHandler}.
+ *
+ * <p>The {@link SiteMeshHandler} takes the decorator from here directly: no request is dispatched, and
+ * nothing is buffered or decoded per page. The file is read and decoded once, and read again only when it
+ * changes. Its modification time and length are checked at most once every
+ * {@link #MODIFICATION_CHECK_INTERVAL_MILLIS}.</p>
+ *
+ * <p>It can still be used as an ordinary handler, which serves the decorator as <code>text/html</code>.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#addDecoratorFile(String, File)
+ */
+public class DecoratorFile implements HttpHandler {
+
+    /**
+     * Minimum time between checks of whether the file has changed.
+     */
+    public static final long MODIFICATION_CHECK_INTERVAL_MILLIS = DecoratorCache.MODIFICATION_CHECK_INTERVAL_MILLIS;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Charset charset;
+    private volatile Loaded loaded;
+
+    /**
+     * A decorator file in UTF-8.
+     */
+    public DecoratorFile(File file) {
+        this(file, UTF8);
+    }
+
+    public DecoratorFile(File file, Charset charset) {
+        this.file = file;
+        this.charset = charset;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * The decorator text.
+     *
+     * @return A new read-only buffer over the decorator, or null if the file cannot be read.
+     */
+    public CharBuffer decorator() {
+        String text = current().text;
+        return text == null ? null : CharBuffer.wrap(text);
+    }
+
+    /**
+     * The decorator compiled into a {@link DecoratorTemplate}. Each version of the file is compiled once,
+     * the first time it is asked for.
+     *
+     * @return The template, or null if the file cannot be read, or the decorator cannot be compiled.
+     */
+    public DecoratorTemplate template() {
+        Loaded current = current();
+        if (current.text == null) {
+            return null;
+        }
+        if (!current.compiled) {
+            current.template = DecoratorTemplate.compile(current.text);
+            current.compiled = true;
+        }
+        return current.template;
+    }
+
+    /**
+     * A hash of the decorator text, used to version decorated pages.
+     *
+     * @return The version, or zero if the file cannot be read.
+     */
+    public long version() {
+        return current().version;
+    }
+
+    /**
+     * Read the file again on next use, whether or not it appears to have changed.
+     */
+    public void invalidate() {
+        loaded = null;
+    }
+
+    public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) throws Exception {
+        CharBuffer decorator = decorator();
+        if (decorator == null) {
+            control.nextHandler();
+            return;
+        }
+        response.header("Content-Type", "text/html; charset=" + charset.name())
+                .charset(charset)
+                .content(decorator.toString())
+                .end();
+    }
+
+    private Loaded current() {
+        Loaded current = loaded;
+        long now = System.currentTimeMillis();
+        if (current != null && (now - current.lastChecked < MODIFICATION_CHECK_INTERVAL_MILLIS || !isChanged(current, now))) {
+            return current;
+        }
+        synchronized (this) {
+            // Another thread may have read it while this one was waiting.
+            if (loaded != current && loaded != null) {
+                return loaded;
+            }
+            current = load(now);
+            loaded = current;
+            return current;
+        }
+    }
+
+    private boolean isChanged(Loaded current, long now) {
+        current.lastChecked = now;
+        return file.lastModified() != current.lastModified || file.length() != current.length;
+    }
+
+    private Loaded load(long now) {
+        // Taken before reading, so a change while reading is picked up by the next check.
+        long lastModified = file.lastModified();
+        long length = file.length();
+        try {
+            return new Loaded(read(), lastModified, length, now);
+        } catch (IOException e) {
+            return new Loaded(null, lastModified, length, now);
+        }
+    }
+
+    private String read() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            // One byte more than the file, so reaching the end needs no copy. Grows if the file has grown since.
+            byte[] bytes = new byte[(int) Math.min(file.length(), Integer.MAX_VALUE / 2) + 1];
+            int length = 0;
+            int read;
+            while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+                length += read;
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+            }
+            return charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(ByteBuffer.wrap(bytes, 0, length))
+                    .toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+
+    private static class Loaded {
+        final String text;
+        final long version;
+        final long lastModified;
+        final long length;
+        volatile long lastChecked;
+        volatile DecoratorTemplate template;
+        volatile boolean compiled;
+
+        Loaded(String text, long lastModified, long length, long loadedAt) {
+            this.text = text;
+            this.version = text == null ? 0 : EntityTags.hash(EntityTags.INITIAL_HASH, text);
+            this.lastModified = lastModified;
+            this.length = length;
+            this.lastChecked = loadedAt;
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.webbitserver.sitemesh;
+
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+
+/**
+ * {@link HttpHandler} that serves a decorator by rewriting the request URI to the
+ * decorator path and dispatching to another handler (typically the default handler
+ * configured on the {@link BaseSiteMeshHandlerBuilder}).
+ *
+ * <p>Because the decorator path is known up front, the {@link SiteMeshHandler} can use it
+ * as a key into a {@link DecoratorCache}.</p>
+ */
+public abstract class DecoratorPathHandler implements HttpHandler {
+
+    private final String decoratorPath;
+
+    public DecoratorPathHandler(String decoratorPath) {
+        this.decoratorPath = decoratorPath;
+    }
+
+    /**
+     * The handler that will actually serve the decorator.
+     */
+    protected abstract HttpHandler delegate();
+
+    public String getDecoratorPath() {
+        return decoratorPath;
+    }
+
+    public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) throws Exception {
+        request.uri(decoratorPath);
+        delegate().handleHttpRequest(request, response, control);
+    }
+
+}
@@ -0,0 +1,209 @@
+package org.webbitserver.sitemesh;
+
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.sitemesh.contentbuffer.BasicSelector;
+import org.webbitserver.sitemesh.contentbuffer.BufferedResponse;
+import org.webbitserver.sitemesh.contentbuffer.ByteBufferPool;
+import org.webbitserver.sitemesh.contentbuffer.ConditionalRequest;
+import org.webbitserver.sitemesh.contentbuffer.Selector;
+import org.webbitserver.wrapper.HttpControlWrapper;
+import org.webbitserver.wrapper.HttpRequestWrapper;
+import org.webbitserver.wrapper.HttpResponseWrapper;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Response that a decorator handler renders into. Several of these may be in flight for one page,
+ * so none of them can write to the page's response: the body is always buffered, and if the decorator
+ * fails (bad status code, error, or an exception) it is dropped and {@link #fetched(CharBuffer)} is
+ * told so. Other headers, such as cookies, still reach the page's response.
+ */
+abstract class DecoratorResponse extends BufferedResponse {
+
+    private static final Selector ALWAYS_BUFFER = new BasicSelector() {
+        @Override
+        public boolean shouldBufferForContentType(String contentType, String mimeType, String encoding) {
+            return true; // We know we should buffer.
+        }
+    };
+
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile boolean passedOn;
+
+    DecoratorResponse(HttpResponse response, ByteBufferPool bufferPool) {
+        super(ALWAYS_BUFFER, new DetachedResponse(response), bufferPool);
+        enableBuffering();
+    }
+
+    /**
+     * Called exactly once, with the decorator, or null if it could not be rendered.
+     */
+    protected abstract void fetched(CharBuffer decorator);
+
+    /**
+     * Request for a decorator handler to render with. Handlers such as {@link DecoratorPathHandler} rewrite
+     * the URI, which must not affect the page's request, or other decorators being rendered for it. The page's
+     * conditional headers are left out: a decorator is always needed in full.
+     */
+    static HttpRequest request(HttpRequest request) {
+        return new ConditionalRequest(request, null, null) {
+            private String uri = super.uri();
+
+            @Override
+            public String uri() {
+                return uri;
+            }
+
+            @Override
+            public HttpRequestWrapper uri(String uri) {
+                this.uri = uri;
+                return this;
+            }
+        };
+    }
+
+    /**
+     * Control for a decorator handler to render with. A handler that passes the request on (as
+     * StaticFileHandler does for a missing file) has no decorator to give, so that is answered as not found,
+     * rather than handing the page's request and response to the rest of the chain.
+     */
+    HttpControl control(HttpControl control) {
+        return new HttpControlWrapper(control) {
+            @Override
+            public void nextHandler() {
+                notFound();
+            }
+
+            @Override
+            public void nextHandler(HttpRequest request, HttpResponse response) {
+                notFound();
+            }
+
+            @Override
+            public void nextHandler(HttpRequest request, HttpResponse response, HttpControl control) {
+                notFound();
+            }
+        };
+    }
+
+    private void notFound() {
+        passedOn = true;
+        status(404).end();
+    }
+
+    /**
+     * Whether the decorator handler passed the request on, and so was answered as not found.
+     */
+    boolean passedOn() {
+        return passedOn;
+    }
+
+    /**
+     * The decorator handler threw, rather than responding.
+     */
+    void fail() {
+        finish(null);
+    }
+
+    /**
+     * Stop waiting for the decorator handler, and use this decorator instead (null if there is none). If the
+     * handler responds later, that is ignored.
+     */
+    void complete(CharBuffer decorator) {
+        finish(decorator);
+    }
+
+    @Override
+    public HttpResponseWrapper header(String name, String value) {
+        if (name.equalsIgnoreCase("content-type")) {
+            setContentType(value); // Only for its charset: the page has its own Content-Type.
+            return this;
+        } else {
+            return super.header(name, value);
+        }
+    }
+
+    @Override
+    public HttpResponseWrapper error(Throwable error) {
+        super.error(error);
+        finish(null);
+        return this;
+    }
+
+    @Override
+    protected void postProcess(CharBuffer buffer) {
+        finish(buffer);
+    }
+
+    private void finish(CharBuffer decorator) {
+        if (done.compareAndSet(false, true)) {
+            fetched(decorator);
+        }
+    }
+
+    /**
+     * Passes headers and cookies on to the page's response, and drops everything else.
+     */
+    private static class DetachedResponse extends HttpResponseWrapper {
+
+        DetachedResponse(HttpResponse response) {
+            super(response);
+        }
+
+        @Override
+        public HttpResponseWrapper header(String name, String value) {
+            if (!name.equalsIgnoreCase("content-length")) {
+                super.header(name, value);
+            }
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper header(String name, long value) {
+            if (!name.equalsIgnoreCase("content-length")) {
+                super.header(name, value);
+            }
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper status(int status) {
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper charset(Charset charset) {
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper content(String content) {
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper write(String content) {
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper content(byte[] content) {
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper error(Throwable error) {
+            return this;
+        }
+
+        @Override
+        public HttpResponseWrapper end() {
+            return this;
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+package org.webbitserver.sitemesh;
+
+import org.sitemesh.config.PathMapper;
+import org.webbitserver.HttpHandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable table of which decorators apply to a path, and whether the path is excluded from SiteMesh
+ * altogether. Built once by {@link BaseSiteMeshHandlerBuilder#getRoutes()}, and shared by the
+ * {@link org.webbitserver.sitemesh.contentbuffer.Selector} and the {@link SiteMeshHandler}.
+ *
+ * <p>Patterns are resolved exactly as {@link PathMapper} does: an exact match wins,
+ * then the longest matching pattern containing <code>*</code> or <code>?</code> (compared case-insensitively),
+ * then the first of the defaults <code>/</code>, <code>*</code> and <code>/*</code>. Where two patterns of the
+ * same length match, the tie is broken by hash order, as {@link PathMapper} does, so that routing does not
+ * change for anyone moving over from it.</p>
+ *
+ * <p>The patterns are compiled up front, and the result for each path is remembered, so hot paths
+ * are routed with a single hash lookup. At most <code>cacheSize</code> paths are remembered; when
+ * that many have been seen, the memory is cleared and starts again.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class DecoratorRoutes {
+
+    private static final String[] DEFAULT_PATTERNS = {"/", "*", "/*"};
+    private static final HttpHandler[] NO_DECORATORS = new HttpHandler[0];
+
+    /**
+     * Where a path is routed.
+     */
+    public static class Route {
+        private final boolean excluded;
+        private final HttpHandler[] decorators;
+
+        Route(boolean excluded, HttpHandler[] decorators) {
+            this.excluded = excluded;
+            this.decorators = decorators;
+        }
+
+        /**
+         * Whether the path should not be buffered by SiteMesh at all.
+         */
+        public boolean isExcluded() {
+            return excluded;
+        }
+
+        /**
+         * Decorators to apply, outermost last. Never null: empty if the path is not decorated.
+         */
+        public HttpHandler[] getDecorators() {
+            return decorators;
+        }
+    }
+
+    private final Lookup<HttpHandler[]> decorators;
+    private final Lookup<Boolean> excludes;
+    private final int cacheSize;
+    private final ConcurrentHashMap<String, Route> cache = new ConcurrentHashMap<String, Route>();
+
+    /**
+     * @param decorators Decorators to apply, keyed by content path pattern.
+     * @param excludes   Path patterns that SiteMesh should not touch.
+     * @param cacheSize  Maximum number of paths to remember the route for. Zero disables this.
+     */
+    public DecoratorRoutes(Map<String, HttpHandler[]> decorators, Collection<String> excludes, int cacheSize) {
+        this.decorators = new Table<HttpHandler[]>(decorators);
+        Map<String, Boolean> excludesMap = new HashMap<String, Boolean>();
+        for (String exclude : excludes) {
+            excludesMap.put(exclude, Boolean.TRUE);
+        }
+        this.excludes = new Table<Boolean>(excludesMap);
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Routes looked up in a {@link PathMapper}, for callers that already have one. Its mappings cannot be
+     * read back, so they are not compiled: each path not remembered is looked up in the mapper. No path
+     * is excluded.
+     *
+     * @param decorators Decorators to apply, keyed by content path pattern.
+     * @param cacheSize  Maximum number of paths to remember the route for. Zero disables this.
+     */
+    public DecoratorRoutes(final PathMapper<HttpHandler[]> decorators, int cacheSize) {
+        this.decorators = new Lookup<HttpHandler[]>() {
+            public HttpHandler[] get(String path) {
+                return decorators.get(path);
+            }
+        };
+        this.excludes = new Table<Boolean>(Collections.<String, Boolean>emptyMap());
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Find the route for a path, as returned by {@link WebbitSiteMeshContext#getRequestPath(org.webbitserver.HttpRequest)}.
+     */
+    public Route route(String path) {
+        if (path == null) {
+            path = "/";
+        }
+        Route route = cache.get(path);
+        if (route == null) {
+            HttpHandler[] handlers = decorators.get(path);
+            route = new Route(excludes.get(path) != null, handlers == null ? NO_DECORATORS : handlers);
+            if (cacheSize > 0) {
+                if (cache.size() >= cacheSize) {
+                    cache.clear();
+                }
+                cache.put(path, route);
+            }
+        }
+        return route;
+    }
+
+    private interface Lookup<T> {
+        /**
+         * @return The value for the path, or null if there is none.
+         */
+        T get(String path);
+    }
+
+    /**
+     * Compiled form of a {@link PathMapper}.
+     */
+    private static class Table<T> implements Lookup<T> {
+
+        private final Map<String, T> exact;
+        private final Pattern[] patterns;
+        private final T defaultValue;
+
+        Table(Map<String, T> mappings) {
+            exact = new HashMap<String, T>();
+            List<Pattern> wildcards = new ArrayList<Pattern>();
+            for (Map.Entry<String, T> mapping : mappings.entrySet()) {
+                if (mapping.getValue() != null) {
+                    exact.put(mapping.getKey(), mapping.getValue());
+                }
+            }
+            // Filled in the same order as PathMapper's own HashMap, so iterating it visits ties in the same order.
+            for (Map.Entry<String, T> mapping : exact.entrySet()) {
+                String key = mapping.getKey();
+                if (key.length() > 1 && (key.indexOf('*') != -1 || key.indexOf('?') != -1)) {
+                    wildcards.add(new Pattern(key, mapping.getValue()));
+                }
+            }
+            // Longest first. The sort is stable, so equal lengths keep their order.
+            Collections.sort(wildcards, new Comparator<Pattern>() {
+                public int compare(Pattern a, Pattern b) {
+                    return b.pattern.length() - a.pattern.length();
+                }
+            });
+            patterns = wildcards.toArray(new Pattern[wildcards.size()]);
+            T defaultValue = null;
+            for (String key : DEFAULT_PATTERNS) {
+                if (exact.containsKey(key)) {
+                    defaultValue = exact.get(key);
+                    break;
+                }
+            }
+            this.defaultValue = defaultValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get(String path) {
+            T value = exact.get(path);
+            if (value != null) {
+                return value;
+            }
+            for (Pattern pattern : patterns) {
+                if (pattern.matches(path)) {
+                    return (T) pattern.value;
+                }
+            }
+            return defaultValue;
+        }
+    }
+
+    private static class Pattern {
+
+        private static final int PREFIX = 1;    // "/foo/*"
+        private static final int SUFFIX = 2;    // "*.html"
+        private static final int WILDCARD = 3;  // Anything else.
+
+        final String pattern;
+        final Object value;
+        private final int kind;
+        private final String literal;
+
+        Pattern(String pattern, Object value) {
+            this.pattern = pattern;
+            this.value = value;
+            int star = pattern.indexOf('*');
+            boolean singleStar = star != -1 && star == pattern.lastIndexOf('*') && pattern.indexOf('?') == -1;
+            if (singleStar && star == pattern.length() - 1) {
+                kind = PREFIX;
+                literal = pattern.substring(0, star);
+            } else if (singleStar && star == 0) {
+                kind = SUFFIX;
+                literal = pattern.substring(1);
+            } else {
+                kind = WILDCARD;
+                literal = null;
+            }
+        }
+
+        boolean matches(String path) {
+            switch (kind) {
+                case PREFIX:
+                    return path.regionMatches(true, 0, literal, 0, literal.length());
+                case SUFFIX:
+                    return path.length() >= literal.length()
+                            && path.regionMatches(true, path.length() - literal.length(), literal, 0, literal.length());
+                default:
+                    return match(pattern, 0, path, 0);
+            }
+        }
+
+        /**
+         * Glob match: <code>*</code> matches any run of characters (including <code>/</code>),
+         * <code>?</code> matches any one character, and everything else is compared ignoring case.
+         */
+        private static boolean match(String pattern, int p, String path, int s) {
+            int starP = -1;
+            int starS = 0;
+            while (s < path.length()) {
+                if (p < pattern.length() && pattern.charAt(p) == '*') {
+                    starP = p++;
+                    starS = s;
+                } else if (p < pattern.length() && (pattern.charAt(p) == '?' || sameIgnoringCase(pattern.charAt(p), path.charAt(s)))) {
+                    p++;
+                    s++;
+                } else if (starP != -1) {
+                    p = starP + 1;
+                    s = ++starS;
+                } else {
+                    return false;
+                }
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '*') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+        private static boolean sameIgnoringCase(char a, char b) {
+            return a == b || Character.toUpperCase(a) == Character.toUpperCase(b);
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+package org.webbitserver.sitemesh;
+
+import org.sitemesh.content.Content;
+import org.sitemesh.content.ContentProperty;
+import org.webbitserver.sitemesh.contentbuffer.ByteBufferPool;
+import org.webbitserver.sitemesh.contentbuffer.SegmentedBuffer;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A decorator compiled into literal segments, with a slot for each
+ * <code>&lt;sitemesh:write property="..."/&gt;</code> between them.
+ *
+ * <p>Merging content into a template needs no tag scanning: the literal segments are encoded once
+ * (per charset), and each request just copies them into the page, with the content's properties
+ * (title, head, body, ...) written in the slots.</p>
+ *
+ * <p>Only decorators whose sole SiteMesh tags are <code>sitemesh:write</code> can be compiled.
+ * {@link #compile(CharSequence)} returns null for anything else, and the decorator should then
+ * be merged by the {@link org.sitemesh.content.ContentProcessor} as usual.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#enableCompiledDecorators()
+ */
+public class DecoratorTemplate {
+
+    private static final String TAG_START = "<sitemesh:";
+    private static final String WRITE_END = "</sitemesh:write";
+
+    private final String[] literals;
+    private final String[][] properties;
+    private volatile Encoded encoded;
+
+    private DecoratorTemplate(String[] literals, String[][] properties) {
+        this.literals = literals;
+        this.properties = properties;
+    }
+
+    /**
+     * Compile a decorator.
+     *
+     * @return The template, or null if the decorator uses SiteMesh features that templates do not support.
+     */
+    public static DecoratorTemplate compile(CharSequence decorator) {
+        String text = decorator.toString();
+        if (hasSiteMeshTagInRawText(text)) {
+            return null;
+        }
+        List<String> literals = new ArrayList<String>();
+        List<String[]> properties = new ArrayList<String[]>();
+        int pos = 0;
+        while (true) {
+            int start = indexOfIgnoreCase(text, TAG_START, pos);
+            if (start == -1) {
+                break;
+            }
+            int nameEnd = start + TAG_START.length();
+            while (nameEnd < text.length() && isNameChar(text.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            if (!text.substring(start + TAG_START.length(), nameEnd).equalsIgnoreCase("write")) {
+                return null; // e.g. sitemesh:decorate
+            }
+            int tagEnd = endOfTag(text, nameEnd);
+            if (tagEnd == -1) {
+                return null;
+            }
+            String attributes = text.substring(nameEnd, tagEnd);
+            String property = attribute(attributes, "property");
+            if (property == null) {
+                return null;
+            }
+            literals.add(text.substring(pos, start));
+            properties.add(property.split("\\."));
+            if (attributes.trim().endsWith("/")) {
+                pos = tagEnd + 1;
+            } else {
+                // The body is only used when there is no content to merge, which never happens here.
+                int close = indexOfIgnoreCase(text, WRITE_END, tagEnd + 1);
+                if (close == -1 || indexOfIgnoreCase(text.substring(tagEnd + 1, close), TAG_START, 0) != -1) {
+                    return null;
+                }
+                int closeEnd = text.indexOf('>', close);
+                if (closeEnd == -1) {
+                    return null;
+                }
+                pos = closeEnd + 1;
+            }
+        }
+        literals.add(text.substring(pos));
+        return new DecoratorTemplate(
+                literals.toArray(new String[literals.size()]),
+                properties.toArray(new String[properties.size()][]));
+    }
+
+    /**
+     * Number of property slots.
+     */
+    public int slots() {
+        return properties.length;
+    }
+
+    /**
+     * Merge content into the template.
+     *
+     * @return The decorated page, encoded in the given charset.
+     */
+    public byte[] render(Content content, Charset charset) throws IOException {
+        return render(content, charset, ByteBufferPool.DEFAULT);
+    }
+
+    /**
+     * Merge content into the template. The properties are encoded straight from the content's buffers
+     * into segments from the pool, and the page is then copied out of them in one go.
+     *
+     * @return The decorated page, encoded in the given charset.
+     */
+    public byte[] render(Content content, Charset charset, ByteBufferPool bufferPool) throws IOException {
+        byte[][] literalBytes = encode(charset);
+        SegmentedBuffer page = new SegmentedBuffer(bufferPool);
+        Appendable values = page.appender(charset);
+        for (int i = 0; i < properties.length; i++) {
+            page.write(literalBytes[i]);
+            property(content, properties[i]).writeValueTo(values);
+        }
+        page.write(literalBytes[literalBytes.length - 1]);
+        return page.drain(charset);
+    }
+
+    private static ContentProperty property(Content content, String[] path) {
+        ContentProperty property = content.getExtractedProperties();
+        for (String name : path) {
+            property = property.getChild(name);
+        }
+        return property;
+    }
+
+    /**
+     * The literal segments in a charset. Pages are almost always served in one charset, so only the
+     * last one is kept.
+     */
+    private byte[][] encode(Charset charset) {
+        Encoded current = encoded;
+        if (current != null && current.charset.equals(charset)) {
+            return current.literals;
+        }
+        byte[][] bytes = new byte[literals.length][];
+        for (int i = 0; i < literals.length; i++) {
+            bytes[i] = literals[i].getBytes(charset);
+        }
+        encoded = new Encoded(charset, bytes);
+        return bytes;
+    }
+
+    private static class Encoded {
+        final Charset charset;
+        final byte[][] literals;
+
+        Encoded(Charset charset, byte[][] literals) {
+            this.charset = charset;
+            this.literals = literals;
+        }
+    }
+
+    // --------------------------------------------------------------
+    // Scanning.
+
+    /**
+     * Elements whose contents SiteMesh passes through without looking for tags.
+     */
+    private static final String[][] RAW_TEXT = {
+            {"<!--", "-->"}, {"<script", "</script"}, {"<style", "</style"}, {"<textarea", "</textarea"}, {"<xmp", "</xmp"}};
+
+    /**
+     * Whether a SiteMesh tag appears somewhere SiteMesh would leave it alone. Rather than reproduce
+     * that, such decorators are not compiled.
+     */
+    private static boolean hasSiteMeshTagInRawText(String text) {
+        for (String[] element : RAW_TEXT) {
+            int pos = 0;
+            while (true) {
+                int start = indexOfIgnoreCase(text, element[0], pos);
+                if (start == -1) {
+                    break;
+                }
+                int end = indexOfIgnoreCase(text, element[1], start + element[0].length());
+                if (end == -1) {
+                    end = text.length();
+                }
+                if (indexOfIgnoreCase(text.substring(start, end), TAG_START, 0) != -1) {
+                    return true;
+                }
+                pos = end;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfIgnoreCase(String text, String search, int from) {
+        for (int i = from; i <= text.length() - search.length(); i++) {
+            if (text.regionMatches(true, i, search, 0, search.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':';
+    }
+
+    /**
+     * Position of the <code>&gt;</code> that closes a tag, skipping quoted attribute values.
+     */
+    private static int endOfTag(String text, int from) {
+        char quote = 0;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String attribute(String attributes, String name) {
+        int i = 0;
+        int length = attributes.length();
+        while (i < length) {
+            while (i < length && (Character.isWhitespace(attributes.charAt(i)) || attributes.charAt(i) == '/')) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < length && isNameChar(attributes.charAt(i))) {
+                i++;
+            }
+            if (i == nameStart) {
+                i++;
+                continue;
+            }
+            String attributeName = attributes.substring(nameStart, i);
+            while (i < length && Character.isWhitespace(attributes.charAt(i))) {
+                i++;
+            }
+            String value = null;
+            if (i < length && attributes.charAt(i) == '=') {
+                i++;
+                while (i < length && Character.isWhitespace(attributes.charAt(i))) {
+                    i++;
+                }
+                if (i < length && (attributes.charAt(i) == '"' || attributes.charAt(i) == '\'')) {
+                    char quote = attributes.charAt(i++);
+                    int valueEnd = attributes.indexOf(quote, i);
+                    if (valueEnd == -1) {
+                        valueEnd = length;
+                    }
+                    value = attributes.substring(i, valueEnd);
+                    i = valueEnd + 1;
+                } else {
+                    int valueStart = i;
+                    while (i < length && !Character.isWhitespace(attributes.charAt(i)) && attributes.charAt(i) != '/') {
+                        i++;
+                    }
+                    value = attributes.substring(valueStart, i);
+                }
+            }
+            if (attributeName.equals(name)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,447 @@
+package org.webbitserver.sitemesh;
+
+import org.webbitserver.EventSourceConnection;
+import org.webbitserver.EventSourceHandler;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.WebSocketConnection;
+import org.webbitserver.WebSocketHandler;
+import org.webbitserver.sitemesh.contentbuffer.ByteBufferPool;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads every decorator, and decorates a number of synthetic pages, before a {@link SiteMeshHandler} serves
+ * its first request. Otherwise the first requests after a deploy pay for reading the decorators, compiling
+ * them, and running code the JIT has not compiled yet.
+ *
+ * <ol>
+ * <li>Each decorator is fetched once, and timed. Decorators served by a {@link DecoratorPathHandler} are put in
+ * the {@link DecoratorCache}, if there is one, and compiled into a {@link DecoratorTemplate} if compiled
+ * decorators are enabled. A {@link DecoratorFile} is read, and compiled likewise.</li>
+ * <li>Synthetic pages are then decorated through the handler itself, at a path matching each decorator mapping
+ * in turn, so the whole request path is run.</li>
+ * </ol>
+ *
+ * <p>Everything runs on the calling thread, which waits for handlers that respond asynchronously (up to a
+ * timeout for each), so the handler is warm by the time {@link #run(SiteMeshHandler)} returns. Failures are
+ * recorded rather than thrown: a decorator that cannot be loaded now may well be fixed before it is needed.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#enableWarmUp(int)
+ */
+public class DecoratorWarmUp {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private static final String PAGE = page();
+
+    private final Map<String, HttpHandler[]> decorators;
+    private final DecoratorCache decoratorCache;
+    private final boolean compiledDecorators;
+    private final int decorations;
+    private final long timeoutMillis;
+    private final ByteBufferPool bufferPool;
+
+    private final List<DecoratorLoad> decoratorLoads = new ArrayList<DecoratorLoad>();
+    private int decorationsRun;
+    private int decorationFailures;
+    private String firstDecorationFailure;
+    private long decorationNanos;
+
+    /**
+     * @param decorators         Decorators, keyed by content path pattern, as added to the builder.
+     * @param decoratorCache     Cache to load decorators into. May be null.
+     * @param compiledDecorators Whether to compile the decorators into templates.
+     * @param decorations        Number of synthetic pages to decorate.
+     * @param timeoutMillis      How long to wait for each decorator or page.
+     * @param bufferPool         Pool to buffer decorators with.
+     */
+    public DecoratorWarmUp(Map<String, HttpHandler[]> decorators, DecoratorCache decoratorCache, boolean compiledDecorators,
+                           int decorations, long timeoutMillis, ByteBufferPool bufferPool) {
+        this.decorators = decorators;
+        this.decoratorCache = decoratorCache;
+        this.compiledDecorators = compiledDecorators;
+        this.decorations = decorations;
+        this.timeoutMillis = timeoutMillis;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Load the decorators, then decorate the synthetic pages with the handler.
+     */
+    public DecoratorWarmUp run(SiteMeshHandler siteMeshHandler) throws InterruptedException {
+        for (HttpHandler decoratorHandler : distinctDecorators()) {
+            decoratorLoads.add(load(decoratorHandler));
+        }
+        List<String> paths = samplePaths();
+        if (paths.isEmpty()) {
+            return this;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < decorations; i++) {
+            String failure = decorate(siteMeshHandler, paths.get(i % paths.size()));
+            decorationsRun++;
+            if (failure != null) {
+                decorationFailures++;
+                if (firstDecorationFailure == null) {
+                    firstDecorationFailure = failure;
+                }
+            }
+        }
+        decorationNanos = System.nanoTime() - start;
+        return this;
+    }
+
+    /**
+     * How each decorator was loaded, in the order they were added.
+     */
+    public List<DecoratorLoad> getDecoratorLoads() {
+        return Collections.unmodifiableList(decoratorLoads);
+    }
+
+    public int getDecorations() {
+        return decorationsRun;
+    }
+
+    public int getDecorationFailures() {
+        return decorationFailures;
+    }
+
+    /**
+     * Why the first synthetic page that failed did so, or null if none did.
+     */
+    public String getFirstDecorationFailure() {
+        return firstDecorationFailure;
+    }
+
+    public long getDecorationNanos() {
+        return decorationNanos;
+    }
+
+    /**
+     * Whether any decorator could not be loaded, or any synthetic page could not be decorated.
+     */
+    public boolean hasFailures() {
+        if (decorationFailures > 0) {
+            return true;
+        }
+        for (DecoratorLoad decoratorLoad : decoratorLoads) {
+            if (decoratorLoad.getFailure() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The report, one line per decorator, then one for the synthetic pages.
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (DecoratorLoad decoratorLoad : decoratorLoads) {
+            report.append(decoratorLoad).append('\n');
+        }
+        report.append(decorationsRun).append(" synthetic pages decorated in ")
+                .append(TimeUnit.NANOSECONDS.toMillis(decorationNanos)).append("ms, ")
+                .append(decorationFailures).append(" failed");
+        if (firstDecorationFailure != null) {
+            report.append(" (first: ").append(firstDecorationFailure).append(')');
+        }
+        return report.toString();
+    }
+
+    /**
+     * How one decorator was loaded.
+     */
+    public static class DecoratorLoad {
+        private final String name;
+        private final long nanos;
+        private final int length;
+        private final boolean compiled;
+        private final String failure;
+
+        DecoratorLoad(String name, long nanos, int length, boolean compiled, String failure) {
+            this.name = name;
+            this.nanos = nanos;
+            this.length = length;
+            this.compiled = compiled;
+            this.failure = failure;
+        }
+
+        /**
+         * The decorator path, or for other decorator handlers, the handler itself as a string.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Time taken to fetch (and compile) the decorator.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Length of the decorator in chars, or zero if it failed.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Whether the decorator was compiled into a {@link DecoratorTemplate}.
+         */
+        public boolean isCompiled() {
+            return compiled;
+        }
+
+        /**
+         * Why the decorator could not be loaded, or null if it was.
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + (failure != null ? "FAILED (" + failure + ")" : length + " chars")
+                    + (compiled ? ", compiled" : "") + " in " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+        }
+    }
+
+    // --------------------------------------------------------------
+    // Loading decorators.
+
+    private List<HttpHandler> distinctDecorators() {
+        // Decorator paths added in several mappings are separate handlers, but only need loading once.
+        Set<Object> seen = new HashSet<Object>();
+        List<HttpHandler> distinct = new ArrayList<HttpHandler>();
+        for (HttpHandler[] decoratorHandlers : decorators.values()) {
+            for (HttpHandler decoratorHandler : decoratorHandlers) {
+                Object key = decoratorHandler instanceof DecoratorPathHandler
+                        ? ((DecoratorPathHandler) decoratorHandler).getDecoratorPath() : decoratorHandler;
+                if (seen.add(key)) {
+                    distinct.add(decoratorHandler);
+                }
+            }
+        }
+        return distinct;
+    }
+
+    private DecoratorLoad load(HttpHandler decoratorHandler) throws InterruptedException {
+        if (decoratorHandler instanceof DecoratorFile) {
+            return load((DecoratorFile) decoratorHandler);
+        }
+        String path = decoratorHandler instanceof DecoratorPathHandler
+                ? ((DecoratorPathHandler) decoratorHandler).getDecoratorPath() : null;
+        String name = path != null ? path : decoratorHandler.toString();
+        long start = System.nanoTime();
+        final CountDownLatch fetched = new CountDownLatch(1);
+        final CharBuffer[] result = new CharBuffer[1];
+        final StubHttpResponse pageResponse = new StubHttpResponse();
+        DecoratorResponse decoratorResponse = new DecoratorResponse(pageResponse, bufferPool) {
+            @Override
+            protected void fetched(CharBuffer decorator) {
+                result[0] = decorator;
+                fetched.countDown();
+            }
+        };
+        HttpRequest request = DecoratorResponse.request(new StubHttpRequest("/"));
+        String failure = null;
+        try {
+            decoratorHandler.handleHttpRequest(request, decoratorResponse,
+                    decoratorResponse.control(new WarmUpControl(request, decoratorResponse, null)));
+        } catch (Exception e) {
+            failure = e.toString();
+            decoratorResponse.fail();
+        }
+        if (!fetched.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return new DecoratorLoad(name, System.nanoTime() - start, 0, false, "timed out");
+        }
+        CharBuffer decorator = result[0];
+        if (decorator == null) {
+            return new DecoratorLoad(name, System.nanoTime() - start, 0, false, failure(decoratorResponse, failure));
+        }
+        boolean compiled = false;
+        if (path != null && decoratorCache != null) {
+            decoratorCache.put(path, decorator);
+            compiled = compiledDecorators && decoratorCache.template(path) != null;
+        } else if (compiledDecorators) {
+            compiled = DecoratorTemplate.compile(decorator) != null;
+        }
+        return new DecoratorLoad(name, System.nanoTime() - start, decorator.remaining(), compiled, null);
+    }
+
+    /**
+     * Why a decorator was not rendered. A handler that passes the request on (as StaticFileHandler does for a
+     * missing file) is answered as not found, here as when serving pages, so it is reported as such.
+     */
+    private static String failure(DecoratorResponse decoratorResponse, String thrown) {
+        if (thrown != null) {
+            return thrown;
+        }
+        if (decoratorResponse.passedOn()) {
+            return "not found (passed on to the next handler)";
+        }
+        int status = decoratorResponse.abortedForStatusCode();
+        return status != 0 ? "status " + status : "not rendered";
+    }
+
+    private DecoratorLoad load(DecoratorFile decoratorFile) {
+        long start = System.nanoTime();
+        CharBuffer decorator = decoratorFile.decorator();
+        if (decorator == null) {
+            return new DecoratorLoad(decoratorFile.toString(), System.nanoTime() - start, 0, false, "cannot read file");
+        }
+        boolean compiled = compiledDecorators && decoratorFile.template() != null;
+        return new DecoratorLoad(decoratorFile.toString(), System.nanoTime() - start, decorator.remaining(), compiled, null);
+    }
+
+    // --------------------------------------------------------------
+    // Synthetic pages.
+
+    /**
+     * A path matching each decorator mapping, e.g. <code>/blog/warm-up</code> for <code>/blog/*</code>.
+     */
+    private List<String> samplePaths() {
+        List<String> paths = new ArrayList<String>();
+        for (Map.Entry<String, HttpHandler[]> mapping : decorators.entrySet()) {
+            if (mapping.getValue().length == 0) {
+                continue;
+            }
+            String path = mapping.getKey().replace("*", "warm-up").replace('?', 'x');
+            paths.add(path.startsWith("/") ? path : "/" + path);
+        }
+        return paths;
+    }
+
+    /**
+     * @return Why the page could not be decorated, or null if it was.
+     */
+    private String decorate(SiteMeshHandler siteMeshHandler, String path) throws InterruptedException {
+        final CountDownLatch ended = new CountDownLatch(1);
+        StubHttpResponse response = new StubHttpResponse() {
+            @Override
+            public StubHttpResponse end() {
+                super.end();
+                ended.countDown();
+                return this;
+            }
+
+            @Override
+            public StubHttpResponse error(Throwable error) {
+                super.error(error);
+                ended.countDown();
+                return this;
+            }
+        };
+        StubHttpRequest request = new StubHttpRequest(path);
+        try {
+            siteMeshHandler.handleHttpRequest(request, response, new WarmUpControl(request, response, new HttpHandler() {
+                public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+                    response.header("Content-Type", "text/html; charset=UTF-8").content(PAGE).end();
+                }
+            }));
+        } catch (Exception e) {
+            return path + ": " + e;
+        }
+        if (!ended.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return path + ": timed out";
+        }
+        if (response.error() != null) {
+            return path + ": " + response.error();
+        }
+        if (response.status() != 200) {
+            return path + ": status " + response.status();
+        }
+        return null;
+    }
+
+    private static String page() {
+        StringBuilder page = new StringBuilder()
+                .append("<!DOCTYPE html>\n<html>\n<head>\n<title>Warm-up</title>\n")
+                .append("<meta name=\"description\" content=\"Synthetic page\">\n")
+                .append("<link rel=\"stylesheet\" href=\"/warm-up.css\">\n</head>\n<body class=\"warm-up\">\n");
+        for (int i = 0; i < 64; i++) {
+            page.append("<p>Paragraph ").append(i).append(" with <a href=\"/warm-up/").append(i)
+                    .append("\">a link</a> and <em>some</em> text.</p>\n");
+        }
+        return page.append("</body>\n</html>\n").toString();
+    }
+
+    /**
+     * Control for synthetic requests: work is run straight away, on whichever thread asks, and the next
+     * handler serves the synthetic page (or, if there is none, answers 404).
+     */
+    private static class WarmUpControl implements HttpControl {
+        private final HttpRequest request;
+        private final HttpResponse response;
+        private final HttpHandler next;
+
+        WarmUpControl(HttpRequest request, HttpResponse response, HttpHandler next) {
+            this.request = request;
+            this.response = response;
+            this.next = next;
+        }
+
+        public void nextHandler() {
+            nextHandler(request, response);
+        }
+
+        public void nextHandler(HttpRequest request, HttpResponse response) {
+            nextHandler(request, response, this);
+        }
+
+        public void nextHandler(HttpRequest request, HttpResponse response, HttpControl control) {
+            if (next == null) {
+                response.status(404).end();
+                return;
+            }
+            try {
+                next.handleHttpRequest(request, response, control);
+            } catch (Exception e) {
+                response.error(e);
+            }
+        }
+
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        public Executor handlerExecutor() {
+            return this;
+        }
+
+        public WebSocketConnection upgradeToWebSocketConnection(WebSocketHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        public WebSocketConnection createWebSocketConnection() {
+            throw new UnsupportedOperationException();
+        }
+
+        public EventSourceConnection upgradeToEventSourceConnection(EventSourceHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        public EventSourceConnection createEventSourceConnection() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
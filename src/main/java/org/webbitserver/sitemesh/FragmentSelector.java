@@ -0,0 +1,21 @@
+package org.webbitserver.sitemesh;
+
+import org.webbitserver.HttpRequest;
+
+/**
+ * Decides which requests are for a fragment of a page, rather than the decorated page. Clients that
+ * navigate with pjax or XHR only swap the title and body of the page they already show, so for them
+ * the decorators are not fetched or merged at all.
+ *
+ * <p>For a basic implementation, use {@link HeaderFragmentSelector}.</p>
+ *
+ * @see BaseSiteMeshHandlerBuilder#setFragmentSelector(FragmentSelector)
+ */
+public interface FragmentSelector {
+
+    /**
+     * @return The fragment to send instead of the decorated page, or null to decorate the page as usual.
+     */
+    PageFragment fragment(HttpRequest request);
+
+}
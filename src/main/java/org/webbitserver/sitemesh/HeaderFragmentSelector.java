@@ -0,0 +1,35 @@
+package org.webbitserver.sitemesh;
+
+import org.webbitserver.HttpRequest;
+
+/**
+ * {@link FragmentSelector} that sends a fragment when the request has a particular header, such as
+ * the <code>X-PJAX</code> header sent by jquery-pjax.
+ *
+ * <p>The same URL then has two representations. pjax adds a <code>_pjax</code> query parameter to its
+ * requests so they are cached separately; other clients should do something similar.</p>
+ */
+public class HeaderFragmentSelector implements FragmentSelector {
+
+    /**
+     * Header sent by jquery-pjax.
+     */
+    public static final String PJAX_HEADER = "X-PJAX";
+
+    private final String header;
+    private final PageFragment fragment;
+
+    /**
+     * @param header   Name of the request header that asks for a fragment. Its value is ignored.
+     * @param fragment Fragment to send.
+     */
+    public HeaderFragmentSelector(String header, PageFragment fragment) {
+        this.header = header;
+        this.fragment = fragment;
+    }
+
+    public PageFragment fragment(HttpRequest request) {
+        return request.header(header) == null ? null : fragment;
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.webbitserver.sitemesh;
+
+import org.sitemesh.content.Content;
+import org.sitemesh.content.ContentProperty;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+/**
+ * Properties of the page as a JSON object, e.g. <code>{"title":"Hello","body":"&lt;p&gt;...&lt;/p&gt;"}</code>,
+ * for clients that navigate with XHR. Properties are keyed by the name they were asked for, and properties
+ * the page does not have are null.
+ */
+public class JsonFragment implements PageFragment {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final boolean[] ESCAPE = new boolean[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPE[c] = true; // Control characters are not allowed in JSON strings.
+        }
+        ESCAPE['"'] = true;
+        ESCAPE['\\'] = true;
+    }
+
+    private final String[] names;
+    private final String[][] paths;
+
+    /**
+     * @param properties Properties to send, e.g. "title", "body". Child properties are named as in
+     *                   <code>&lt;sitemesh:write property="meta.description"/&gt;</code>.
+     */
+    public JsonFragment(String... properties) {
+        this.names = properties;
+        this.paths = new String[properties.length][];
+        for (int i = 0; i < properties.length; i++) {
+            paths[i] = properties[i].split("\\.");
+        }
+    }
+
+    public String getContentType() {
+        return "application/json";
+    }
+
+    public void writeTo(Content content, Appendable out) throws IOException {
+        // Escaping makes many small appends, so collect them first.
+        StringBuilder json = out instanceof StringBuilder ? (StringBuilder) out : new StringBuilder(4096);
+        JsonString value = new JsonString(json);
+        json.append('{');
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"');
+            value.append(names[i]);
+            json.append("\":");
+            ContentProperty property = property(content, paths[i]);
+            if (property.hasValue()) {
+                json.append('"');
+                property.writeValueTo(value);
+                json.append('"');
+            } else {
+                json.append("null");
+            }
+        }
+        json.append('}');
+        if (json != out) {
+            out.append(json);
+        }
+    }
+
+    private static ContentProperty property(Content content, String[] path) {
+        ContentProperty property = content.getExtractedProperties();
+        for (String name : path) {
+            property = property.getChild(name);
+        }
+        return property;
+    }
+
+    /**
+     * Escapes characters into a JSON string. A property's value may be written in several pieces, so
+     * the quotes go around the call to {@link ContentProperty#writeValueTo(Appendable)}, not each append.
+     */
+    private static class JsonString implements Appendable {
+        private final StringBuilder json;
+
+        JsonString(StringBuilder json) {
+            this.json = json;
+        }
+
+        public Appendable append(CharSequence chars) {
+            return append(chars, 0, chars.length());
+        }
+
+        public Appendable append(CharSequence chars, int start, int end) {
+            if (chars instanceof CharBuffer && ((CharBuffer) chars).hasArray()) {
+                // Usually a view of the buffered page: scan the array rather than call charAt().
+                CharBuffer buffer = (CharBuffer) chars;
+                int offset = buffer.arrayOffset() + buffer.position();
+                escape(buffer.array(), offset + start, offset + end);
+            } else {
+                escape(chars, start, end);
+            }
+            return this;
+        }
+
+        public Appendable append(char c) {
+            if (needsEscape(c)) {
+                escape(c);
+            } else {
+                json.append(c);
+            }
+            return this;
+        }
+
+        /**
+         * Copies runs of characters that need no escaping in one go.
+         */
+        private void escape(char[] chars, int start, int end) {
+            int run = start;
+            for (int i = start; i < end; i++) {
+                char c = chars[i];
+                if (needsEscape(c)) {
+                    json.append(chars, run, i - run);
+                    escape(c);
+                    run = i + 1;
+                }
+            }
+            json.append(chars, run, end - run);
+        }
+
+        private void escape(CharSequence chars, int start, int end) {
+            int run = start;
+            for (int i = start; i < end; i++) {
+                char c = chars.charAt(i);
+                if (needsEscape(c)) {
+                    json.append(chars, run, i);
+                    escape(c);
+                    run = i + 1;
+                }
+            }
+            json.append(chars, run, end);
+        }
+
+        private void escape(char c) {
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    json.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xf])
+                            .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+            }
+        }
+
+        /**
+         * The line and paragraph separators are allowed in JSON, but not in JavaScript strings.
+         */
+        private static boolean needsEscape(char c) {
+            return c < 128 ? ESCAPE[c] : c == '\u2028' || c == '\u2029';
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package org.webbitserver.sitemesh;
+
+import org.sitemesh.content.Content;
+
+import java.io.IOException;
+
+/**
+ * What to send instead of the decorated page, for requests that a {@link FragmentSelector} picks:
+ * typically just the title and body, for a client that already shows the rest of the page.
+ *
+ * <p>Implementations must be thread-safe.</p>
+ *
+ * @see PjaxFragment
+ * @see JsonFragment
+ */
+public interface PageFragment {
+
+    /**
+     * MIME type of the fragment, e.g. "text/html". Fragments are always encoded in UTF-8.
+     */
+    String getContentType();
+
+    /**
+     * Write the fragment of a page.
+     *
+     * @param content The page, parsed.
+     */
+    void writeTo(Content content, Appendable out) throws IOException;
+
+}
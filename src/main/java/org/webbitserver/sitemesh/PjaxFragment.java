@@ -0,0 +1,31 @@
+package org.webbitserver.sitemesh;
+
+import org.sitemesh.content.Content;
+import org.sitemesh.content.ContentProperty;
+
+import java.io.IOException;
+
+/**
+ * The fragment jquery-pjax expects: the body of the page, preceded by its
+ * <code>&lt;title&gt;</code> (if it has one), which pjax applies to the document.
+ *
+ * <p>The properties are copied as they are, so this costs little more than writing the undecorated page.</p>
+ */
+public class PjaxFragment implements PageFragment {
+
+    public String getContentType() {
+        return "text/html";
+    }
+
+    public void writeTo(Content content, Appendable out) throws IOException {
+        ContentProperty properties = content.getExtractedProperties();
+        ContentProperty title = properties.getChild("title");
+        if (title.hasValue()) {
+            out.append("<title>");
+            title.writeValueTo(out);
+            out.append("</title>");
+        }
+        properties.getChild("body").writeValueTo(out);
+    }
+
+}
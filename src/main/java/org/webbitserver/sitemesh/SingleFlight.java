@@ -0,0 +1,161 @@
+package org.webbitserver.sitemesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lets only one load per key be in progress at a time. The first caller to {@link #join(String, Waiter) join}
+ * a key does the load, and {@link Load#complete(Object, Throwable) completes} it; anyone who joins while
+ * it is in progress waits for that, rather than loading the same thing again.
+ *
+ * <p>A load that has not completed by its deadline (if there is one) is abandoned: everyone waiting for
+ * it, and whoever was doing it, is told it failed with a {@link TimeoutException}, and the next caller to
+ * join the key starts a new load. If the abandoned load completes after all, that is ignored.</p>
+ *
+ * <p>Waiters are told on the thread that completes (or abandons) the load, so they should hand off
+ * anything slow.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class SingleFlight<T> {
+
+    /**
+     * Told the outcome of a load that was joined while in progress.
+     */
+    interface Waiter<T> {
+        /**
+         * @param value   The value loaded, if the load succeeded.
+         * @param failure Why the load failed, or null if it succeeded.
+         */
+        void done(T value, Throwable failure);
+    }
+
+    /**
+     * A load in progress, which whoever started it must complete.
+     */
+    static class Load<T> {
+        private final SingleFlight<T> owner;
+        private final String key;
+        // Whoever is doing the load, to be told if it is abandoned.
+        private final Waiter<T> loader;
+        private final List<Waiter<T>> waiters = new ArrayList<Waiter<T>>();
+        private volatile ScheduledFuture<?> deadline;
+        private volatile boolean abandoned;
+
+        private Load(SingleFlight<T> owner, String key, Waiter<T> loader) {
+            this.owner = owner;
+            this.key = key;
+            this.loader = loader;
+        }
+
+        /**
+         * Whether the load missed its deadline, so that completing it now would be ignored.
+         */
+        boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * Complete the load, and tell everyone waiting for it. The next caller to join the key
+         * starts a new load.
+         */
+        void complete(T value, Throwable failure) {
+            owner.complete(this, value, failure, false);
+        }
+    }
+
+    // Shared by all instances: deadlines only need to be run, and are cancelled once their load completes.
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "sitemesh-load-deadlines");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Map<String, Load<T>> inProgress = new HashMap<String, Load<T>>();
+    private volatile long timeoutMillis;
+
+    /**
+     * @param timeoutMillis How long a load may take before it is abandoned, or zero for no deadline.
+     */
+    SingleFlight(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Set how long loads started from now on may take before they are abandoned, or zero for no deadline.
+     */
+    void timeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Join the load for a key.
+     *
+     * @param waiter Told the outcome of the load in progress. If the caller does the load itself, it is only
+     *               told if the load is abandoned.
+     * @return The load, if none was in progress, in which case the caller must do it, and then
+     *         {@link Load#complete(Object, Throwable) complete} it. Otherwise null, and the waiter will be
+     *         told when the load in progress completes, or is abandoned.
+     */
+    Load<T> join(String key, Waiter<T> waiter) {
+        final Load<T> load;
+        synchronized (this) {
+            Load<T> current = inProgress.get(key);
+            if (current != null) {
+                current.waiters.add(waiter);
+                return null;
+            }
+            load = new Load<T>(this, key, waiter);
+            inProgress.put(key, load);
+        }
+        final long timeout = timeoutMillis;
+        if (timeout > 0) {
+            load.deadline = DEADLINES.schedule(new Runnable() {
+                public void run() {
+                    complete(load, null, new TimeoutException(
+                            "Abandoned load of " + load.key + " after " + timeout + "ms"), true);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        return load;
+    }
+
+    private void complete(Load<T> load, T value, Throwable failure, boolean abandon) {
+        synchronized (this) {
+            if (inProgress.get(load.key) != load) {
+                return; // Already completed, or abandoned.
+            }
+            inProgress.remove(load.key);
+            load.abandoned = abandon;
+        }
+        ScheduledFuture<?> deadline = load.deadline;
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        for (Waiter<T> waiter : load.waiters) {
+            waiter.done(value, failure);
+        }
+        if (abandon) {
+            load.loader.done(null, failure);
+        }
+    }
+
+    /**
+     * Number of loads in progress.
+     */
+    synchronized int size() {
+        return inProgress.size();
+    }
+
+}
@@ -8,123 +8,994 @@ import org.webbitserver.HttpControl;
 import org.webbitserver.HttpHandler;
 import org.webbitserver.HttpRequest;
 import org.webbitserver.HttpResponse;
-import org.webbitserver.sitemesh.contentbuffer.BasicSelector;
-import org.webbitserver.sitemesh.contentbuffer.BufferedResponse;
+import org.webbitserver.sitemesh.contentbuffer.BufferLimits;
+import org.webbitserver.sitemesh.contentbuffer.BufferListener;
+import org.webbitserver.sitemesh.contentbuffer.ByteBufferPool;
 import org.webbitserver.sitemesh.contentbuffer.ContentBufferingHandler;
+import org.webbitserver.sitemesh.contentbuffer.ContentCoding;
+import org.webbitserver.sitemesh.contentbuffer.EntityTags;
+import org.webbitserver.sitemesh.contentbuffer.ResponseContentWriter;
+import org.webbitserver.sitemesh.contentbuffer.SegmentedBuffer;
 import org.webbitserver.sitemesh.contentbuffer.Selector;
-import org.webbitserver.wrapper.HttpResponseWrapper;
+import org.webbitserver.sitemesh.metrics.SiteMeshMetrics;
 
 import java.io.IOException;
 import java.nio.CharBuffer;
-import java.util.Arrays;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.webbitserver.sitemesh.metrics.SiteMeshMetrics.Outcome;
+import static org.webbitserver.sitemesh.metrics.SiteMeshMetrics.Stage;
+
+/**
+ * {@link HttpHandler} that buffers the responses of the handlers after it, and merges them into decorators.
+ *
+ * <p>Optional features are configured with the chainable setters, e.g.
+ * <code>new SiteMeshHandler(selector, contentProcessor, routes).decoratorCache(cache).compression(true)</code>,
+ * although most applications should use {@link SiteMeshHandlerBuilder} instead.</p>
+ */
 public class SiteMeshHandler extends ContentBufferingHandler {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Default for {@link #decoratorFetchTimeout(long)}: 10 seconds.
+     */
+    public static final long DEFAULT_DECORATOR_FETCH_TIMEOUT = 10000;
+
+    // Paths routed through a PathMapper that are remembered.
+    private static final int DEFAULT_ROUTE_CACHE_SIZE = 1024;
+
     private final ContentProcessor contentProcessor;
-    private final PathMapper<HttpHandler[]> decorators;
+    private final DecoratorRoutes routes;
+    private DecoratorCache decoratorCache;
+    private int outputChunkSize;
+    private Executor processingExecutor;
+    private DecoratedPageCache pageCache;
+    private boolean compression;
+    private boolean compiledDecorators;
+    private boolean streamingExtraction;
+    private boolean decoratorPrefetch;
+    private FragmentSelector fragmentSelector;
+    private ContentCache contentCache;
+    // Decorators being fetched into the cache, and pages being parsed into the content cache. A parse
+    // always completes, but a decorator handler may never end its response.
+    private final SingleFlight<CharBuffer> decoratorFetches = new SingleFlight<CharBuffer>(DEFAULT_DECORATOR_FETCH_TIMEOUT);
+    private final SingleFlight<Void> contentParses = new SingleFlight<Void>(0);
 
     public SiteMeshHandler(Selector selector,
                            ContentProcessor contentProcessor,
-                           PathMapper<HttpHandler[]> decorators) {
+                           DecoratorRoutes routes) {
         super(selector);
         this.contentProcessor = contentProcessor;
-        this.decorators = decorators;
+        this.routes = routes;
+    }
+
+    /**
+     * Choose decorators with a {@link PathMapper}, which is consulted for each path not recently routed.
+     * Prefer {@link #SiteMeshHandler(Selector, ContentProcessor, DecoratorRoutes)}, whose patterns are compiled.
+     */
+    public SiteMeshHandler(Selector selector,
+                           ContentProcessor contentProcessor,
+                           PathMapper<HttpHandler[]> decorators) {
+        this(selector, contentProcessor, new DecoratorRoutes(decorators, DEFAULT_ROUTE_CACHE_SIZE));
+    }
+
+    /**
+     * Cache for decorators served by a {@link DecoratorPathHandler}. Null (the default) fetches
+     * decorators on every request.
+     */
+    public SiteMeshHandler decoratorCache(DecoratorCache decoratorCache) {
+        this.decoratorCache = decoratorCache;
+        return this;
+    }
+
+    /**
+     * How long, in milliseconds, a decorator may take to fetch into the {@link #decoratorCache(DecoratorCache)
+     * cache}. After that, the request fetching it and any requests waiting for it give up on it and write
+     * their pages undecorated, and the next request fetches the decorator again. Zero waits for ever. The default is
+     * {@link #DEFAULT_DECORATOR_FETCH_TIMEOUT}.
+     */
+    public SiteMeshHandler decoratorFetchTimeout(long decoratorFetchTimeout) {
+        decoratorFetches.timeout(decoratorFetchTimeout);
+        return this;
+    }
+
+    /**
+     * If greater than zero, the decorated page is encoded and written to the response in chunks of
+     * this many bytes. Otherwise (the default) it is written as a single String.
+     */
+    public SiteMeshHandler outputChunkSize(int outputChunkSize) {
+        this.outputChunkSize = outputChunkSize;
+        return this;
+    }
+
+    /**
+     * Executor that parses content and merges decorators. Responses are always written back on the
+     * Webbit thread, through {@link HttpControl#execute(Runnable)}. Null (the default) does everything
+     * on the Webbit thread.
+     */
+    public SiteMeshHandler processingExecutor(Executor processingExecutor) {
+        this.processingExecutor = processingExecutor;
+        return this;
+    }
+
+    /**
+     * Cache of decorated pages. If set, responses are also given entity tags, and conditional requests
+     * may be answered with 304 Not Modified. Null by default.
+     */
+    public SiteMeshHandler pageCache(DecoratedPageCache pageCache) {
+        this.pageCache = pageCache;
+        entityTags(pageCache != null);
+        return this;
+    }
+
+    /**
+     * Whether to compress decorated pages with gzip or deflate, when the client accepts it. Off by default.
+     */
+    public SiteMeshHandler compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Whether to compile the outermost decorator into a {@link DecoratorTemplate}, and render pages
+     * from that instead of running the {@link ContentProcessor} over the decorator. Decorators that
+     * cannot be compiled are processed as usual. Off by default.
+     */
+    public SiteMeshHandler compiledDecorators(boolean compiledDecorators) {
+        this.compiledDecorators = compiledDecorators;
+        return this;
+    }
+
+    /**
+     * Whether to extract the properties of pages with a {@link ContentExtractor} as they are buffered,
+     * rather than parsing them with the {@link ContentProcessor} once they are complete. Pages the extractor
+     * cannot handle are parsed as usual. Only use this when the content processor uses the default tag rules.
+     * Off by default.
+     */
+    public SiteMeshHandler streamingExtraction(boolean streamingExtraction) {
+        this.streamingExtraction = streamingExtraction;
+        return this;
+    }
+
+    /**
+     * Whether to request the decorators as soon as the page starts being buffered, rather than once
+     * it is complete, so they are ready (and compiled, with {@link #compiledDecorators(boolean)}) by the
+     * time a slow page ends. If the page turns out not to be decorated, the decorators are discarded.
+     * Off by default.
+     */
+    public SiteMeshHandler decoratorPrefetch(boolean decoratorPrefetch) {
+        this.decoratorPrefetch = decoratorPrefetch;
+        return this;
+    }
+
+    /**
+     * Decides which requests are sent a {@link PageFragment} (e.g. just the title and body) instead of the
+     * decorated page. Decorators are not fetched for those requests. Null (the default) decorates every page.
+     */
+    public SiteMeshHandler fragmentSelector(FragmentSelector fragmentSelector) {
+        this.fragmentSelector = fragmentSelector;
+        return this;
+    }
+
+    /**
+     * Cache of parsed pages, so that a page that has not changed since it was last decorated is not parsed
+     * again. Null (the default) parses every page.
+     */
+    public SiteMeshHandler contentCache(ContentCache contentCache) {
+        this.contentCache = contentCache;
+        return this;
+    }
+
+    @Override
+    public SiteMeshHandler bufferPool(ByteBufferPool bufferPool) {
+        super.bufferPool(bufferPool);
+        return this;
+    }
+
+    @Override
+    public SiteMeshHandler bufferLimits(BufferLimits bufferLimits) {
+        super.bufferLimits(bufferLimits);
+        return this;
+    }
+
+    @Override
+    public SiteMeshHandler entityTags(boolean entityTags) {
+        super.entityTags(entityTags);
+        return this;
+    }
+
+    @Override
+    public SiteMeshHandler conditionalPassthrough(boolean conditionalPassthrough) {
+        super.conditionalPassthrough(conditionalPassthrough);
+        return this;
+    }
+
+    @Override
+    public SiteMeshHandler metrics(SiteMeshMetrics metrics) {
+        super.metrics(metrics);
+        return this;
+    }
+
+    /**
+     * A hash of the version of each decorator for the request, and the content coding, as for
+     * {@link #entityTag(WebbitSiteMeshContext, HttpHandler[], ContentCoding)}. Fragments depend only on
+     * their content type.
+     */
+    @Override
+    protected String decorationVersion(HttpRequest httpRequest) {
+        HttpHandler[] decoratorHandlers = routes.route(WebbitSiteMeshContext.getRequestPath(httpRequest)).getDecorators();
+        if (decoratorHandlers.length == 0) {
+            return "";
+        }
+        ContentCoding coding = contentCoding(httpRequest);
+        PageFragment fragment = fragment(httpRequest);
+        long hash = EntityTags.INITIAL_HASH;
+        if (fragment != null) {
+            hash = EntityTags.hash(hash, fragment.getContentType());
+        } else {
+            Long hashed = hashDecoratorVersions(hash, decoratorHandlers);
+            if (hashed == null) {
+                return null;
+            }
+            hash = hashed;
+        }
+        String version = Long.toHexString(hash);
+        return coding.token() == null ? version : version + '-' + coding.token();
+    }
+
+    @Override
+    protected BufferListener bufferListener(HttpRequest httpRequest, HttpResponse httpResponse, HttpControl httpControl) {
+        if (!streamingExtraction && !decoratorPrefetch) {
+            return null;
+        }
+        WebbitSiteMeshContext context = createContext(httpRequest, httpControl, contentProcessor);
+        HttpHandler[] decoratorHandlers = routes.route(context.getPath()).getDecorators();
+        if (decoratorHandlers.length == 0) {
+            return null;
+        }
+        boolean prefetch = decoratorPrefetch && fragment(httpRequest) == null;
+        if (!streamingExtraction && !prefetch) {
+            return null;
+        }
+        return new PageListener(
+                streamingExtraction ? new ContentExtractor() : null,
+                prefetch ? new Decoration(context, decoratorHandlers, httpRequest, httpResponse, httpControl) : null);
+    }
+
+    /**
+     * Follows a page being buffered: feeds it to the {@link ContentExtractor}, and starts the {@link Decoration}
+     * once the first of it arrives. Either may be null.
+     */
+    private static class PageListener implements BufferListener {
+        final ContentExtractor extractor;
+        final Decoration decoration;
+        private boolean started;
+
+        PageListener(ContentExtractor extractor, Decoration decoration) {
+            this.extractor = extractor;
+            this.decoration = decoration;
+        }
+
+        public void buffered(CharSequence chars) {
+            if (decoration != null && !started) {
+                started = true;
+                decoration.prefetch();
+            }
+            if (extractor != null) {
+                extractor.buffered(chars);
+            }
+        }
     }
 
     protected void postProcessBuffer(HttpRequest httpRequest, HttpResponse httpResponse, HttpControl httpControl, CharBuffer buffer)
             throws IOException {
+        postProcessBuffer(httpRequest, httpResponse, httpControl, buffer, null);
+    }
+
+    @Override
+    protected void postProcessBuffer(HttpRequest httpRequest, HttpResponse httpResponse, HttpControl httpControl, CharBuffer buffer,
+                                     BufferListener listener) throws IOException {
 
         if (buffer == null) {
             httpResponse.end();
             return;
         }
 
-        WebbitSiteMeshContext context = createContext(httpRequest, httpControl, contentProcessor);
+        PageListener page = listener instanceof PageListener ? (PageListener) listener : null;
+        Decoration decoration = page == null ? null : page.decoration;
+        WebbitSiteMeshContext context = decoration != null
+                ? decoration.context : createContext(httpRequest, httpControl, contentProcessor);
+        HttpHandler[] decoratorHandlers = decoration != null
+                ? decoration.decoratorHandlers : routes.route(context.getPath()).getDecorators();
+
+        if (decoratorHandlers.length == 0) {
+            // Nothing to decorate with.
+            writeBuffer(httpRequest, httpResponse, buffer);
+            return;
+        }
+
+        PageFragment fragment = fragment(httpRequest);
+        if (fragment != null) {
+            writeFragment(context, fragment, httpRequest, httpResponse, httpControl, buffer,
+                    page == null ? null : page.extractor);
+            return;
+        }
 
-        applyDecorator(
-                context,
-                buffer,
-                contentProcessor.build(buffer, context),
-                decorators.get(context.getPath()),
-                0,
-                httpRequest,
-                httpResponse,
-                httpControl);
+        String entityTag = null;
+        if (pageCache != null && taggable(httpResponse)) {
+            long contentHash = EntityTags.hash(EntityTags.INITIAL_HASH, httpResponse.status());
+            contentHash = EntityTags.hash(contentHash, context.getPath());
+            contentHash = EntityTags.hash(contentHash, httpResponse.charset().name());
+            context.setContentHash(EntityTags.hash(contentHash, buffer));
+            ContentCoding coding = contentCoding(httpRequest);
+            entityTag = entityTag(context, decoratorHandlers, coding);
+            if (entityTag != null) {
+                // Everything the page depends on is known: try to avoid decorating at all.
+                if (notModified(httpRequest, httpResponse, entityTag)) {
+                    return;
+                }
+                byte[] cached = pageCache.get(entityTag);
+                if (cached != null) {
+                    metrics().outcome(Outcome.PAGE_CACHE_HIT);
+                    contentEncodingHeaders(httpResponse, coding);
+                    httpResponse.content(cached).end();
+                    return;
+                }
+            }
+        }
 
+        if (decoration == null) {
+            decoration = new Decoration(context, decoratorHandlers, httpRequest, httpResponse, httpControl);
+        }
+        decoration.start(buffer, page == null ? null : page.extractor, entityTag);
     }
 
-    private void applyDecorator(final WebbitSiteMeshContext context, final CharBuffer original, final Content content,
-                                final HttpHandler[] decoratorHandlers, final int currentDecorator,
-                                final HttpRequest httpRequest, final HttpResponse httpResponse, final HttpControl httpControl) {
-        if (content == null) {
+    private PageFragment fragment(HttpRequest httpRequest) {
+        return fragmentSelector == null ? null : fragmentSelector.fragment(httpRequest);
+    }
 
-            // Content could not be parsed: Write original content
-            httpResponse.content(original.toString()).end();
-        } else {
+    /**
+     * Parse the page, and send a fragment of it instead of decorating it.
+     */
+    private void writeFragment(final WebbitSiteMeshContext context, final PageFragment fragment,
+                               final HttpRequest httpRequest, final HttpResponse httpResponse, final HttpControl httpControl,
+                               final CharBuffer original, final ContentExtractor extractor) {
+        final ContentCoding coding = contentCoding(httpRequest);
+        parse(context, httpRequest, httpResponse, httpControl, original, extractor, new Parsed() {
+            public void parsed(Content content) {
+                final byte[] body;
+                try {
+                    if (content == null) {
+                        body = null;
+                    } else {
+                        // Encoded straight from the page's buffers, as templates are rendered.
+                        SegmentedBuffer encoded = new SegmentedBuffer(bufferPool());
+                        fragment.writeTo(content, encoded.appender(UTF8));
+                        body = coding.compress(encoded.drain(UTF8));
+                    }
+                } catch (IOException e) {
+                    error(httpResponse, httpControl, e);
+                    return;
+                }
+                respond(httpResponse, httpControl, new Runnable() {
+                    public void run() {
+                        if (body == null) {
+                            // Content could not be parsed: Write original content
+                            writeBuffer(httpRequest, httpResponse, original);
+                            return;
+                        }
+                        contentEncodingHeaders(httpResponse, coding);
+                        httpResponse.header("Content-Type", (String) null)
+                                .header("Content-Type", fragment.getContentType() + "; charset=UTF-8");
+                        metrics().outcome(Outcome.FRAGMENT);
+                        httpResponse.content(body).end();
+                    }
+                });
+            }
+
+            public void failed(Throwable error) {
+                error(httpResponse, httpControl, error);
+            }
+        });
+    }
+
+    /**
+     * Decoration of one page. All decorators are requested at once, each into its own buffer, while the
+     * content is parsed (or, with prefetching, while it is still being buffered). Once everything has
+     * arrived, the decorators are merged in order. If any decorator cannot be rendered, the original content
+     * is written instead.
+     */
+    private class Decoration {
+
+        final WebbitSiteMeshContext context;
+        final HttpHandler[] decoratorHandlers;
+        private final AtomicBoolean fetching = new AtomicBoolean();
+        private CharBuffer original;
+        private ContentExtractor extractor;
+        // The ETag the response has already been given, if any.
+        private String entityTag;
+        private final CharBuffer[] decorators;
+        private final DecoratorTemplate[] templates;
+        // Whether templates[i] has been compiled, even if that failed.
+        private final boolean[] compiled;
+        private final HttpRequest httpRequest;
+        private final HttpResponse httpResponse;
+        private final HttpControl httpControl;
+        // Decorators still to arrive, plus one for the content.
+        private final AtomicInteger pending;
+        private volatile boolean decoratorFailed;
+        private Content content;
+        private Throwable contentError;
+
+        Decoration(WebbitSiteMeshContext context, HttpHandler[] decoratorHandlers,
+                   HttpRequest httpRequest, HttpResponse httpResponse, HttpControl httpControl) {
+            this.context = context;
+            this.decoratorHandlers = decoratorHandlers;
+            this.decorators = new CharBuffer[decoratorHandlers.length];
+            this.templates = new DecoratorTemplate[decoratorHandlers.length];
+            this.compiled = new boolean[decoratorHandlers.length];
+            this.httpRequest = httpRequest;
+            this.httpResponse = httpResponse;
+            this.httpControl = httpControl;
+            this.pending = new AtomicInteger(decoratorHandlers.length + 1);
+        }
 
-            // Apply decorator...
-            HttpHandler decoratorHandler = decoratorHandlers[currentDecorator];
+        /**
+         * Request the decorators on the Webbit thread, ahead of the content. The page may be written
+         * from another thread.
+         */
+        void prefetch() {
+            httpControl.execute(new Runnable() {
+                public void run() {
+                    fetchAll();
+                }
+            });
+        }
+
+        /**
+         * The content is complete: parse it, and merge it once the decorators have arrived.
+         *
+         * @param entityTag The ETag the response has been given, or null if it has none yet.
+         */
+        void start(CharBuffer original, ContentExtractor extractor, String entityTag) {
+            this.original = original;
+            this.extractor = extractor;
+            this.entityTag = entityTag;
+            fetchAll();
+            parse(context, httpRequest, httpResponse, httpControl, original, extractor, new Parsed() {
+                public void parsed(Content parsed) {
+                    content = parsed;
+                    arrived();
+                }
+
+                public void failed(Throwable error) {
+                    contentError = error;
+                    arrived();
+                }
+            });
+        }
+
+        private void fetchAll() {
+            if (fetching.compareAndSet(false, true)) {
+                for (int i = 0; i < decoratorHandlers.length; i++) {
+                    fetch(i);
+                }
+            }
+        }
+
+        private void fetch(final int index) {
+            HttpHandler decoratorHandler = decoratorHandlers[index];
+            final long start = System.nanoTime();
+            if (decoratorHandler instanceof DecoratorFile) {
+                // Read from the file (usually already decoded in memory), without dispatching a request.
+                DecoratorFile decoratorFile = (DecoratorFile) decoratorHandler;
+                CharBuffer decorator = decoratorFile.decorator();
+                if (decorator == null) {
+                    decoratorFailed = true;
+                } else {
+                    decorators[index] = decorator;
+                    if (compiledDecorators) {
+                        templates[index] = decoratorFile.template();
+                        compiled[index] = true;
+                    }
+                }
+                metrics().stage(Stage.DECORATOR_FETCH, System.nanoTime() - start);
+                arrived();
+                return;
+            }
+            final String cacheKey = decoratorCacheKey(decoratorHandler);
+            DecoratorFetch decoratorResponse = new DecoratorFetch(index, cacheKey, start);
+            if (cacheKey != null) {
+                CharBuffer cached = decoratorCache.get(cacheKey);
+                metrics().decoratorCache(cached != null);
+                if (cached != null) {
+                    // Decorator is already in memory: skip fetching it.
+                    decorators[index] = cached;
+                    if (compiledDecorators) {
+                        templates[index] = decoratorCache.template(cacheKey);
+                        compiled[index] = true;
+                    }
+                    arrived();
+                    return;
+                }
+                decoratorResponse.load = decoratorFetches.join(cacheKey, decoratorResponse);
+                if (decoratorResponse.load == null) {
+                    return; // Another request is fetching it already.
+                }
+            }
             try {
-                Selector selector = new BasicSelector() {
-                    @Override
-                    public boolean shouldBufferForContentType(String contentType, String mimeType, String encoding) {
-                        return true; // We know we should buffer.
+                decoratorHandler.handleHttpRequest(DecoratorResponse.request(httpRequest), decoratorResponse,
+                        decoratorResponse.control(httpControl));
+            } catch (Exception e) {
+                decoratorResponse.fail();
+            }
+        }
+
+        /**
+         * Fetches one decorator, from its handler or (if it is cached) from another request fetching it
+         * into the cache. Whichever happens first counts: a handler that ends its response after the fetch
+         * was abandoned is ignored.
+         */
+        private class DecoratorFetch extends DecoratorResponse implements SingleFlight.Waiter<CharBuffer> {
+
+            private final int index;
+            private final String cacheKey;
+            private final long start;
+            // The fetch into the cache that this request is doing, if any.
+            volatile SingleFlight.Load<CharBuffer> load;
+
+            DecoratorFetch(int index, String cacheKey, long start) {
+                super(httpResponse, bufferPool());
+                this.index = index;
+                this.cacheKey = cacheKey;
+                this.start = start;
+            }
+
+            /**
+             * Another request has fetched the decorator, or the fetch (this request's or another's) has
+             * been abandoned.
+             */
+            public void done(final CharBuffer decorator, Throwable failure) {
+                resume(httpResponse, httpControl, new Runnable() {
+                    public void run() {
+                        complete(decorator == null ? null : decorator.duplicate());
                     }
-                };
-                decoratorHandler.handleHttpRequest(httpRequest, new BufferedResponse(selector, httpResponse) {
+                });
+            }
 
-                    {
-                        enableBuffering();
+            @Override
+            protected void fetched(CharBuffer decorator) {
+                metrics().stage(Stage.DECORATOR_FETCH, System.nanoTime() - start);
+                SingleFlight.Load<CharBuffer> load = this.load;
+                if (load != null) {
+                    if (decorator != null && !load.isAbandoned()) {
+                        decoratorCache.put(cacheKey, decorator);
                     }
+                    // A decorator that could not be rendered fails every request waiting for it.
+                    load.complete(decorator, null);
+                }
+                Decoration.this.fetched(index, cacheKey, decorator);
+            }
+        }
 
-                    @Override
-                    public HttpResponseWrapper header(String name, String value) {
-                        if (name.equalsIgnoreCase("content-type")) {
-                            return this;
+        /**
+         * A decorator has been fetched, by this request or another.
+         *
+         * @param decorator The decorator, or null if it could not be rendered.
+         */
+        private void fetched(int index, String cacheKey, CharBuffer decorator) {
+            if (decorator == null) {
+                decoratorFailed = true;
+            } else {
+                decorators[index] = decorator;
+                if (compiledDecorators && index == decorators.length - 1) {
+                    // Compile it now, which may well be before the content is complete. A cached decorator
+                    // is compiled once, for every request that fetched it at the same time.
+                    DecoratorTemplate template = cacheKey == null ? null : decoratorCache.template(cacheKey);
+                    templates[index] = template != null ? template : DecoratorTemplate.compile(decorator);
+                    compiled[index] = true;
+                }
+            }
+            arrived();
+        }
+
+        private void arrived() {
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+            if (contentError != null) {
+                error(httpResponse, httpControl, contentError);
+            } else if (content == null || decoratorFailed) {
+                // Content could not be parsed, or a decorator could not be rendered: Write original content
+                writeOriginal();
+            } else {
+                process(httpResponse, httpControl, new Runnable() {
+                    public void run() {
+                        merge();
+                    }
+                });
+            }
+        }
+
+        private void merge() {
+            Content decorated = content;
+            // The outermost decorator may be a template, which is rendered straight to bytes.
+            DecoratorTemplate template = compiledDecorators ? template(decorators.length - 1) : null;
+            int processed = template == null ? decorators.length : decorators.length - 1;
+            final byte[] page;
+            try {
+                for (int i = 0; i < processed; i++) {
+                    long start = System.nanoTime();
+                    context.setContentToMerge(decorated);
+                    decorated = contentProcessor.build(decorators[i], context);
+                    metrics().stage(Stage.DECORATOR_MERGE, System.nanoTime() - start);
+                    if (decorated == null) {
+                        writeOriginal();
+                        return;
+                    }
+                }
+                if (template == null) {
+                    page = null;
+                } else {
+                    long start = System.nanoTime();
+                    page = template.render(decorated, httpResponse.charset(), bufferPool());
+                    metrics().stage(Stage.DECORATOR_MERGE, System.nanoTime() - start);
+                }
+            } catch (IOException e) {
+                error(httpResponse, httpControl, e);
+                return;
+            }
+            final Content decoratedContent = decorated;
+            respond(httpResponse, httpControl, new Runnable() {
+                public void run() {
+                    // No more decorators to apply: Write the decorated result
+                    try {
+                        long start = System.nanoTime();
+                        metrics().outcome(Outcome.DECORATED);
+                        if (page == null) {
+                            writeDecorated(context, decoratorHandlers, entityTag, decoratedContent, httpRequest, httpResponse);
                         } else {
-                            return super.header(name, value);
+                            writeDecorated(context, decoratorHandlers, entityTag, page, httpRequest, httpResponse);
                         }
+                        metrics().stage(Stage.WRITE, System.nanoTime() - start);
+                    } catch (IOException e) {
+                        httpResponse.error(e);
                     }
+                }
+            });
+        }
 
-                    @Override
-                    protected void postProcess(CharBuffer buffer) {
-
-                        try {
-
-                            context.setContentToMerge(content);
-                            Content decoratedContent = contentProcessor.build(buffer, context);
-
-                            int nextDecorator = currentDecorator + 1;
-                            if (nextDecorator < decoratorHandlers.length) {
-                                // There are more decorators to be applied. Recurse...
-                                applyDecorator(
-                                        context,
-                                        original,
-                                        decoratedContent,
-                                        decoratorHandlers,
-                                        nextDecorator,
-                                        httpRequest,
-                                        httpResponse,
-                                        httpControl);
-                            } else {
-                                // No more decorators to apply: Write the decorated result
-                                CharSequenceList chars = new CharSequenceList();
-                                decoratedContent.getData().writeValueTo(chars);
-                                httpResponse.content(chars.toString()).end();
-                            }
+        private DecoratorTemplate template(int index) {
+            if (!compiled[index]) {
+                templates[index] = DecoratorTemplate.compile(decorators[index]);
+            }
+            return templates[index];
+        }
 
-                        } catch (IOException e) {
-                            httpResponse.error(e);
-                            return;
-                        }
+        private void writeOriginal() {
+            respond(httpResponse, httpControl, new Runnable() {
+                public void run() {
+                    writeBuffer(httpRequest, httpResponse, original);
+                }
+            });
+        }
+    }
+
+    /**
+     * Told the outcome of {@link #parse}.
+     */
+    private interface Parsed {
+        /**
+         * @param content The content, or null if it could not be parsed.
+         */
+        void parsed(Content content);
 
+        void failed(Throwable error);
+    }
+
+    /**
+     * Parse a page, or take it from the {@link ContentCache}, as CPU bound work. If another request is already
+     * parsing the same version of the page into the cache, wait for that, and then take it from the cache.
+     */
+    private void parse(final WebbitSiteMeshContext context, final HttpRequest httpRequest, final HttpResponse httpResponse,
+                       final HttpControl httpControl, final CharBuffer original, final ContentExtractor extractor,
+                       final Parsed parsed) {
+        process(httpResponse, httpControl, new Runnable() {
+            public void run() {
+                final long start = System.nanoTime();
+                final String uri = httpRequest.uri();
+                final String validator = contentValidator(context, httpRequest, httpResponse);
+                Content content = validator == null ? null : contentCache.get(uri, validator);
+                if (content != null) {
+                    metrics().stage(Stage.CONTENT_PARSE, System.nanoTime() - start);
+                    parsed.parsed(content);
+                    return;
+                }
+                final String key = validator == null ? null : uri + ' ' + validator;
+                final SingleFlight.Load<Void> load = key == null ? null : contentParses.join(key, new SingleFlight.Waiter<Void>() {
+                    public void done(Void value, final Throwable failure) {
+                        resume(httpResponse, httpControl, new Runnable() {
+                            public void run() {
+                                if (failure != null) {
+                                    parsed.failed(failure);
+                                    return;
+                                }
+                                Content content = contentCache.get(uri, validator);
+                                if (content == null) {
+                                    // Not cached after all, e.g. it could not be parsed, or was too big.
+                                    try {
+                                        content = build(context, original, extractor);
+                                    } catch (IOException e) {
+                                        parsed.failed(e);
+                                        return;
+                                    }
+                                }
+                                metrics().stage(Stage.CONTENT_PARSE, System.nanoTime() - start);
+                                parsed.parsed(content);
+                            }
+                        });
                     }
-                }, httpControl);
-            } catch (Exception e) {
-                httpResponse.error(new IOException("Could not process decorator", e).fillInStackTrace());
+                });
+                if (key != null && load == null) {
+                    return; // Another request is parsing it already.
+                }
+                try {
+                    content = build(context, original, extractor);
+                    if (content != null && key != null) {
+                        // Before merging, which adds to the content's properties.
+                        contentCache.put(uri, validator, content);
+                    }
+                } catch (IOException e) {
+                    if (load != null) {
+                        load.complete(null, e);
+                    }
+                    parsed.failed(e);
+                    return;
+                } catch (RuntimeException e) {
+                    if (load != null) {
+                        load.complete(null, e);
+                    }
+                    throw e;
+                }
+                if (load != null) {
+                    load.complete(null, null);
+                }
+                metrics().stage(Stage.CONTENT_PARSE, System.nanoTime() - start);
+                parsed.parsed(content);
+            }
+        });
+    }
+
+    /**
+     * @return The content, or null if it could not be parsed.
+     */
+    private Content build(WebbitSiteMeshContext context, CharBuffer original, ContentExtractor extractor) throws IOException {
+        // Usually the content was extracted while it was buffered, leaving nothing to parse.
+        Content content = extractor == null ? null : extractor.extract(original);
+        if (content == null) {
+            content = contentProcessor.build(original, context);
+        }
+        return content;
+    }
+
+    /**
+     * What identifies the version of a page for the {@link ContentCache}: the validator of the upstream
+     * response, or else of the file it was served from, along with the charset it was decoded in.
+     *
+     * @return The validator, or null if the page should not be cached.
+     */
+    private String contentValidator(WebbitSiteMeshContext context, HttpRequest httpRequest, HttpResponse httpResponse) {
+        if (contentCache == null) {
+            return null;
+        }
+        Object validator = httpRequest.data(VALIDATOR_KEY);
+        if (validator == null) {
+            validator = contentCache.fileValidator(context.getPath());
+            if (validator == null) {
+                return null;
+            }
+        }
+        return httpResponse.charset().name() + ' ' + validator;
+    }
+
+    /**
+     * Run CPU bound work (parsing and merging): on the processing executor if there is one,
+     * otherwise immediately on the current thread.
+     */
+    private void process(HttpResponse httpResponse, HttpControl httpControl, Runnable work) {
+        if (processingExecutor == null) {
+            work.run();
+            return;
+        }
+        try {
+            processingExecutor.execute(guard(httpResponse, httpControl, work));
+        } catch (RejectedExecutionException e) {
+            // Executor is saturated or shut down: do the work here rather than drop the request.
+            work.run();
+        }
+    }
+
+    /**
+     * Continue a request that was waiting for another to fetch or parse something, without holding up the
+     * one that did: on the processing executor if there is one, otherwise as a separate task on the Webbit thread.
+     */
+    private void resume(HttpResponse httpResponse, HttpControl httpControl, Runnable work) {
+        if (processingExecutor == null) {
+            httpControl.execute(guard(httpResponse, httpControl, work));
+        } else {
+            process(httpResponse, httpControl, work);
+        }
+    }
+
+    /**
+     * Continue with work that touches the response (or dispatches to other handlers). When processing
+     * is offloaded, this hands back to the Webbit thread.
+     */
+    private void respond(HttpResponse httpResponse, HttpControl httpControl, Runnable work) {
+        if (processingExecutor == null) {
+            work.run();
+        } else {
+            httpControl.execute(work);
+        }
+    }
+
+    private void error(final HttpResponse httpResponse, HttpControl httpControl, final Throwable error) {
+        respond(httpResponse, httpControl, new Runnable() {
+            public void run() {
+                httpResponse.error(error);
+            }
+        });
+    }
+
+    private Runnable guard(final HttpResponse httpResponse, final HttpControl httpControl, final Runnable work) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    work.run();
+                } catch (RuntimeException e) {
+                    error(httpResponse, httpControl, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Write a decorated page, and end the response.
+     *
+     * @param entityTag The ETag the response has already been given, or null if it has none yet.
+     */
+    private void writeDecorated(WebbitSiteMeshContext context, HttpHandler[] decoratorHandlers, String entityTag,
+                                Content decoratedContent, HttpRequest httpRequest, HttpResponse httpResponse)
+            throws IOException {
+        ContentCoding coding = contentCoding(httpRequest);
+        contentEncodingHeaders(httpResponse, coding);
+        entityTag = pageEntityTag(context, decoratorHandlers, entityTag, coding, httpResponse);
+        if (entityTag == null) {
+            writeContent(decoratedContent, coding, httpResponse);
+            return;
+        }
+        // Keep the encoded (and compressed) page, so the next request for it has nothing to do.
+        byte[] page = coding.compress(toString(decoratedContent).getBytes(httpResponse.charset()));
+        pageCache.put(entityTag, page);
+        httpResponse.content(page).end();
+    }
+
+    private void writeDecorated(WebbitSiteMeshContext context, HttpHandler[] decoratorHandlers, String entityTag,
+                                byte[] page, HttpRequest httpRequest, HttpResponse httpResponse)
+            throws IOException {
+        ContentCoding coding = contentCoding(httpRequest);
+        contentEncodingHeaders(httpResponse, coding);
+        page = coding.compress(page);
+        entityTag = pageEntityTag(context, decoratorHandlers, entityTag, coding, httpResponse);
+        if (entityTag != null) {
+            pageCache.put(entityTag, page);
+        }
+        httpResponse.content(page).end();
+    }
+
+    /**
+     * Entity tag to cache a decorated page under. If the response was not given one before the page was
+     * decorated (as a decorator's version was not known yet), it is given one now.
+     *
+     * @param entityTag The ETag the response has already been given, or null if it has none yet.
+     * @return The entity tag, or null if the page should not be cached.
+     */
+    private String pageEntityTag(WebbitSiteMeshContext context, HttpHandler[] decoratorHandlers, String entityTag,
+                                 ContentCoding coding, HttpResponse httpResponse) {
+        if (pageCache == null || entityTag != null || !taggable(httpResponse)) {
+            return entityTag;
+        }
+        entityTag = entityTag(context, decoratorHandlers, coding);
+        if (entityTag != null) {
+            httpResponse.header("ETag", entityTag);
+        }
+        return entityTag;
+    }
+
+    private void writeContent(Content content, ContentCoding coding, HttpResponse httpResponse) throws IOException {
+        if (outputChunkSize > 0) {
+            ResponseContentWriter writer = new ResponseContentWriter(httpResponse, httpResponse.charset(), outputChunkSize, coding);
+            content.getData().writeValueTo(writer);
+            writer.flush();
+            httpResponse.end();
+        } else if (coding == ContentCoding.IDENTITY) {
+            httpResponse.content(toString(content)).end();
+        } else {
+            httpResponse.content(coding.compress(toString(content).getBytes(httpResponse.charset()))).end();
+        }
+    }
+
+    private String toString(Content content) throws IOException {
+        CharSequenceList chars = new CharSequenceList();
+        content.getData().writeValueTo(chars);
+        return chars.toString();
+    }
+
+    private ContentCoding contentCoding(HttpRequest httpRequest) {
+        return compression ? ContentCoding.negotiate(httpRequest) : ContentCoding.IDENTITY;
+    }
+
+    private void contentEncodingHeaders(HttpResponse httpResponse, ContentCoding coding) {
+        if (compression) {
+            httpResponse.header("Vary", "Accept-Encoding");
+        }
+        if (coding.token() != null) {
+            httpResponse.header("Content-Encoding", coding.token());
+        }
+    }
+
+    /**
+     * Entity tag of a decorated page: a hash of the content (including its status, path and charset) and
+     * the version of each decorator.
+     *
+     * @return The entity tag, or null if the version of a decorator is not known.
+     */
+    private String entityTag(WebbitSiteMeshContext context, HttpHandler[] decoratorHandlers, ContentCoding coding) {
+        Long hash = hashDecoratorVersions(context.getContentHash(), decoratorHandlers);
+        return hash == null ? null : EntityTags.format(hash, coding);
+    }
+
+    /**
+     * Add the version of each decorator to a hash. Only decorators in the {@link DecoratorCache}, and
+     * {@link DecoratorFile files}, have a known version. Any other decorator may change (or differ from
+     * one request to the next) without notice, so a page decorated with one has no version at all.
+     *
+     * @return The hash, or null if a decorator is not cached or read from a file, has not been loaded yet,
+     *         or its file cannot be read.
+     */
+    private Long hashDecoratorVersions(long hash, HttpHandler[] decoratorHandlers) {
+        for (HttpHandler decoratorHandler : decoratorHandlers) {
+            long version;
+            if (decoratorHandler instanceof DecoratorFile) {
+                version = ((DecoratorFile) decoratorHandler).version();
+            } else {
+                String cacheKey = decoratorCacheKey(decoratorHandler);
+                if (cacheKey == null) {
+                    return null;
+                }
+                version = decoratorCache.version(cacheKey);
             }
+            if (version == 0) {
+                return null;
+            }
+            hash = EntityTags.hash(hash, version);
+        }
+        return hash;
+    }
 
+    /**
+     * Key for the {@link DecoratorCache}, or null if this decorator should not be cached.
+     */
+    private String decoratorCacheKey(HttpHandler decoratorHandler) {
+        if (decoratorCache != null && decoratorHandler instanceof DecoratorPathHandler) {
+            return ((DecoratorPathHandler) decoratorHandler).getDecoratorPath();
         }
+        return null;
     }
 
     protected WebbitSiteMeshContext createContext(HttpRequest request, HttpControl httpControl, ContentProcessor contentProcessor) {
@@ -28,6 +28,13 @@ import org.webbitserver.handler.StringHttpHandler;
  *     .addExcludePath("/portfolio/*")
  *     .create();
  *
+ * // Keep decorators in memory, reloading them when the files change...
+ * HttpHandler siteMeshHandler = new SiteMeshHandlerBuilder()
+ *     .setDefaultHandler(new StaticFileHandler("/path/to/decorators"))
+ *     .setDecoratorCacheDirectory(new File("/path/to/decorators"))
+ *     .addDecoratorPath("/*", "/decorator.html")
+ *     .create();
+ *
  * // If you want to get a bit crazy and totally customize SiteMesh...
  * HttpHandler siteMeshHandler = new SiteMeshHandlerBuilder()
  *     .setMimeTypes("image/svg+xml")
@@ -54,10 +61,25 @@ public class SiteMeshHandlerBuilder
      * Create the SiteMesh Handler.
      */
     public HttpHandler create() {
-        return new SiteMeshHandler(
-                getSelector(),
-                getContentProcessor(),
-                getDecorators());
+        SiteMeshHandler siteMeshHandler = new SiteMeshHandler(getSelector(), getContentProcessor(), getRoutes())
+                .decoratorCache(getDecoratorCache())
+                .decoratorFetchTimeout(getDecoratorFetchTimeout())
+                .bufferPool(getBufferPool())
+                .bufferLimits(getBufferLimits())
+                .outputChunkSize(getOutputChunkSize())
+                .processingExecutor(getProcessingExecutor())
+                .contentCache(getContentCache())
+                .conditionalPassthrough(isConditionalPassthroughEnabled())
+                .compression(isCompressionEnabled())
+                .compiledDecorators(isCompiledDecoratorsEnabled())
+                .streamingExtraction(isStreamingExtractionEnabled())
+                .decoratorPrefetch(isDecoratorPrefetchEnabled())
+                .fragmentSelector(getFragmentSelector());
+        // Before the page cache and metrics are set, so the synthetic pages are neither cached nor counted.
+        warmUp(siteMeshHandler);
+        return siteMeshHandler
+                .pageCache(getPageCache())
+                .metrics(getMetrics());
     }
 
 }
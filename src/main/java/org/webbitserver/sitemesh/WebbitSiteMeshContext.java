@@ -27,6 +27,7 @@ public class WebbitSiteMeshContext extends BaseSiteMeshContext {
     private final HttpRequest request;
     private final HttpControl httpControl;
     private Content contentToMerge;
+    private long contentHash;
 
     public WebbitSiteMeshContext(HttpRequest request, HttpControl httpControl, ContentProcessor contentProcessor) {
         super(contentProcessor);
@@ -50,8 +51,30 @@ public class WebbitSiteMeshContext extends BaseSiteMeshContext {
         return getRequestPath(request);
     }
 
+    /**
+     * Path of the request, used to choose decorators: the URI without its query string or fragment,
+     * and with repeated slashes collapsed.
+     */
     public static String getRequestPath(HttpRequest request) {
-        return request.uri();
+        return normalisePath(request.uri());
+    }
+
+    static String normalisePath(String uri) {
+        if (uri == null) {
+            return "/";
+        }
+        int end = uri.length();
+        for (int i = 0; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+            }
+        }
+        String path = uri.substring(0, end);
+        while (path.indexOf("//") != -1) {
+            path = path.replace("//", "/");
+        }
+        return path.length() == 0 ? "/" : path;
     }
 
     public void setContentToMerge(Content content) {
@@ -62,4 +85,15 @@ public class WebbitSiteMeshContext extends BaseSiteMeshContext {
     public Content getContentToMerge() {
         return contentToMerge;
     }
+
+    /**
+     * Hash of the undecorated content, used for entity tags.
+     */
+    long getContentHash() {
+        return contentHash;
+    }
+
+    void setContentHash(long contentHash) {
+        this.contentHash = contentHash;
+    }
 }
@@ -0,0 +1,85 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps on how much response content {@link BufferedResponse}s may hold: a maximum for any one response,
+ * and a budget for all responses that are being buffered at the same time.
+ *
+ * <p>A response that would go over either limit stops buffering: what it already holds is written out,
+ * and the rest passes straight through to the client, undecorated.</p>
+ *
+ * <p>This class is thread-safe. Share one instance between all the handlers that should draw on the
+ * same budget.</p>
+ */
+public class BufferLimits {
+
+    /**
+     * No limits at all.
+     */
+    public static final BufferLimits UNLIMITED = new BufferLimits(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    private final int maxBufferSize;
+    private final long maxTotalBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    /**
+     * @param maxBufferSize Maximum number of bytes buffered for a single response.
+     * @param maxTotalBytes Maximum number of bytes buffered for all responses in flight.
+     */
+    public BufferLimits(int maxBufferSize, long maxTotalBytes) {
+        if (maxBufferSize <= 0 || maxTotalBytes <= 0) {
+            throw new IllegalArgumentException("Buffer limits must be positive");
+        }
+        this.maxBufferSize = maxBufferSize;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    public int maxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public long maxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    /**
+     * Number of bytes currently reserved by all responses.
+     */
+    public long totalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Reserve more bytes for a response that already holds <code>buffered</code> bytes.
+     *
+     * @return false, reserving nothing, if either limit would be exceeded.
+     */
+    public boolean reserve(int buffered, int bytes) {
+        if ((long) buffered + bytes > maxBufferSize) {
+            return false;
+        }
+        if (maxTotalBytes == Long.MAX_VALUE) {
+            return true; // Nothing to account for.
+        }
+        while (true) {
+            long current = totalBytes.get();
+            if (current + bytes > maxTotalBytes) {
+                return false;
+            }
+            if (totalBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back bytes that were reserved with {@link #reserve(int, int)}.
+     */
+    public void release(int bytes) {
+        if (maxTotalBytes != Long.MAX_VALUE && bytes > 0) {
+            totalBytes.addAndGet(-bytes);
+        }
+    }
+
+}
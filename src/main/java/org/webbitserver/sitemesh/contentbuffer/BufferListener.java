@@ -0,0 +1,16 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+/**
+ * Told about the content of a {@link BufferedResponse}, decoded, as it is buffered.
+ *
+ * @see ContentBufferingHandler#bufferListener(org.webbitserver.HttpRequest, org.webbitserver.HttpResponse, org.webbitserver.HttpControl)
+ */
+public interface BufferListener {
+
+    /**
+     * The next characters of the response. Called on whichever thread writes to the response,
+     * one call at a time.
+     */
+    void buffered(CharSequence chars);
+
+}
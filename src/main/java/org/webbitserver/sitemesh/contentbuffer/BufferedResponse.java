@@ -4,25 +4,78 @@ import org.sitemesh.webapp.contentfilter.io.HttpContentType;
 import org.webbitserver.HttpResponse;
 import org.webbitserver.wrapper.HttpResponseWrapper;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class BufferedResponse extends HttpResponseWrapper {
 
     protected abstract void postProcess(CharBuffer buffer);
 
-    private static final Charset UTF8 = Charset.forName("UTF8");
+    /**
+     * Parsed Content-Type headers. Applications only use a handful, so they are shared by all responses.
+     * Cleared if it ever grows past the limit.
+     */
+    private static final ConcurrentHashMap<String, ContentType> CONTENT_TYPES = new ConcurrentHashMap<String, ContentType>();
+    private static final int MAX_CONTENT_TYPES = 256;
 
     private final Selector selector;
+    private final ByteBufferPool bufferPool;
+    private final BufferLimits limits;
 
-    private ByteArrayOutputStream buffer = null;
+    private SegmentedBuffer buffer = null;
     private boolean bufferingWasDisabled = false;
+    private int bufferedBytes;
+    private int abortedForStatusCode;
+    private int reservedBytes;
+    private boolean overflowed;
+    private String entityTag;
+    private String lastModified;
+
+    // Set by charset(Charset) or the Content-Type header. If null, the wrapped response's is used.
+    private Charset charset;
+
+    private BufferListener listener;
+    private Charset listenerCharset;
+    private CharsetDecoder listenerDecoder;
+    // Whether bytes have been decoded since the last String.
+    private boolean listenerInBytes;
+    // Start of a multi-byte character, waiting for the rest of it.
+    private ByteBuffer listenerCarry;
 
     public BufferedResponse(Selector selector, HttpResponse response) {
+        this(selector, response, ByteBufferPool.DEFAULT);
+    }
+
+    public BufferedResponse(Selector selector, HttpResponse response, ByteBufferPool bufferPool) {
+        this(selector, response, bufferPool, BufferLimits.UNLIMITED);
+    }
+
+    public BufferedResponse(Selector selector, HttpResponse response, ByteBufferPool bufferPool, BufferLimits limits) {
         super(response);
         this.selector = selector;
+        this.bufferPool = bufferPool;
+        this.limits = limits;
+    }
+
+    /**
+     * Tell a listener about the content as it is buffered, decoded in the response's charset. The listener
+     * is dropped if buffering is disabled, or if the charset changes part way through.
+     */
+    public BufferedResponse listen(BufferListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * The listener that was told about all of the buffered content, or null if there is none.
+     * Only meaningful once the response has ended.
+     */
+    public BufferListener listener() {
+        return listener;
     }
 
     /**
@@ -33,7 +86,7 @@ public abstract class BufferedResponse extends HttpResponseWrapper {
         if (buffer != null) {
             return; // Already buffering.
         }
-        buffer = new ByteArrayOutputStream(1024);
+        buffer = new SegmentedBuffer(bufferPool);
     }
 
     /**
@@ -41,35 +94,210 @@ public abstract class BufferedResponse extends HttpResponseWrapper {
      * response.
      */
     protected void disableBuffering() {
+        if (buffer != null) {
+            buffer.release();
+        }
         buffer = null;
         bufferingWasDisabled = true;
+        listener = null;
+        releaseReservedBytes();
+    }
+
+    /**
+     * Account for bytes just added to the buffer. If that takes it over its {@link BufferLimits},
+     * write out everything buffered so far and pass the rest of the response straight through.
+     */
+    private void buffered(int sizeBefore) {
+        int added = buffer.size() - sizeBefore;
+        if (limits.reserve(sizeBefore, added)) {
+            reservedBytes += added;
+            return;
+        }
+        byte[] held = buffer.drain(charset());
+        buffer = null;
+        bufferingWasDisabled = true;
+        overflowed = true;
+        listener = null;
+        releaseReservedBytes();
+        super.content(held);
+    }
+
+    private void notifyListener(String content) {
+        if (!listening()) {
+            return;
+        }
+        // Strings are buffered as they are, so the listener gets them as they are too.
+        endOfListenerBytes();
+        listener.buffered(content);
+    }
+
+    private void notifyListener(byte[] content) {
+        if (!listening()) {
+            return;
+        }
+        if (listenerDecoder == null) {
+            listenerDecoder = listenerCharset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        listenerInBytes = true;
+        ByteBuffer in;
+        if (listenerCarry == null) {
+            in = ByteBuffer.wrap(content);
+        } else {
+            in = ByteBuffer.allocate(listenerCarry.remaining() + content.length);
+            in.put(listenerCarry).put(content).flip();
+        }
+        listener.buffered(decode(in, false));
+        if (in.hasRemaining()) {
+            listenerCarry = ByteBuffer.allocate(in.remaining());
+            listenerCarry.put(in).flip();
+        } else {
+            listenerCarry = null;
+        }
+    }
+
+    /**
+     * Whether there is a listener to tell. Content is decoded in the charset the response had when
+     * it was first written to, as {@link #end()} will decode it; if that changes, the listener is dropped.
+     */
+    private boolean listening() {
+        if (listener == null) {
+            return false;
+        }
+        if (listenerCharset == null) {
+            listenerCharset = charset();
+        } else if (!listenerCharset.equals(charset())) {
+            listener = null;
+            return false;
+        }
+        return true;
+    }
+
+    private CharBuffer decode(ByteBuffer in, boolean endOfInput) {
+        CharBuffer out = CharBuffer.allocate((int) Math.ceil(in.remaining() * (double) listenerDecoder.maxCharsPerByte()) + 16);
+        listenerDecoder.decode(in, out, endOfInput);
+        if (endOfInput) {
+            listenerDecoder.flush(out);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Decode whatever is left of a run of bytes, as {@link SegmentedBuffer#decode(Charset)} does when
+     * it gets to the end of one.
+     */
+    private void endOfListenerBytes() {
+        if (!listenerInBytes) {
+            return;
+        }
+        CharBuffer rest = decode(listenerCarry == null ? ByteBuffer.allocate(0) : listenerCarry, true);
+        if (rest.hasRemaining()) {
+            listener.buffered(rest);
+        }
+        listenerDecoder.reset();
+        listenerCarry = null;
+        listenerInBytes = false;
+    }
+
+    private void finishListening() {
+        if (listenerCharset != null && listening()) {
+            endOfListenerBytes();
+        }
+    }
+
+    private void releaseReservedBytes() {
+        limits.release(reservedBytes);
+        reservedBytes = 0;
     }
 
     @Override
     public HttpResponseWrapper header(String name, String value) {
-        String lower = name.toLowerCase();
-        if (lower.equals("content-type")) {
+        if (name.equalsIgnoreCase("content-type")) {
             setContentType(value);
             super.header(name, value);
-        } else if (buffer == null || !lower.equals("content-length")) {
+        } else if (name.equalsIgnoreCase("etag")) {
+            entityTag = value;
+            super.header(name, value);
+        } else if (name.equalsIgnoreCase("last-modified")) {
+            lastModified = value;
+            super.header(name, value);
+        } else if (buffer == null || !name.equalsIgnoreCase("content-length")) {
             super.header(name, value);
         }
         return this;
     }
 
-    private void setContentType(String type) {
-        HttpContentType httpContentType = new HttpContentType(type);
-        if (selector.shouldBufferForContentType(type, httpContentType.getType(), httpContentType.getEncoding())) {
+    /**
+     * Decide whether to buffer, from the Content-Type. If it names a charset, that becomes the
+     * charset of the response: buffered bytes are decoded in it, and the response is encoded in it.
+     */
+    protected void setContentType(String type) {
+        ContentType contentType = contentType(type);
+        if (contentType.charset != null) {
+            charset(contentType.charset);
+        }
+        if (selector.shouldBufferForContentType(type, contentType.mimeType, contentType.encoding)) {
             enableBuffering();
         } else {
             disableBuffering();
         }
     }
 
+    private static ContentType contentType(String type) {
+        ContentType contentType = CONTENT_TYPES.get(type);
+        if (contentType == null) {
+            contentType = new ContentType(new HttpContentType(type));
+            if (CONTENT_TYPES.size() >= MAX_CONTENT_TYPES) {
+                CONTENT_TYPES.clear();
+            }
+            CONTENT_TYPES.put(type, contentType);
+        }
+        return contentType;
+    }
+
+    /**
+     * A parsed Content-Type header.
+     */
+    private static class ContentType {
+        final String mimeType;
+        final String encoding;
+        // Null if there is no charset, or it is not supported.
+        final Charset charset;
+
+        ContentType(HttpContentType httpContentType) {
+            mimeType = httpContentType.getType();
+            encoding = httpContentType.getEncoding();
+            charset = charsetOrNull(encoding);
+        }
+
+        private static Charset charsetOrNull(String name) {
+            if (name == null) {
+                return null;
+            }
+            try {
+                return Charset.forName(name);
+            } catch (IllegalArgumentException e) {
+                return null; // Illegal or unsupported.
+            }
+        }
+    }
+
+    @Override
+    public HttpResponseWrapper charset(Charset charset) {
+        this.charset = charset;
+        return super.charset(charset);
+    }
+
+    @Override
+    public Charset charset() {
+        return charset != null ? charset : super.charset();
+    }
+
     @Override
     public HttpResponseWrapper header(String name, long value) {
-        String lower = name.toLowerCase();
-        if (buffer == null || !lower.equals("content-length")) {
+        if (buffer == null || !name.equalsIgnoreCase("content-length")) {
             return super.header(name, value);
         }
         return this;
@@ -89,56 +317,91 @@ public abstract class BufferedResponse extends HttpResponseWrapper {
 
     @Override
     public HttpResponseWrapper content(String content) {
-        try {
-            if (buffer == null) {
-                return super.content(content);
-            } else {
-                buffer.write(content.getBytes(charset()));
-                return this;
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (buffer == null) {
+            return super.content(content);
+        } else {
+            int sizeBefore = buffer.size();
+            buffer.write(content);
+            notifyListener(content);
+            buffered(sizeBefore);
+            return this;
         }
     }
 
     @Override
     public HttpResponseWrapper write(String content) {
-        try {
-            if (buffer == null) {
-                return super.write(content);
-            } else {
-                buffer.write(content.getBytes(UTF8));
-                return this;
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (buffer == null) {
+            return super.write(content);
+        } else {
+            int sizeBefore = buffer.size();
+            buffer.write(content);
+            notifyListener(content);
+            buffered(sizeBefore);
+            return this;
         }
     }
 
     @Override
     public HttpResponseWrapper content(byte[] content) {
-        try {
-            if (buffer == null) {
-                return super.content(content);
-            } else {
-                buffer.write(content);
-                return this;
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (buffer == null) {
+            return super.content(content);
+        } else {
+            int sizeBefore = buffer.size();
+            buffer.write(content);
+            notifyListener(content);
+            buffered(sizeBefore);
+            return this;
         }
     }
 
     @Override
     public HttpResponseWrapper end() {
-        postProcess(buffer == null ?
-                null :
-                CharBuffer.wrap(new String(buffer.toByteArray(), charset())));
+        CharBuffer decoded = null;
+        if (buffer != null) {
+            bufferedBytes = buffer.size();
+            decoded = buffer.decode(charset());
+            finishListening();
+        }
+        releaseReservedBytes();
+        postProcess(decoded);
         return this;
     }
 
+    /**
+     * Number of bytes that were buffered, once the response has ended.
+     */
+    public int bufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * What identifies the version of the content, from the ETag or Last-Modified header the upstream
+     * handler set (preferring the ETag), or null if it set neither.
+     */
+    public String validator() {
+        if (entityTag != null) {
+            return "etag " + entityTag;
+        }
+        return lastModified == null ? null : "last-modified " + lastModified;
+    }
+
+    /**
+     * The HTTP status code that buffering was aborted for, or zero if it was not aborted.
+     */
+    public int abortedForStatusCode() {
+        return abortedForStatusCode;
+    }
+
+    /**
+     * Whether the response went over its {@link BufferLimits} and was passed through instead.
+     */
+    public boolean overflowed() {
+        return overflowed;
+    }
+
     protected void abortBufferingIfBadStatusCode(int statusCode) {
         if (selector.shouldAbortBufferingForHttpStatusCode(statusCode)) {
+            abortedForStatusCode = statusCode;
             disableBuffering();
         }
     }
@@ -0,0 +1,77 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size {@link ByteBuffer} segments, used by {@link BufferedResponse} to collect
+ * content without growing and copying a single array.
+ *
+ * <p>Segments are returned to the pool once the buffered content has been decoded, so in the steady
+ * state buffering a page allocates no byte arrays at all. At most <code>maxPooledSegments</code> idle
+ * segments are retained; beyond that they are left to the garbage collector.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class ByteBufferPool {
+
+    /**
+     * Pool shared by all {@link BufferedResponse}s that are not given one explicitly: 8KB heap segments,
+     * retaining up to 2MB.
+     */
+    public static final ByteBufferPool DEFAULT = new ByteBufferPool(8192, 256, false);
+
+    private final int segmentSize;
+    private final int maxPooledSegments;
+    private final boolean direct;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param segmentSize       Size in bytes of each segment.
+     * @param maxPooledSegments Maximum number of idle segments retained by the pool.
+     * @param direct            Whether to allocate direct (off-heap) buffers.
+     */
+    public ByteBufferPool(int segmentSize, int maxPooledSegments, boolean direct) {
+        if (segmentSize < 16) {
+            throw new IllegalArgumentException("Segment size must be at least 16 bytes");
+        }
+        this.segmentSize = segmentSize;
+        this.maxPooledSegments = maxPooledSegments;
+        this.direct = direct;
+    }
+
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Take an empty segment from the pool, allocating a new one if none are available.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer segment = pool.poll();
+        if (segment == null) {
+            return direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.allocate(segmentSize);
+        }
+        pooled.decrementAndGet();
+        segment.clear();
+        return segment;
+    }
+
+    /**
+     * Return a segment to the pool. The caller must not use it afterwards.
+     */
+    public void release(ByteBuffer segment) {
+        if (segment.capacity() != segmentSize || segment.isDirect() != direct) {
+            return; // Not one of ours.
+        }
+        if (pooled.incrementAndGet() <= maxPooledSegments) {
+            pool.offer(segment);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+}
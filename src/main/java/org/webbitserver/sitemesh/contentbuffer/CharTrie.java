@@ -0,0 +1,97 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+/**
+ * Case-insensitive trie of strings, each matched either exactly or as a prefix. Matching walks the
+ * characters of the input in place, without allocating, in time proportional to the length of the
+ * input rather than the number of strings. Strings can also be added and matched back to front,
+ * which makes prefixes into suffixes.
+ *
+ * <p>Not thread-safe while strings are being added; safe to match from any number of threads
+ * once it has been built and published.</p>
+ */
+class CharTrie {
+
+    private final boolean reversed;
+    private final Node root = new Node();
+    private boolean empty = true;
+
+    /**
+     * @param reversed Whether strings are added and matched from their last character to their first.
+     */
+    CharTrie(boolean reversed) {
+        this.reversed = reversed;
+    }
+
+    /**
+     * @param prefix Whether the string matches any input that starts with it (or, reversed, ends with it),
+     *               rather than only itself.
+     */
+    void add(String string, boolean prefix) {
+        Node node = root;
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            node = node.child(fold(string.charAt(reversed ? length - 1 - i : i)), true);
+        }
+        if (prefix) {
+            node.prefix = true;
+        } else {
+            node.exact = true;
+        }
+        empty = false;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Whether any string matches the characters of the input from <code>start</code> to <code>end</code>.
+     */
+    boolean matches(CharSequence input, int start, int end) {
+        Node node = root;
+        int length = end - start;
+        for (int i = 0; i < length; i++) {
+            if (node.prefix) {
+                return true;
+            }
+            node = node.child(fold(input.charAt(reversed ? end - 1 - i : start + i)), false);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.exact || node.prefix;
+    }
+
+    private static char fold(char c) {
+        return c < 128 ? (c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c) : Character.toLowerCase(c);
+    }
+
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        boolean exact;
+        boolean prefix;
+
+        Node child(char key, boolean create) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, keys.length);
+            System.arraycopy(children, 0, newChildren, 0, keys.length);
+            Node child = new Node();
+            newKeys[keys.length] = key;
+            newChildren[keys.length] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+
+}
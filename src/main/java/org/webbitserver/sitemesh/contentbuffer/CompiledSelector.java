@@ -0,0 +1,127 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.webbitserver.HttpRequest;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * {@link Selector} compiled by a {@link SelectorBuilder}.
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class CompiledSelector extends BasicSelector {
+
+    /**
+     * A request header that must, or must not, be present (with a value, if given).
+     */
+    static class HeaderRule {
+        final String name;
+        final String value;
+        final boolean exclude;
+
+        HeaderRule(String name, String value, boolean exclude) {
+            this.name = name;
+            this.value = value;
+            this.exclude = exclude;
+        }
+
+        boolean matches(HttpRequest request) {
+            String actual = request.header(name);
+            return actual != null && (value == null || value.equalsIgnoreCase(actual.trim()));
+        }
+    }
+
+    private final Set<String> exactMimeTypes;
+    private final CharTrie mimeTypes;
+    private final CharTrie includedPrefixes;
+    private final CharTrie includedSuffixes;
+    private final CharTrie excludedPrefixes;
+    private final CharTrie excludedSuffixes;
+    private final Set<String> methods;
+    private final boolean[] statusCodes;
+    private final HeaderRule[] headerRules;
+
+    /**
+     * @param exactMimeTypes Lower case MIME types without wildcards, also in <code>mimeTypes</code>.
+     * @param methods        Upper case methods to buffer, or null for any.
+     */
+    CompiledSelector(Set<String> exactMimeTypes, CharTrie mimeTypes, CharTrie includedPrefixes, CharTrie includedSuffixes,
+                     CharTrie excludedPrefixes, CharTrie excludedSuffixes, Set<String> methods,
+                     boolean[] statusCodes, HeaderRule[] headerRules) {
+        this.exactMimeTypes = exactMimeTypes;
+        this.mimeTypes = mimeTypes;
+        this.includedPrefixes = includedPrefixes;
+        this.includedSuffixes = includedSuffixes;
+        this.excludedPrefixes = excludedPrefixes;
+        this.excludedSuffixes = excludedSuffixes;
+        this.methods = methods;
+        this.statusCodes = statusCodes;
+        this.headerRules = headerRules;
+    }
+
+    @Override
+    public boolean shouldBufferForContentType(String contentType, String mimeType, String encoding) {
+        if (mimeType == null) {
+            return false;
+        }
+        // Usually the MIME type is already lower case, and (coming from the same Content-Type) has its hash cached.
+        return exactMimeTypes.contains(mimeType) || mimeTypes.matches(mimeType, 0, mimeType.length());
+    }
+
+    @Override
+    public boolean shouldAbortBufferingForHttpStatusCode(int statusCode) {
+        return statusCode < 0 || statusCode >= statusCodes.length || !statusCodes[statusCode];
+    }
+
+    @Override
+    public boolean shouldBufferForRequest(HttpRequest request) {
+        return isSelected(request) && super.shouldBufferForRequest(request);
+    }
+
+    private boolean isSelected(HttpRequest request) {
+        if (methods != null) {
+            String method = request.method();
+            if (method == null || !methods.contains(method) && !methods.contains(method.toUpperCase(Locale.ENGLISH))) {
+                return false;
+            }
+        }
+        String uri = request.uri();
+        if (uri == null) {
+            uri = "/";
+        }
+        int end = pathEnd(uri);
+        if (matches(excludedPrefixes, excludedSuffixes, uri, end)) {
+            return false;
+        }
+        if ((!includedPrefixes.isEmpty() || !includedSuffixes.isEmpty())
+                && !matches(includedPrefixes, includedSuffixes, uri, end)) {
+            return false;
+        }
+        for (HeaderRule headerRule : headerRules) {
+            if (headerRule.matches(request) == headerRule.exclude) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(CharTrie prefixes, CharTrie suffixes, String uri, int end) {
+        return prefixes.matches(uri, 0, end) || suffixes.matches(uri, 0, end);
+    }
+
+    /**
+     * End of the path in a URI: the start of its query string or fragment, if any.
+     */
+    private static int pathEnd(String uri) {
+        int length = uri.length();
+        for (int i = 0; i < length; i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.webbitserver.HttpRequest;
+import org.webbitserver.wrapper.HttpRequestWrapper;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Request with its conditional headers (<code>If-None-Match</code> and <code>If-Modified-Since</code>)
+ * replaced, so that the handler it is passed to is asked about its own representation, rather than
+ * whatever the client holds (e.g. the decorated page).
+ */
+public class ConditionalRequest extends HttpRequestWrapper {
+
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final String ifNoneMatch;
+    private final String ifModifiedSince;
+
+    /**
+     * @param ifNoneMatch     Replacement <code>If-None-Match</code> header, or null for none.
+     * @param ifModifiedSince Replacement <code>If-Modified-Since</code> header, or null for none.
+     */
+    public ConditionalRequest(HttpRequest request, String ifNoneMatch, String ifModifiedSince) {
+        super(request);
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    /**
+     * Whether a request has any conditional headers.
+     */
+    public static boolean isConditional(HttpRequest request) {
+        return request.hasHeader(IF_NONE_MATCH) || request.hasHeader(IF_MODIFIED_SINCE);
+    }
+
+    /**
+     * The request to pass upstream, for a response whose validators are {@link EntityTags#derive(String, String) derived}
+     * with a suffix: the entity tags the client holds for the current suffix, as the upstream handler
+     * gave them. If the client holds a tag that stands for a <code>Last-Modified</code> date, that becomes the
+     * <code>If-Modified-Since</code> header. The client's own <code>If-Modified-Since</code> is dropped, as the
+     * upstream handler's dates say nothing about what was added.
+     *
+     * @param suffix The suffix, or null if it is not known, in which case no conditional headers are passed.
+     */
+    public static ConditionalRequest upstream(HttpRequest request, String suffix) {
+        if (suffix == null) {
+            return new ConditionalRequest(request, null, null);
+        }
+        StringBuilder ifNoneMatch = null;
+        String ifModifiedSince = null;
+        for (String entityTag : EntityTags.underive(request.header(IF_NONE_MATCH), suffix)) {
+            String date = EntityTags.toDate(entityTag);
+            if (date != null) {
+                ifModifiedSince = date;
+            } else if (ifNoneMatch == null) {
+                ifNoneMatch = new StringBuilder(entityTag);
+            } else {
+                ifNoneMatch.append(", ").append(entityTag);
+            }
+        }
+        return new ConditionalRequest(request, ifNoneMatch == null ? null : ifNoneMatch.toString(), ifModifiedSince);
+    }
+
+    private boolean isReplaced(String name) {
+        return name.equalsIgnoreCase(IF_NONE_MATCH) || name.equalsIgnoreCase(IF_MODIFIED_SINCE);
+    }
+
+    private String replacement(String name) {
+        return name.equalsIgnoreCase(IF_NONE_MATCH) ? ifNoneMatch : ifModifiedSince;
+    }
+
+    @Override
+    public String header(String name) {
+        return isReplaced(name) ? replacement(name) : super.header(name);
+    }
+
+    @Override
+    public List<String> headers(String name) {
+        if (!isReplaced(name)) {
+            return super.headers(name);
+        }
+        String value = replacement(name);
+        return value == null ? Collections.<String>emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public boolean hasHeader(String name) {
+        return isReplaced(name) ? replacement(name) != null : super.hasHeader(name);
+    }
+
+}
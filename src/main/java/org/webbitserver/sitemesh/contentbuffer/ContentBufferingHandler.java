@@ -4,16 +4,57 @@ import org.webbitserver.HttpControl;
 import org.webbitserver.HttpHandler;
 import org.webbitserver.HttpRequest;
 import org.webbitserver.HttpResponse;
+import org.webbitserver.sitemesh.metrics.SiteMeshMetrics;
 
 import java.io.IOException;
 import java.nio.CharBuffer;
 
 public abstract class ContentBufferingHandler implements HttpHandler {
 
+    /**
+     * Key of the {@link HttpRequest#data(String) request data} that holds the upstream response's
+     * {@link BufferedResponse#validator() validator}, if it had one, by the time the buffer is post-processed.
+     */
+    public static final String VALIDATOR_KEY = ContentBufferingHandler.class.getName() + ".VALIDATOR";
+
     protected abstract void postProcessBuffer(HttpRequest httpRequest, HttpResponse httpResponse, HttpControl httpControl, CharBuffer buffer)
             throws IOException;
 
+    /**
+     * Like {@link #postProcessBuffer(HttpRequest, HttpResponse, HttpControl, CharBuffer)}, with the
+     * listener from {@link #bufferListener(HttpRequest, HttpResponse, HttpControl)} if it was told about all of the buffer
+     * (otherwise null). By default, the listener is ignored.
+     */
+    protected void postProcessBuffer(HttpRequest httpRequest, HttpResponse httpResponse, HttpControl httpControl, CharBuffer buffer,
+                                     BufferListener listener) throws IOException {
+        postProcessBuffer(httpRequest, httpResponse, httpControl, buffer);
+    }
+
+    /**
+     * Listener to tell about the response to a request as it is buffered, so work can start before
+     * the response ends. Null (the default) for none.
+     */
+    protected BufferListener bufferListener(HttpRequest httpRequest, HttpResponse httpResponse, HttpControl httpControl) {
+        return null;
+    }
+
+    /**
+     * Version of whatever {@link #postProcessBuffer(HttpRequest, HttpResponse, HttpControl, CharBuffer)} adds to
+     * the response to a request (e.g. its decorators), for {@link #conditionalPassthrough(boolean) conditional
+     * passthrough}. It is used as an entity tag suffix, so may only contain characters allowed in one, other
+     * than commas. An empty string if the response is passed on as it is, or null (the default) if the
+     * version is not known.
+     */
+    protected String decorationVersion(HttpRequest httpRequest) {
+        return null;
+    }
+
     private final Selector selector;
+    private ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    private BufferLimits bufferLimits = BufferLimits.UNLIMITED;
+    private boolean entityTags;
+    private boolean conditionalPassthrough;
+    private SiteMeshMetrics metrics = SiteMeshMetrics.NONE;
 
     public ContentBufferingHandler(Selector selector) {
         this.selector = selector;
@@ -23,25 +64,161 @@ public abstract class ContentBufferingHandler implements HttpHandler {
         return selector;
     }
 
+    public ByteBufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the pool that response buffers are taken from. The default is {@link ByteBufferPool#DEFAULT}.
+     */
+    public ContentBufferingHandler bufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    public BufferLimits bufferLimits() {
+        return bufferLimits;
+    }
+
+    /**
+     * Set the limits on how much content is buffered. Responses that would go over them are passed
+     * through undecorated. The default is {@link BufferLimits#UNLIMITED}.
+     */
+    public ContentBufferingHandler bufferLimits(BufferLimits bufferLimits) {
+        this.bufferLimits = bufferLimits;
+        return this;
+    }
+
+    public boolean entityTags() {
+        return entityTags;
+    }
+
+    /**
+     * Whether buffered responses should be given an ETag, and matching <code>If-None-Match</code>
+     * requests answered with 304 Not Modified. Off by default.
+     */
+    public ContentBufferingHandler entityTags(boolean entityTags) {
+        this.entityTags = entityTags;
+        return this;
+    }
+
+    public boolean conditionalPassthrough() {
+        return conditionalPassthrough;
+    }
+
+    /**
+     * Whether upstream handlers should see the conditional headers of requests, so they can answer with
+     * 304 Not Modified before anything is buffered. Their validators are {@link EntityTags#derive(String, String) derived}
+     * with the {@link #decorationVersion(HttpRequest) decoration version}, so that the client's validators
+     * cover the decoration too, and are turned back into the upstream handler's own on the way in.
+     * Off by default, in which case upstream validators and conditional headers are passed on as they are.
+     */
+    public ContentBufferingHandler conditionalPassthrough(boolean conditionalPassthrough) {
+        this.conditionalPassthrough = conditionalPassthrough;
+        return this;
+    }
+
+    public SiteMeshMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the listener that is told about buffering and processing. The default is {@link SiteMeshMetrics#NONE}.
+     */
+    public ContentBufferingHandler metrics(SiteMeshMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Write a buffer to the response as it is, and end the response. If entity tags are enabled and the
+     * response is {@link #taggable(HttpResponse) taggable}, it is given an ETag derived from its status and
+     * the buffer, and may be answered with 304 Not Modified.
+     */
+    protected void writeBuffer(HttpRequest httpRequest, HttpResponse httpResponse, CharBuffer buffer) {
+        if (entityTags && taggable(httpResponse)) {
+            long hash = EntityTags.hash(EntityTags.INITIAL_HASH, httpResponse.status());
+            if (notModified(httpRequest, httpResponse, EntityTags.format(EntityTags.hash(hash, buffer)))) {
+                return;
+            }
+        }
+        metrics.outcome(SiteMeshMetrics.Outcome.PASSED_THROUGH);
+        httpResponse.content(buffer.toString()).end();
+    }
+
+    /**
+     * Whether a response may be given an entity tag, and so be answered with 304 Not Modified: only if its status
+     * is 200. Otherwise a client holding the page could be told it is still valid while the origin is failing.
+     */
+    protected static boolean taggable(HttpResponse httpResponse) {
+        return httpResponse.status() == 200;
+    }
+
+    /**
+     * Add an ETag header to the response. If the client already holds that representation, answer
+     * with 304 Not Modified and end the response.
+     *
+     * @return true if the response has been ended.
+     */
+    protected boolean notModified(HttpRequest httpRequest, HttpResponse httpResponse, String entityTag) {
+        // Replaces any ETag the upstream handler gave.
+        httpResponse.header("ETag", (String) null).header("ETag", entityTag);
+        if (EntityTags.matches(httpRequest, entityTag)) {
+            metrics.outcome(SiteMeshMetrics.Outcome.NOT_MODIFIED);
+            httpResponse.status(304).end();
+            return true;
+        }
+        return false;
+    }
+
     public void handleHttpRequest(final HttpRequest httpRequest, final HttpResponse httpResponse, final HttpControl httpControl) throws Exception {
 
         if (!selector.shouldBufferForRequest(httpRequest)) {
             // Fast bail out, for obviously non-SiteMeshable requests
+            metrics.outcome(SiteMeshMetrics.Outcome.PASSED_THROUGH);
             httpControl.nextHandler();
             return;
         }
 
-        httpControl.nextHandler(httpRequest, new BufferedResponse(selector(), httpResponse) {
+        HttpRequest upstreamRequest = httpRequest;
+        HttpResponse upstreamResponse = httpResponse;
+        if (conditionalPassthrough) {
+            String version = decorationVersion(httpRequest);
+            if (version == null || version.length() > 0) {
+                upstreamRequest = ConditionalRequest.upstream(httpRequest, version);
+                upstreamResponse = new DerivedValidatorResponse(httpResponse, version);
+            }
+        }
+
+        final long start = System.nanoTime();
+        BufferedResponse bufferedResponse = new BufferedResponse(selector(), upstreamResponse, bufferPool(), bufferLimits()) {
             @Override
             public void postProcess(CharBuffer buffer) {
+                metrics.stage(SiteMeshMetrics.Stage.UPSTREAM, System.nanoTime() - start);
+                if (buffer != null) {
+                    metrics.buffered(bufferedBytes());
+                } else if (overflowed()) {
+                    metrics.outcome(SiteMeshMetrics.Outcome.OVERFLOWED);
+                } else if (abortedForStatusCode() == 304) {
+                    metrics.outcome(SiteMeshMetrics.Outcome.NOT_MODIFIED);
+                } else if (abortedForStatusCode() != 0) {
+                    metrics.outcome(SiteMeshMetrics.Outcome.ABORTED);
+                } else {
+                    metrics.outcome(SiteMeshMetrics.Outcome.PASSED_THROUGH);
+                }
+                String validator = validator();
+                if (validator != null) {
+                    httpRequest.data(VALIDATOR_KEY, validator);
+                }
                 try {
-                    postProcessBuffer(httpRequest, httpResponse, httpControl, buffer);
+                    postProcessBuffer(httpRequest, httpResponse, httpControl, buffer, buffer == null ? null : listener());
                 } catch (IOException e) {
                     httpResponse.error(e);
                 }
             }
-        });
+        };
+        bufferedResponse.listen(bufferListener(httpRequest, httpResponse, httpControl));
+        httpControl.nextHandler(upstreamRequest, bufferedResponse);
     }
 
 }
-
@@ -0,0 +1,114 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.webbitserver.HttpRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP content codings that responses can be compressed with, and negotiation of them from a
+ * request's <code>Accept-Encoding</code> header.
+ */
+public enum ContentCoding {
+
+    IDENTITY(null) {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+    },
+
+    GZIP("gzip") {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, 8192);
+        }
+    },
+
+    DEFLATE("deflate") {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+    };
+
+    private final String token;
+
+    ContentCoding(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Value for the <code>Content-Encoding</code> header, or null for {@link #IDENTITY}.
+     */
+    public String token() {
+        return token;
+    }
+
+    /**
+     * Wrap a stream so that everything written to it is compressed. Closing the returned stream
+     * finishes the compressed data and closes the underlying stream.
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Compress a complete body.
+     */
+    public byte[] compress(byte[] body) throws IOException {
+        if (this == IDENTITY) {
+            return body;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+        OutputStream out = compress(bytes);
+        out.write(body);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Pick the coding to respond with, preferring gzip over deflate. Codings the client
+     * marks with <code>q=0</code> are never chosen, even if it also accepts <code>*</code>.
+     */
+    public static ContentCoding negotiate(HttpRequest request) {
+        String acceptEncoding = request.header("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return IDENTITY;
+        }
+        boolean gzip = false, deflate = false, any = false;
+        boolean gzipRefused = false, deflateRefused = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim();
+            boolean refused = parts.length > 1 && isZeroQuality(parts[1]);
+            if (coding.equalsIgnoreCase("gzip")) {
+                gzip |= !refused;
+                gzipRefused |= refused;
+            } else if (coding.equalsIgnoreCase("deflate")) {
+                deflate |= !refused;
+                deflateRefused |= refused;
+            } else if (coding.equals("*")) {
+                any |= !refused;
+            }
+        }
+        if (gzip || any && !gzipRefused) {
+            return GZIP;
+        }
+        return deflate || any && !deflateRefused ? DEFLATE : IDENTITY;
+    }
+
+    private static boolean isZeroQuality(String parameter) {
+        String trimmed = parameter.trim();
+        if (!trimmed.startsWith("q=") && !trimmed.startsWith("Q=")) {
+            return false;
+        }
+        try {
+            return Float.parseFloat(trimmed.substring(2).trim()) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.webbitserver.HttpResponse;
+import org.webbitserver.wrapper.HttpResponseWrapper;
+
+/**
+ * Response whose validators are {@link EntityTags#derive(String, String) derived} with a suffix, to
+ * stand for the upstream response plus what is added to it. An upstream <code>ETag</code> is derived from
+ * directly; a <code>Last-Modified</code> date becomes a derived <code>ETag</code> (unless there is one already),
+ * as a date cannot say when what was added last changed.
+ *
+ * @see ConditionalRequest#upstream(org.webbitserver.HttpRequest, String)
+ */
+class DerivedValidatorResponse extends HttpResponseWrapper {
+
+    private final String suffix;
+    private boolean hasEntityTag;
+    private boolean hasDateEntityTag;
+
+    /**
+     * @param suffix The suffix, or null if it is not known, in which case the validators are dropped.
+     */
+    DerivedValidatorResponse(HttpResponse response, String suffix) {
+        super(response);
+        this.suffix = suffix;
+    }
+
+    @Override
+    public HttpResponseWrapper header(String name, String value) {
+        if (value == null || !isValidator(name)) {
+            return super.header(name, value);
+        }
+        if (suffix == null) {
+            return this;
+        }
+        if (name.equalsIgnoreCase("etag")) {
+            String entityTag = EntityTags.derive(value, suffix);
+            if (entityTag != null) {
+                if (hasDateEntityTag) {
+                    super.header("ETag", (String) null);
+                    hasDateEntityTag = false;
+                }
+                hasEntityTag = true;
+                super.header("ETag", entityTag);
+            }
+        } else {
+            String dateTag = EntityTags.fromDate(value);
+            if (dateTag != null && !hasEntityTag) {
+                hasEntityTag = true;
+                hasDateEntityTag = true;
+                super.header("ETag", EntityTags.derive(dateTag, suffix));
+            }
+        }
+        return this;
+    }
+
+    private static boolean isValidator(String name) {
+        return name.equalsIgnoreCase("etag") || name.equalsIgnoreCase("last-modified");
+    }
+
+}
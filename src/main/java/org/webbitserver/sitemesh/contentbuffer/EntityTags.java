@@ -0,0 +1,197 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.webbitserver.HttpRequest;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Helpers for generating strong HTTP entity tags (ETags) and evaluating <code>If-None-Match</code>.
+ *
+ * <p>Hashes are 64-bit FNV-1a, which is cheap enough to run over every buffered page.</p>
+ */
+public final class EntityTags {
+
+    /**
+     * Starting value for {@link #hash(long, CharSequence)}.
+     */
+    public static final long INITIAL_HASH = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    // Marks an entity tag made from a Last-Modified date.
+    private static final String DATE_PREFIX = "\"@";
+
+    private EntityTags() {
+    }
+
+    /**
+     * Fold characters into a running hash.
+     */
+    public static long hash(long hash, CharSequence chars) {
+        for (int i = 0, length = chars.length(); i < length; i++) {
+            char c = chars.charAt(i);
+            hash = (hash ^ (c & 0xff)) * PRIME;
+            hash = (hash ^ (c >>> 8)) * PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Fold a number into a running hash.
+     */
+    public static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Format a hash as a strong entity tag, e.g. <code>"5f3a0c9e12ab44d0"</code>.
+     */
+    public static String format(long hash) {
+        return '"' + Long.toHexString(hash) + '"';
+    }
+
+    /**
+     * Format a hash as a strong entity tag for a particular content coding, e.g.
+     * <code>"5f3a0c9e12ab44d0-gzip"</code>. Each coding of a page is a different representation,
+     * so needs a different tag.
+     */
+    public static String format(long hash, ContentCoding coding) {
+        if (coding.token() == null) {
+            return format(hash);
+        }
+        return '"' + Long.toHexString(hash) + '-' + coding.token() + '"';
+    }
+
+    /**
+     * Entity tag for a representation built from another one, such as a decorated page from its content:
+     * the original tag, with a suffix that identifies what was added. e.g. <code>"abc"</code> with suffix
+     * <code>5f3a0c9e</code> becomes <code>"abc.5f3a0c9e"</code>. Weak tags stay weak.
+     *
+     * @param suffix Made of characters that are allowed in an entity tag, other than commas.
+     * @return The derived tag, or null if the original is not a well-formed entity tag.
+     */
+    public static String derive(String entityTag, String suffix) {
+        boolean weak = entityTag.startsWith("W/");
+        String opaque = weak ? entityTag.substring(2) : entityTag;
+        int length = opaque.length();
+        if (length < 2 || opaque.charAt(0) != '"' || opaque.charAt(length - 1) != '"') {
+            return null;
+        }
+        return (weak ? "W/" : "") + opaque.substring(0, length - 1) + '.' + suffix + '"';
+    }
+
+    /**
+     * The original entity tags in an <code>If-None-Match</code> header, of those that were
+     * {@link #derive(String, String) derived} with the suffix. Any others the client holds are for a
+     * different version of what was added, so are left out. A <code>*</code> is kept as it is.
+     *
+     * @param ifNoneMatch The header, or null.
+     */
+    public static List<String> underive(String ifNoneMatch, String suffix) {
+        List<String> entityTags = new ArrayList<String>();
+        if (ifNoneMatch == null) {
+            return entityTags;
+        }
+        String end = '.' + suffix + '"';
+        int start = 0;
+        int length = ifNoneMatch.length();
+        while (start < length) {
+            int comma = ifNoneMatch.indexOf(',', start);
+            if (comma == -1) {
+                comma = length;
+            }
+            String candidate = ifNoneMatch.substring(start, comma).trim();
+            String opaque = candidate.startsWith("W/") ? candidate.substring(2) : candidate;
+            if (candidate.equals("*")) {
+                entityTags.add(candidate);
+            } else if (opaque.startsWith("\"") && opaque.length() > end.length() && opaque.endsWith(end)) {
+                entityTags.add(candidate.substring(0, candidate.length() - end.length()) + '"');
+            }
+            start = comma + 1;
+        }
+        return entityTags;
+    }
+
+    /**
+     * Entity tag that stands for a <code>Last-Modified</code> date, so that it can be
+     * {@link #derive(String, String) derived} from like any other. e.g. <code>"@1318032000"</code>.
+     *
+     * @return The tag, or null if the date cannot be parsed.
+     */
+    public static String fromDate(String httpDate) {
+        try {
+            return DATE_PREFIX + httpDateFormat().parse(httpDate).getTime() / 1000 + '"';
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The <code>Last-Modified</code> date that an entity tag from {@link #fromDate(String)} stands for.
+     * The tag may have been made weak along the way (as some proxies do when they compress), which
+     * makes no difference to the date.
+     *
+     * @return The date, or null if the tag was not made from one.
+     */
+    public static String toDate(String entityTag) {
+        if (entityTag.startsWith("W/")) {
+            entityTag = entityTag.substring(2);
+        }
+        if (!entityTag.startsWith(DATE_PREFIX) || !entityTag.endsWith("\"")) {
+            return null;
+        }
+        try {
+            long seconds = Long.parseLong(entityTag.substring(DATE_PREFIX.length(), entityTag.length() - 1));
+            return httpDateFormat().format(new Date(seconds * 1000));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static DateFormat httpDateFormat() {
+        // Not thread-safe, so not shared.
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Whether the request's <code>If-None-Match</code> header matches the entity tag,
+     * meaning the client already has the current representation.
+     */
+    public static boolean matches(HttpRequest request, String entityTag) {
+        String ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch == null || entityTag == null) {
+            return false;
+        }
+        int start = 0;
+        int length = ifNoneMatch.length();
+        while (start < length) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end == -1) {
+                end = length;
+            }
+            String candidate = ifNoneMatch.substring(start, end).trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2); // If-None-Match uses weak comparison.
+            }
+            if (candidate.equals("*") || candidate.equals(entityTag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.webbitserver.HttpResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * {@link Appendable} that encodes characters and passes them to an {@link HttpResponse} in chunks
+ * of a fixed size, so the complete page never needs to be materialised as a single String or byte
+ * array before it is written. The bytes may optionally be compressed on the way.
+ *
+ * <p>Call {@link #flush()} once all content has been appended, to write the last partial chunk.
+ * The response is not ended.</p>
+ */
+public class ResponseContentWriter implements Appendable {
+
+    private final ResponseOutputStream response;
+    private final OutputStream out;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer chunk;
+
+    public ResponseContentWriter(HttpResponse response, Charset charset, int chunkSize) throws IOException {
+        this(response, charset, chunkSize, ContentCoding.IDENTITY);
+    }
+
+    public ResponseContentWriter(HttpResponse response, Charset charset, int chunkSize, ContentCoding coding) throws IOException {
+        this.response = new ResponseOutputStream(response, chunkSize);
+        this.out = coding.compress(this.response);
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chunk = ByteBuffer.allocate(Math.max(chunkSize, 16));
+    }
+
+    public Appendable append(CharSequence chars) throws IOException {
+        if (chars != null) {
+            encode(CharBuffer.wrap(chars), false);
+        }
+        return this;
+    }
+
+    public Appendable append(CharSequence chars, int start, int end) throws IOException {
+        if (chars != null) {
+            encode(CharBuffer.wrap(chars, start, end), false);
+        }
+        return this;
+    }
+
+    public Appendable append(char c) throws IOException {
+        encode(CharBuffer.wrap(new char[]{c}), false);
+        return this;
+    }
+
+    /**
+     * Encode anything still pending and write the final chunk to the response.
+     */
+    public void flush() throws IOException {
+        encode(CharBuffer.allocate(0), true);
+        while (encoder.flush(chunk).isOverflow()) {
+            writeChunk();
+        }
+        writeChunk();
+        out.close();
+    }
+
+    /**
+     * Total number of bytes passed to the response so far.
+     */
+    public long bytesWritten() {
+        return response.bytesWritten();
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (encoder.encode(in, chunk, endOfInput).isOverflow()) {
+            writeChunk();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        out.write(chunk.array(), 0, chunk.position());
+        chunk.clear();
+    }
+
+}
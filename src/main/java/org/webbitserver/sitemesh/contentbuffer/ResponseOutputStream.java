@@ -0,0 +1,69 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.webbitserver.HttpResponse;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * {@link OutputStream} that passes bytes to an {@link HttpResponse} in chunks of a fixed size.
+ * Closing the stream writes the final partial chunk, but does not end the response.
+ */
+public class ResponseOutputStream extends OutputStream {
+
+    private final HttpResponse response;
+    private final byte[] chunk;
+    private int position;
+    private long bytesWritten;
+
+    public ResponseOutputStream(HttpResponse response, int chunkSize) {
+        this.response = response;
+        this.chunk = new byte[Math.max(chunkSize, 16)];
+    }
+
+    @Override
+    public void write(int b) {
+        if (position == chunk.length) {
+            flush();
+        }
+        chunk[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (position == chunk.length) {
+                flush();
+            }
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(bytes, offset, chunk, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (position == 0) {
+            return;
+        }
+        // Responses may hold on to the array, so each chunk gets its own.
+        response.content(Arrays.copyOf(chunk, position));
+        bytesWritten += position;
+        position = 0;
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Total number of bytes passed to the response so far.
+     */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+}
@@ -0,0 +1,296 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable byte buffer made of a chain of {@link ByteBuffer} segments from a {@link ByteBufferPool}.
+ *
+ * <p>Unlike a {@link java.io.ByteArrayOutputStream}, growing never copies what has already been written,
+ * strings are encoded straight into the segments, and the whole content is decoded in a single pass
+ * into the {@link CharBuffer} returned by {@link #decode(Charset)}.</p>
+ *
+ * <p>Strings can also be kept as they are, with {@link #write(String)}, in between the segments.
+ * They are copied into the decoded content as they are, so they are never encoded at all.</p>
+ *
+ * <p>Not thread-safe.</p>
+ */
+public class SegmentedBuffer {
+
+    private static final int SCRATCH_SIZE = 1024;
+
+    private final ByteBufferPool pool;
+    // Segments, and Strings kept as they are, in the order they were written.
+    private final List<Object> parts = new ArrayList<Object>(4);
+    private ByteBuffer current;
+    private int byteCount;
+    private int charCount;
+    // Kept for the next write in the same charset: responses are usually written in many pieces.
+    private CharsetEncoder encoder;
+    private char[] scratch;
+
+    public SegmentedBuffer(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Number of bytes written, plus the number of chars in Strings kept by {@link #write(String)}.
+     */
+    public int size() {
+        return byteCount + charCount;
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer segment = writableSegment();
+            int count = Math.min(length, segment.remaining());
+            segment.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            byteCount += count;
+        }
+    }
+
+    /**
+     * Keep a String as it is, to be copied straight into the content by {@link #decode(Charset)}.
+     */
+    public void write(String text) {
+        parts.add(text);
+        charCount += text.length();
+        current = null; // Bytes written after it go in a new segment.
+    }
+
+    /**
+     * Encode a string straight into the segments, without creating an intermediate byte array.
+     */
+    public void write(CharSequence chars, Charset charset) {
+        CharsetEncoder encoder = encoder(charset);
+        if (chars instanceof CharBuffer && ((CharBuffer) chars).hasArray()) {
+            encode(encoder, ((CharBuffer) chars).duplicate(), true);
+        } else {
+            // Encoders are much faster over arrays, so copy the chars into one a piece at a time.
+            if (scratch == null) {
+                scratch = new char[SCRATCH_SIZE];
+            }
+            int length = chars.length();
+            int position = 0;
+            int carried = 0; // Half of a surrogate pair, left over from the last piece.
+            while (true) {
+                int count = Math.min(scratch.length - carried, length - position);
+                getChars(chars, position, position + count, scratch, carried);
+                position += count;
+                CharBuffer in = CharBuffer.wrap(scratch, 0, carried + count);
+                encode(encoder, in, position == length);
+                if (position == length) {
+                    break;
+                }
+                carried = in.remaining();
+                in.get(scratch, 0, carried);
+            }
+        }
+        while (true) {
+            ByteBuffer segment = writableSegment();
+            int before = segment.position();
+            CoderResult result = encoder.flush(segment);
+            byteCount += segment.position() - before;
+            if (!result.isOverflow()) {
+                break;
+            }
+            current = null;
+        }
+    }
+
+    private void encode(CharsetEncoder encoder, CharBuffer in, boolean endOfInput) {
+        while (true) {
+            ByteBuffer segment = writableSegment();
+            int before = segment.position();
+            CoderResult result = encoder.encode(in, segment, endOfInput);
+            byteCount += segment.position() - before;
+            if (!result.isOverflow()) {
+                break;
+            }
+            current = null; // Segment is full (or too full for the next character): move on to a new one.
+        }
+    }
+
+    private static void getChars(CharSequence chars, int start, int end, char[] dest, int offset) {
+        if (chars instanceof String) {
+            ((String) chars).getChars(start, end, dest, offset);
+        } else if (chars instanceof StringBuilder) {
+            ((StringBuilder) chars).getChars(start, end, dest, offset);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[offset++] = chars.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * {@link Appendable} view of this buffer, that encodes everything appended to it in a charset.
+     */
+    public Appendable appender(final Charset charset) {
+        return new Appendable() {
+            public Appendable append(CharSequence chars) {
+                write(chars == null ? "null" : chars, charset);
+                return this;
+            }
+
+            public Appendable append(CharSequence chars, int start, int end) {
+                return append((chars == null ? "null" : chars).subSequence(start, end));
+            }
+
+            public Appendable append(char c) {
+                return append(String.valueOf(c));
+            }
+        };
+    }
+
+    /**
+     * Decode everything written so far into a single {@link CharBuffer}, ready for reading,
+     * then return all segments to the pool. The buffer is empty afterwards.
+     */
+    public CharBuffer decode(Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer out = CharBuffer.allocate((int) Math.ceil(byteCount * (double) decoder.maxCharsPerByte()) + charCount);
+        // Holds a multi-byte character that straddles two segments.
+        ByteBuffer carry = ByteBuffer.allocate(16);
+        for (Object part : parts) {
+            if (part instanceof String) {
+                String text = (String) part;
+                out = endOfBytes(decoder, carry, out);
+                while (out.remaining() < text.length()) {
+                    out = grow(out);
+                }
+                out.put(text);
+                continue;
+            }
+            ByteBuffer segment = (ByteBuffer) part;
+            segment.flip();
+            if (carry.position() > 0) {
+                while (segment.hasRemaining()) {
+                    carry.put(segment.get());
+                    carry.flip();
+                    out = decode(decoder, carry, out, false);
+                    carry.compact();
+                    if (carry.position() == 0) {
+                        break;
+                    }
+                }
+            }
+            out = decode(decoder, segment, out, false);
+            carry.put(segment);
+        }
+        out = endOfBytes(decoder, carry, out);
+        out.flip();
+        release();
+        return out;
+    }
+
+    /**
+     * Copy everything written so far into a single byte array, encoding any Strings in the charset,
+     * then return all segments to the pool. The buffer is empty afterwards.
+     */
+    public byte[] drain(Charset charset) {
+        byte[][] encoded = new byte[parts.size()][];
+        int length = byteCount;
+        for (int i = 0; i < parts.size(); i++) {
+            if (parts.get(i) instanceof String) {
+                encoded[i] = ((String) parts.get(i)).getBytes(charset);
+                length += encoded[i].length;
+            }
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            if (encoded[i] != null) {
+                System.arraycopy(encoded[i], 0, result, offset, encoded[i].length);
+                offset += encoded[i].length;
+            } else {
+                ByteBuffer segment = (ByteBuffer) parts.get(i);
+                segment.flip();
+                int count = segment.remaining();
+                segment.get(result, offset, count);
+                offset += count;
+            }
+        }
+        release();
+        return result;
+    }
+
+    /**
+     * Return all segments to the pool without decoding them. The buffer is empty afterwards.
+     */
+    public void release() {
+        for (Object part : parts) {
+            if (part instanceof ByteBuffer) {
+                pool.release((ByteBuffer) part);
+            }
+        }
+        parts.clear();
+        current = null;
+        byteCount = 0;
+        charCount = 0;
+    }
+
+    private CharsetEncoder encoder(Charset charset) {
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } else {
+            encoder.reset();
+        }
+        return encoder;
+    }
+
+    private ByteBuffer writableSegment() {
+        if (current == null || !current.hasRemaining()) {
+            current = pool.acquire();
+            parts.add(current);
+        }
+        return current;
+    }
+
+    /**
+     * Finish decoding a run of bytes, with whatever is left in the carry, and get the decoder ready
+     * for the next run.
+     */
+    private static CharBuffer endOfBytes(CharsetDecoder decoder, ByteBuffer carry, CharBuffer out) {
+        carry.flip();
+        out = decode(decoder, carry, out, true);
+        while (decoder.flush(out).isOverflow()) {
+            out = grow(out);
+        }
+        decoder.reset();
+        carry.clear();
+        return out;
+    }
+
+    private static CharBuffer decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer out, boolean endOfInput) {
+        while (decoder.decode(in, out, endOfInput).isOverflow()) {
+            out = grow(out);
+        }
+        return out;
+    }
+
+    private static CharBuffer grow(CharBuffer out) {
+        CharBuffer bigger = CharBuffer.allocate(out.capacity() * 2 + 16);
+        out.flip();
+        bigger.put(out);
+        return bigger;
+    }
+
+}
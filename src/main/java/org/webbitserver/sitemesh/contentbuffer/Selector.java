@@ -6,7 +6,7 @@ import org.webbitserver.HttpRequest;
  * Rules that will be used by the {@link ContentBufferingHandler} and {@link BufferedResponse}
  * to determine whether the response should be buffered.
  *
- * For a basic implementation, use {@link BasicSelector}.
+ * For a basic implementation, use {@link BasicSelector}, or build one from rules with {@link SelectorBuilder}.
  *
  * @author Joe Walnes
  */
@@ -0,0 +1,185 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Builds a {@link Selector} from declarative rules: which MIME types, paths, methods, status codes and request
+ * headers should be buffered. The rules are compiled by {@link #create()} into tries, hash sets and a table, so
+ * choosing whether to buffer costs much the same however many rules there are, and allocates nothing.
+ *
+ * <p>By default, <code>text/html</code> responses with status 200 are buffered, for any path, method and
+ * headers. As with {@link BasicSelector}, a request is only ever buffered once.</p>
+ *
+ * <p>Path patterns are matched case-insensitively against the request URI, without its query string:
+ * <code>/exact/path</code>, <code>/prefix/*</code>, <code>*.suffix</code>, or <code>*</code> for every path.
+ * MIME types may be exact (<code>text/html</code>), cover a whole type (<code>text/*</code>), or be
+ * <code>*&#47;*</code> for any.</p>
+ *
+ * <pre>
+ * Selector selector = new SelectorBuilder()
+ *         .mimeTypes("text/html", "application/xhtml+xml")
+ *         .excludePaths("/static/*", "*.txt")
+ *         .methods("GET", "POST")
+ *         .includeErrorPages()
+ *         .excludeRequestsWithHeader("X-No-Decorate")
+ *         .create();
+ * </pre>
+ */
+public class SelectorBuilder {
+
+    private static final int MAX_STATUS_CODE = 599;
+
+    private List<String> mimeTypes;
+    private final List<String> includedPaths = new ArrayList<String>();
+    private final List<String> excludedPaths = new ArrayList<String>();
+    private final List<String> methods = new ArrayList<String>();
+    private final List<int[]> statusCodes = new ArrayList<int[]>();
+    private final List<CompiledSelector.HeaderRule> headerRules = new ArrayList<CompiledSelector.HeaderRule>();
+
+    /**
+     * MIME types to buffer. If this is never called, <code>text/html</code> is buffered.
+     */
+    public SelectorBuilder mimeTypes(String... mimeTypes) {
+        if (this.mimeTypes == null) {
+            this.mimeTypes = new ArrayList<String>();
+        }
+        this.mimeTypes.addAll(Arrays.asList(mimeTypes));
+        return this;
+    }
+
+    /**
+     * Only buffer requests for paths matching one of these patterns. If none are given, every path is
+     * buffered, unless excluded.
+     */
+    public SelectorBuilder includePaths(String... patterns) {
+        includedPaths.addAll(Arrays.asList(patterns));
+        return this;
+    }
+
+    /**
+     * Never buffer requests for paths matching one of these patterns.
+     */
+    public SelectorBuilder excludePaths(String... patterns) {
+        excludedPaths.addAll(Arrays.asList(patterns));
+        return this;
+    }
+
+    /**
+     * Only buffer requests with one of these methods. If none are given, every method is buffered.
+     */
+    public SelectorBuilder methods(String... methods) {
+        this.methods.addAll(Arrays.asList(methods));
+        return this;
+    }
+
+    /**
+     * Buffer responses with a status code in this range (inclusive), as well as 200.
+     */
+    public SelectorBuilder statusCodes(int from, int to) {
+        if (from < 0 || to > MAX_STATUS_CODE || from > to) {
+            throw new IllegalArgumentException("Invalid status code range: " + from + "-" + to);
+        }
+        statusCodes.add(new int[]{from, to});
+        return this;
+    }
+
+    /**
+     * Buffer error pages (status 400 and up), as well as 200.
+     */
+    public SelectorBuilder includeErrorPages() {
+        return statusCodes(400, MAX_STATUS_CODE);
+    }
+
+    /**
+     * Never buffer requests that have this header.
+     */
+    public SelectorBuilder excludeRequestsWithHeader(String name) {
+        headerRules.add(new CompiledSelector.HeaderRule(name, null, true));
+        return this;
+    }
+
+    /**
+     * Never buffer requests where this header has this value (compared case-insensitively).
+     */
+    public SelectorBuilder excludeRequestsWithHeader(String name, String value) {
+        headerRules.add(new CompiledSelector.HeaderRule(name, value, true));
+        return this;
+    }
+
+    /**
+     * Only buffer requests that have this header, with this value (compared case-insensitively), or any
+     * value if it is null.
+     */
+    public SelectorBuilder requireRequestHeader(String name, String value) {
+        headerRules.add(new CompiledSelector.HeaderRule(name, value, false));
+        return this;
+    }
+
+    /**
+     * Compile the rules into a {@link Selector}. The builder can go on being used, and does not affect
+     * selectors it has already created.
+     *
+     * @throws IllegalArgumentException if a path pattern or MIME type is not one of the supported forms.
+     */
+    public Selector create() {
+        CharTrie mimeTypeTrie = new CharTrie(false);
+        Set<String> exactMimeTypes = new HashSet<String>();
+        for (String mimeType : mimeTypes == null ? Arrays.asList("text/html") : mimeTypes) {
+            mimeType = mimeType.trim();
+            addPattern(mimeTypeTrie, null, mimeType.equals("*/*") ? "*" : mimeType, "MIME type");
+            if (mimeType.indexOf('*') == -1) {
+                exactMimeTypes.add(mimeType.toLowerCase(Locale.ENGLISH));
+            }
+        }
+
+        CharTrie includedPrefixes = new CharTrie(false);
+        CharTrie includedSuffixes = new CharTrie(true);
+        for (String pattern : includedPaths) {
+            addPattern(includedPrefixes, includedSuffixes, pattern, "path pattern");
+        }
+        CharTrie excludedPrefixes = new CharTrie(false);
+        CharTrie excludedSuffixes = new CharTrie(true);
+        for (String pattern : excludedPaths) {
+            addPattern(excludedPrefixes, excludedSuffixes, pattern, "path pattern");
+        }
+
+        Set<String> methodSet = new HashSet<String>();
+        for (String method : methods) {
+            methodSet.add(method.toUpperCase(Locale.ENGLISH));
+        }
+
+        boolean[] statusTable = new boolean[MAX_STATUS_CODE + 1];
+        statusTable[200] = true;
+        for (int[] range : statusCodes) {
+            for (int statusCode = range[0]; statusCode <= range[1]; statusCode++) {
+                statusTable[statusCode] = true;
+            }
+        }
+
+        return new CompiledSelector(exactMimeTypes, mimeTypeTrie, includedPrefixes, includedSuffixes, excludedPrefixes, excludedSuffixes,
+                methodSet.isEmpty() ? null : methodSet, statusTable,
+                headerRules.toArray(new CompiledSelector.HeaderRule[headerRules.size()]));
+    }
+
+    /**
+     * Add <code>exact</code>, <code>prefix*</code> or (if there is a suffix trie) <code>*suffix</code>.
+     */
+    private static void addPattern(CharTrie prefixes, CharTrie suffixes, String pattern, String kind) {
+        int wildcard = pattern.indexOf('*');
+        if (wildcard == -1 && pattern.indexOf('?') == -1) {
+            prefixes.add(pattern, false);
+        } else if (wildcard == pattern.length() - 1 && pattern.indexOf('?') == -1) {
+            prefixes.add(pattern.substring(0, wildcard), true);
+        } else if (wildcard == 0 && suffixes != null && pattern.indexOf('*', 1) == -1 && pattern.indexOf('?') == -1) {
+            suffixes.add(pattern.substring(1), true);
+        } else {
+            throw new IllegalArgumentException("Unsupported " + kind + ": " + pattern);
+        }
+    }
+
+}
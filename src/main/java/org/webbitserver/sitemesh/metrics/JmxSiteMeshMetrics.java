@@ -0,0 +1,251 @@
+package org.webbitserver.sitemesh.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SiteMeshMetrics} that keeps counters and a {@link LatencyHistogram} per {@link Stage}, and exposes
+ * them as JMX attributes, e.g. <code>PagesDecorated</code>, <code>DecoratorCacheHitRatio</code>,
+ * <code>ContentParseP99Micros</code>.
+ *
+ * <pre>
+ * HttpHandler siteMeshHandler = new SiteMeshHandlerBuilder()
+ *     .setMetrics(new JmxSiteMeshMetrics().register("main"))
+ *     ...
+ * </pre>
+ */
+public class JmxSiteMeshMetrics implements SiteMeshMetrics, DynamicMBean {
+
+    /**
+     * JMX domain that {@link #register(String)} uses.
+     */
+    public static final String DOMAIN = "org.webbitserver.sitemesh";
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final Map<Outcome, AtomicLong> outcomes = new EnumMap<Outcome, AtomicLong>(Outcome.class);
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicLong decoratorCacheHits = new AtomicLong();
+    private final AtomicLong decoratorCacheMisses = new AtomicLong();
+    private final Map<String, Getter> attributes = new LinkedHashMap<String, Getter>();
+
+    public JmxSiteMeshMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new AtomicLong());
+        }
+        defineAttributes();
+    }
+
+    /**
+     * Register with the platform MBean server as
+     * <code>org.webbitserver.sitemesh:type=SiteMeshHandler,name=&lt;name&gt;</code>.
+     */
+    public JmxSiteMeshMetrics register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=SiteMeshHandler,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            return this;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register SiteMesh metrics in JMX", e);
+        }
+    }
+
+    public void stage(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    public void buffered(long bytes) {
+        bufferedBytes.addAndGet(bytes);
+    }
+
+    public void outcome(Outcome outcome) {
+        outcomes.get(outcome).incrementAndGet();
+    }
+
+    public void decoratorCache(boolean hit) {
+        (hit ? decoratorCacheHits : decoratorCacheMisses).incrementAndGet();
+    }
+
+    public LatencyHistogram histogram(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public long count(Outcome outcome) {
+        return outcomes.get(outcome).get();
+    }
+
+    public long bufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    public double decoratorCacheHitRatio() {
+        long hits = decoratorCacheHits.get();
+        long total = hits + decoratorCacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : stages.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong count : outcomes.values()) {
+            count.set(0);
+        }
+        bufferedBytes.set(0);
+        decoratorCacheHits.set(0);
+        decoratorCacheMisses.set(0);
+    }
+
+    // --------------------------------------------------------------
+    // DynamicMBean.
+
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Getter getter = attributes.get(name);
+        if (getter == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return getter.get();
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Getter getter = attributes.get(name);
+            if (getter != null) {
+                list.add(new Attribute(name, getter.get()));
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attributes are read-only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        if (actionName.equals("reset")) {
+            reset();
+            return null;
+        }
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Getter> attribute : attributes.entrySet()) {
+            infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().type, attribute.getKey(),
+                    true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "SiteMesh pipeline metrics",
+                infos.toArray(new MBeanAttributeInfo[infos.size()]),
+                null,
+                new MBeanOperationInfo[]{new MBeanOperationInfo("reset", "Reset all metrics",
+                        new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)},
+                null);
+    }
+
+    private void defineAttributes() {
+        for (final Outcome outcome : Outcome.values()) {
+            attributes.put("Pages" + camelCase(outcome.name()), new Getter("long") {
+                Object get() {
+                    return count(outcome);
+                }
+            });
+        }
+        attributes.put("BufferedBytes", new Getter("long") {
+            Object get() {
+                return bufferedBytes();
+            }
+        });
+        attributes.put("DecoratorCacheHits", new Getter("long") {
+            Object get() {
+                return decoratorCacheHits.get();
+            }
+        });
+        attributes.put("DecoratorCacheMisses", new Getter("long") {
+            Object get() {
+                return decoratorCacheMisses.get();
+            }
+        });
+        attributes.put("DecoratorCacheHitRatio", new Getter("double") {
+            Object get() {
+                return decoratorCacheHitRatio();
+            }
+        });
+        for (Stage stage : Stage.values()) {
+            final LatencyHistogram histogram = stages.get(stage);
+            String prefix = camelCase(stage.name());
+            attributes.put(prefix + "Count", new Getter("long") {
+                Object get() {
+                    return histogram.count();
+                }
+            });
+            attributes.put(prefix + "MeanMicros", new Getter("double") {
+                Object get() {
+                    return histogram.mean() / 1000;
+                }
+            });
+            addPercentile(prefix + "P50Micros", histogram, 50);
+            addPercentile(prefix + "P99Micros", histogram, 99);
+            addPercentile(prefix + "P999Micros", histogram, 99.9);
+            attributes.put(prefix + "MaxMicros", new Getter("long") {
+                Object get() {
+                    return histogram.max() / 1000;
+                }
+            });
+        }
+    }
+
+    private void addPercentile(String name, final LatencyHistogram histogram, final double percentile) {
+        attributes.put(name, new Getter("long") {
+            Object get() {
+                return histogram.percentile(percentile) / 1000;
+            }
+        });
+    }
+
+    private static String camelCase(String constant) {
+        StringBuilder result = new StringBuilder();
+        for (String word : constant.split("_")) {
+            result.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+        }
+        return result.toString();
+    }
+
+    private abstract static class Getter {
+        final String type;
+
+        Getter(String type) {
+            this.type = type;
+        }
+
+        abstract Object get();
+    }
+
+}
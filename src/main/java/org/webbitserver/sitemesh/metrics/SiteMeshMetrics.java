@@ -0,0 +1,100 @@
+package org.webbitserver.sitemesh.metrics;
+
+/**
+ * Listener for instrumentation of the SiteMesh pipeline. Register one with
+ * {@link org.webbitserver.sitemesh.BaseSiteMeshHandlerBuilder#setMetrics(SiteMeshMetrics)}.
+ *
+ * <p>Methods are called on the thread doing the work (the Webbit thread, or the processing executor),
+ * so implementations must be thread-safe and cheap.</p>
+ *
+ * @see JmxSiteMeshMetrics
+ */
+public interface SiteMeshMetrics {
+
+    /**
+     * Steps a decorated request goes through.
+     */
+    enum Stage {
+        /**
+         * From passing the request on, until the upstream handler ends the buffered response.
+         */
+        UPSTREAM,
+        /**
+         * Parsing the buffered content with the {@link org.sitemesh.content.ContentProcessor}.
+         */
+        CONTENT_PARSE,
+        /**
+         * From dispatching to a decorator handler until its response has been buffered.
+         */
+        DECORATOR_FETCH,
+        /**
+         * Merging the content into a decorator.
+         */
+        DECORATOR_MERGE,
+        /**
+         * Writing the decorated page to the response.
+         */
+        WRITE
+    }
+
+    /**
+     * What happened to a request that was considered for buffering.
+     */
+    enum Outcome {
+        /**
+         * The page was decorated.
+         */
+        DECORATED,
+        /**
+         * The response was not buffered or not decorated (e.g. not HTML, excluded, or no decorator applies).
+         */
+        PASSED_THROUGH,
+        /**
+         * Buffering was aborted because of the HTTP status code.
+         */
+        ABORTED,
+        /**
+         * The response went over its buffer size limit or the shared buffer budget, and was passed
+         * through undecorated.
+         */
+        OVERFLOWED,
+        /**
+         * The client's copy was current, and 304 Not Modified was sent.
+         */
+        NOT_MODIFIED,
+        /**
+         * A decorated page was served from the page cache.
+         */
+        PAGE_CACHE_HIT,
+        /**
+         * A {@link org.webbitserver.sitemesh.PageFragment} was sent instead of the decorated page.
+         */
+        FRAGMENT
+    }
+
+    void stage(Stage stage, long nanos);
+
+    void buffered(long bytes);
+
+    void outcome(Outcome outcome);
+
+    void decoratorCache(boolean hit);
+
+    /**
+     * Implementation that ignores everything.
+     */
+    SiteMeshMetrics NONE = new SiteMeshMetrics() {
+        public void stage(Stage stage, long nanos) {
+        }
+
+        public void buffered(long bytes) {
+        }
+
+        public void outcome(Outcome outcome) {
+        }
+
+        public void decoratorCache(boolean hit) {
+        }
+    };
+
+}
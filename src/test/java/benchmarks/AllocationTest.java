@@ -0,0 +1,70 @@
+package benchmarks;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bounds the bytes allocated per request on the decoration path, for some of the {@link Benchmarks}, so that
+ * allocation cut from it does not creep back. The bounds are set a little above what is measured now, for
+ * 16KB pages, so that another copy of the page per request shows up.
+ *
+ * <p>Allocation is measured with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}, after
+ * a warm-up, so it reflects the JIT compiled code.</p>
+ */
+public class AllocationTest {
+
+    private static final int PAGE_SIZE = 16 * 1024;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void decoratesWithOneDecorator() throws Exception {
+        assertAllocatesAtMost(200 * 1024,
+                Benchmarks.siteMeshHandler(PAGE_SIZE, 1, false, false, false, false, false));
+    }
+
+    @Test
+    public void decoratesWithOneCachedCompiledDecorator() throws Exception {
+        assertAllocatesAtMost(110 * 1024,
+                Benchmarks.siteMeshHandler(PAGE_SIZE, 1, true, true, false, false, false));
+    }
+
+    @Test
+    public void decoratesWithOneCachedCompiledDecoratorWhileStreaming() throws Exception {
+        assertAllocatesAtMost(72 * 1024,
+                Benchmarks.siteMeshHandler(PAGE_SIZE, 1, true, true, true, false, false));
+    }
+
+    @Test
+    public void decoratesWithFiveCachedCompiledDecoratorsWhileStreaming() throws Exception {
+        assertAllocatesAtMost(170 * 1024,
+                Benchmarks.siteMeshHandler(PAGE_SIZE, 5, true, true, true, false, false));
+    }
+
+    @Test
+    public void buffersPages() throws Exception {
+        assertAllocatesAtMost(40 * 1024, Benchmarks.bufferedResponse(PAGE_SIZE));
+    }
+
+    private void assertAllocatesAtMost(long bytes, Benchmark benchmark) throws Exception {
+        assertTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (int i = 0; i < 5000; i++) {
+            benchmark.run();
+        }
+        int runs = 1000;
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < runs; i++) {
+            benchmark.run();
+        }
+        long allocated = (threads.getThreadAllocatedBytes(thread) - before) / runs;
+        assertTrue(benchmark.name() + " allocated " + allocated + " bytes per run, over the " + bytes + " allowed",
+                allocated <= bytes);
+    }
+
+}
@@ -0,0 +1,21 @@
+package benchmarks;
+
+/**
+ * A single measured operation. Implementations should do the same work on every call, and return
+ * something derived from the result so the JIT cannot optimise the work away.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public abstract int run() throws Exception;
+
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Runs {@link Benchmark}s on the current thread and reports throughput, time per operation,
+ * bytes allocated per operation and garbage collection activity.
+ *
+ * <p>Each benchmark is warmed up for {@link #warmupMillis}, then measured over {@link #iterations}
+ * runs of {@link #iterationMillis}. The figures reported are the mean over the iterations.</p>
+ */
+public class BenchmarkRunner {
+
+    private final long warmupMillis;
+    private final int iterations;
+    private final long iterationMillis;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private int sink;
+
+    public BenchmarkRunner(long warmupMillis, int iterations, long iterationMillis) {
+        this.warmupMillis = warmupMillis;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    public void printHeader() {
+        System.out.printf("%-68s %14s %12s %12s %8s %8s%n",
+                "Benchmark", "ops/s", "ns/op", "B/op", "gc.count", "gc.ms");
+    }
+
+    public void run(Benchmark benchmark) throws Exception {
+        loop(benchmark, warmupMillis);
+
+        long thread = Thread.currentThread().getId();
+        long operations = 0;
+        long nanos = 0;
+        long allocated = 0;
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        for (int i = 0; i < iterations; i++) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            operations += loop(benchmark, iterationMillis);
+            nanos += System.nanoTime() - start;
+            allocated += threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        }
+
+        System.out.printf("%-68s %14.0f %12.0f %12d %8d %8d%n",
+                benchmark.name(),
+                operations / (nanos / 1e9),
+                (double) nanos / operations,
+                allocated / operations,
+                gcCount() - gcCount,
+                gcTime() - gcTime);
+    }
+
+    /**
+     * Value accumulated from benchmark results. Print it, so results are not dead code.
+     */
+    public int sink() {
+        return sink;
+    }
+
+    private long loop(Benchmark benchmark, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1000000;
+        long operations = 0;
+        do {
+            for (int i = 0; i < 64; i++) {
+                sink += benchmark.run();
+            }
+            operations += 64;
+        } while (System.nanoTime() < deadline);
+        return operations;
+    }
+
+    private long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+}
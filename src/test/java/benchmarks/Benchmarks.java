@@ -0,0 +1,359 @@
+package benchmarks;
+
+import org.sitemesh.config.PathMapper;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.handler.StringHttpHandler;
+import org.webbitserver.sitemesh.DecoratorRoutes;
+import org.webbitserver.sitemesh.HeaderFragmentSelector;
+import org.webbitserver.sitemesh.SiteMeshHandlerBuilder;
+import org.webbitserver.sitemesh.contentbuffer.BasicSelector;
+import org.webbitserver.sitemesh.contentbuffer.BufferedResponse;
+import org.webbitserver.sitemesh.contentbuffer.Selector;
+import org.webbitserver.sitemesh.contentbuffer.SelectorBuilder;
+import org.webbitserver.stub.StubHttpRequest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks for the buffering and decoration hot paths.
+ *
+ * <p>Run with <code>make bench</code>. Pass a substring as the first argument to only run
+ * benchmarks whose name contains it, e.g. <code>make bench BENCH=SiteMeshHandler</code>.</p>
+ */
+public class Benchmarks {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int size : new int[]{1024, 16 * 1024, 256 * 1024}) {
+            benchmarks.add(bufferedResponse(size));
+        }
+        for (int size : new int[]{1024, 16 * 1024, 256 * 1024}) {
+            benchmarks.add(bufferedResponseStrings(size));
+        }
+        for (int decorators : new int[]{1, 2, 5}) {
+            benchmarks.add(siteMeshHandler(16 * 1024, decorators, false, false, false, false, false));
+            benchmarks.add(siteMeshHandler(16 * 1024, decorators, true, false, false, false, false));
+            benchmarks.add(siteMeshHandler(16 * 1024, decorators, true, true, false, false, false));
+            benchmarks.add(siteMeshHandler(16 * 1024, decorators, true, true, true, false, false));
+            benchmarks.add(siteMeshHandler(16 * 1024, decorators, true, true, false, true, false));
+            benchmarks.add(siteMeshHandler(16 * 1024, decorators, true, true, true, false, true));
+            benchmarks.add(decoratorFiles(16 * 1024, decorators, false));
+            benchmarks.add(decoratorFiles(16 * 1024, decorators, true));
+        }
+        benchmarks.addAll(selector());
+        benchmarks.addAll(compiledSelector());
+        benchmarks.addAll(pathMapper());
+        benchmarks.addAll(decoratorRoutes(0));
+        benchmarks.addAll(decoratorRoutes(1024));
+
+        BenchmarkRunner runner = new BenchmarkRunner(1000, 5, 500);
+        runner.printHeader();
+        for (Benchmark benchmark : benchmarks) {
+            if (benchmark.name().contains(filter)) {
+                runner.run(benchmark);
+            }
+        }
+        System.out.println("(sink " + runner.sink() + ")");
+    }
+
+    /**
+     * An upstream handler writing a page in 8KB chunks through a {@link BufferedResponse}.
+     */
+    static Benchmark bufferedResponse(int pageSize) {
+        final byte[][] chunks = chunks(Pages.content(pageSize).getBytes());
+        final Selector selector = new BasicSelector("text/html");
+        return new Benchmark("BufferedResponse.end " + pageSize / 1024 + "KB") {
+            @Override
+            public int run() {
+                final int[] length = new int[1];
+                BufferedResponse response = new BufferedResponse(selector, new NullHttpResponse()) {
+                    @Override
+                    protected void postProcess(CharBuffer buffer) {
+                        length[0] = buffer.remaining();
+                    }
+                };
+                response.header("Content-Type", "text/html; charset=UTF-8");
+                for (byte[] chunk : chunks) {
+                    response.content(chunk);
+                }
+                response.end();
+                return length[0];
+            }
+        };
+    }
+
+    /**
+     * As {@link #bufferedResponse(int)}, with the page written as Strings of 8K chars.
+     */
+    static Benchmark bufferedResponseStrings(int pageSize) {
+        String page = Pages.content(pageSize);
+        final List<String> chunks = new ArrayList<String>();
+        for (int i = 0; i < page.length(); i += CHUNK_SIZE) {
+            chunks.add(page.substring(i, Math.min(page.length(), i + CHUNK_SIZE)));
+        }
+        final Selector selector = new BasicSelector("text/html");
+        return new Benchmark("BufferedResponse.end " + pageSize / 1024 + "KB, strings") {
+            @Override
+            public int run() {
+                final int[] length = new int[1];
+                BufferedResponse response = new BufferedResponse(selector, new NullHttpResponse()) {
+                    @Override
+                    protected void postProcess(CharBuffer buffer) {
+                        length[0] = buffer.remaining();
+                    }
+                };
+                response.header("Content-Type", "text/html; charset=UTF-8");
+                for (String chunk : chunks) {
+                    response.content(chunk);
+                }
+                response.end();
+                return length[0];
+            }
+        };
+    }
+
+    /**
+     * A complete decorated request, with a chain of decorators served by the default handler. With
+     * <code>fragment</code>, it is a pjax request instead, answered with the page's title and body. With
+     * <code>contentCache</code>, the page has an ETag, and is only parsed the first time.
+     */
+    static Benchmark siteMeshHandler(int pageSize, int decoratorCount, boolean decoratorCache, boolean compiled,
+                                     boolean streaming, boolean contentCache, final boolean fragment) {
+        final Map<String, HttpHandler> decoratorsByPath = new HashMap<String, HttpHandler>();
+        String[] decoratorPaths = new String[decoratorCount];
+        for (int i = 0; i < decoratorCount; i++) {
+            decoratorPaths[i] = "/decorators/" + i + ".html";
+            decoratorsByPath.put(decoratorPaths[i], new StringHttpHandler("text/html", Pages.decorator(i)));
+        }
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(new HttpHandler() {
+                    public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) throws Exception {
+                        decoratorsByPath.get(request.uri()).handleHttpRequest(request, response, control);
+                    }
+                })
+                .addDecoratorPaths("/*", decoratorPaths);
+        if (decoratorCache) {
+            builder.enableDecoratorCache();
+        }
+        if (compiled) {
+            builder.enableCompiledDecorators();
+        }
+        if (streaming) {
+            builder.enableStreamingExtraction();
+        }
+        if (contentCache) {
+            builder.enableContentCache(16 * 1024 * 1024);
+        }
+        if (fragment) {
+            builder.enablePjaxFragments();
+        }
+        final HttpHandler siteMeshHandler = builder.create();
+        final HttpHandler page = new StringHttpHandler("text/html", Pages.content(pageSize));
+        final HttpControl control = new InlineHttpControl(!contentCache ? page : new HttpHandler() {
+            public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) throws Exception {
+                response.header("ETag", "\"1\"");
+                page.handleHttpRequest(request, response, control);
+            }
+        });
+
+        return new Benchmark("SiteMeshHandler " + pageSize / 1024 + "KB, " + decoratorCount + " decorators"
+                + (decoratorCache ? ", cached" : "") + (compiled ? ", compiled" : "")
+                + (streaming ? ", streaming" : "") + (contentCache ? ", content cache" : "") + (fragment ? ", pjax fragment" : "")) {
+            @Override
+            public int run() throws Exception {
+                NullHttpResponse response = new NullHttpResponse();
+                StubHttpRequest request = new StubHttpRequest("/page.html");
+                if (fragment) {
+                    request.header(HeaderFragmentSelector.PJAX_HEADER, "true");
+                }
+                siteMeshHandler.handleHttpRequest(request, response, control);
+                return (int) response.bytes();
+            }
+        };
+    }
+
+    /**
+     * As {@link #siteMeshHandler(int, int, boolean, boolean, boolean, boolean, boolean)}, with the decorators
+     * read from files rather than served by the default handler.
+     */
+    static Benchmark decoratorFiles(int pageSize, int decoratorCount, boolean compiled) throws IOException {
+        File directory = File.createTempFile("decorators", "");
+        directory.delete();
+        directory.mkdir();
+        directory.deleteOnExit();
+        File[] decoratorFiles = new File[decoratorCount];
+        for (int i = 0; i < decoratorCount; i++) {
+            decoratorFiles[i] = new File(directory, i + ".html");
+            decoratorFiles[i].deleteOnExit();
+            FileOutputStream out = new FileOutputStream(decoratorFiles[i]);
+            try {
+                out.write(Pages.decorator(i).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder()
+                .addDecoratorFiles("/*", decoratorFiles);
+        if (compiled) {
+            builder.enableCompiledDecorators();
+        }
+        final HttpHandler siteMeshHandler = builder.create();
+        final HttpControl control = new InlineHttpControl(new StringHttpHandler("text/html", Pages.content(pageSize)));
+
+        return new Benchmark("SiteMeshHandler " + pageSize / 1024 + "KB, " + decoratorCount + " decorators, files"
+                + (compiled ? ", compiled" : "")) {
+            @Override
+            public int run() throws Exception {
+                NullHttpResponse response = new NullHttpResponse();
+                siteMeshHandler.handleHttpRequest(new StubHttpRequest("/page.html"), response, control);
+                return (int) response.bytes();
+            }
+        };
+    }
+
+    static List<Benchmark> selector() {
+        final BasicSelector selector = new BasicSelector("text/html", "application/xhtml+xml", "text/plain");
+        return Arrays.asList(
+                new Benchmark("BasicSelector.shouldBufferForContentType hit") {
+                    @Override
+                    public int run() {
+                        return selector.shouldBufferForContentType("text/plain; charset=UTF-8", "text/plain", "UTF-8") ? 1 : 0;
+                    }
+                },
+                new Benchmark("BasicSelector.shouldBufferForContentType miss") {
+                    @Override
+                    public int run() {
+                        return selector.shouldBufferForContentType("image/png", "image/png", null) ? 1 : 0;
+                    }
+                },
+                new Benchmark("BasicSelector.shouldBufferForRequest") {
+                    @Override
+                    public int run() {
+                        return selector.shouldBufferForRequest(new StubHttpRequest("/page.html")) ? 1 : 0;
+                    }
+                });
+    }
+
+    /**
+     * As {@link #selector()}, for a selector compiled from 50 MIME types and 60 path rules.
+     */
+    static List<Benchmark> compiledSelector() {
+        SelectorBuilder rules = new SelectorBuilder().methods("GET", "POST").includeErrorPages();
+        for (int i = 0; i < 20; i++) {
+            rules.mimeTypes("application/type" + i, "text/type" + i).excludePaths("/static" + i + "/*", "*.ext" + i, "/exact" + i);
+        }
+        final Selector selector = rules.mimeTypes("text/html", "application/xhtml+xml", "text/plain", "image/*").create();
+        return Arrays.asList(
+                new Benchmark("CompiledSelector.shouldBufferForContentType hit") {
+                    @Override
+                    public int run() {
+                        return selector.shouldBufferForContentType("text/plain; charset=UTF-8", "text/plain", "UTF-8") ? 1 : 0;
+                    }
+                },
+                new Benchmark("CompiledSelector.shouldBufferForContentType miss") {
+                    @Override
+                    public int run() {
+                        return selector.shouldBufferForContentType("video/mp4", "video/mp4", null) ? 1 : 0;
+                    }
+                },
+                new Benchmark("CompiledSelector.shouldBufferForRequest") {
+                    @Override
+                    public int run() {
+                        return selector.shouldBufferForRequest(new StubHttpRequest("/section/page.html?q=1")) ? 1 : 0;
+                    }
+                });
+    }
+
+    /**
+     * Decorator lookups against 50 mappings, as done once per decorated request.
+     */
+    static List<Benchmark> pathMapper() {
+        final PathMapper<String> mapper = new PathMapper<String>();
+        for (int i = 0; i < 20; i++) {
+            mapper.put("/section" + i + "/*", "decorator" + i);
+            mapper.put("/section" + i + "/index.html", "index" + i);
+            mapper.put("*.ext" + i, "extension" + i);
+        }
+        mapper.put("/*", "default");
+        return Arrays.asList(
+                new Benchmark("PathMapper.get exact") {
+                    @Override
+                    public int run() {
+                        return mapper.get("/section7/index.html").length();
+                    }
+                },
+                new Benchmark("PathMapper.get wildcard") {
+                    @Override
+                    public int run() {
+                        return mapper.get("/section7/some/deep/page.html").length();
+                    }
+                },
+                new Benchmark("PathMapper.get default") {
+                    @Override
+                    public int run() {
+                        return mapper.get("/other/page.html").length();
+                    }
+                });
+    }
+
+    /**
+     * The same lookups as {@link #pathMapper()}, through the compiled {@link DecoratorRoutes}.
+     */
+    static List<Benchmark> decoratorRoutes(int cacheSize) {
+        Map<String, HttpHandler[]> decorators = new LinkedHashMap<String, HttpHandler[]>();
+        for (int i = 0; i < 20; i++) {
+            decorators.put("/section" + i + "/*", new HttpHandler[1]);
+            decorators.put("/section" + i + "/index.html", new HttpHandler[2]);
+            decorators.put("*.ext" + i, new HttpHandler[3]);
+        }
+        decorators.put("/*", new HttpHandler[4]);
+        final DecoratorRoutes routes = new DecoratorRoutes(decorators, Collections.<String>emptySet(), cacheSize);
+        String name = "DecoratorRoutes.route " + (cacheSize > 0 ? "cached " : "");
+        return Arrays.asList(
+                new Benchmark(name + "exact") {
+                    @Override
+                    public int run() {
+                        return routes.route("/section7/index.html").getDecorators().length;
+                    }
+                },
+                new Benchmark(name + "wildcard") {
+                    @Override
+                    public int run() {
+                        return routes.route("/section7/some/deep/page.html").getDecorators().length;
+                    }
+                },
+                new Benchmark(name + "default") {
+                    @Override
+                    public int run() {
+                        return routes.route("/other/page.html").getDecorators().length;
+                    }
+                });
+    }
+
+    private static byte[][] chunks(byte[] page) {
+        int count = (page.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        byte[][] chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = Arrays.copyOfRange(page, i * CHUNK_SIZE, Math.min(page.length, (i + 1) * CHUNK_SIZE));
+        }
+        return chunks;
+    }
+
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.stub.StubHttpControl;
+
+/**
+ * {@link HttpControl} that passes the request straight to a single next handler, and runs
+ * {@link #execute(Runnable)} tasks immediately.
+ */
+public class InlineHttpControl extends StubHttpControl {
+
+    private final HttpHandler next;
+
+    public InlineHttpControl(HttpHandler next) {
+        this.next = next;
+    }
+
+    @Override
+    public void nextHandler() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void nextHandler(HttpRequest request, HttpResponse response) {
+        nextHandler(request, response, this);
+    }
+
+    @Override
+    public void nextHandler(HttpRequest request, HttpResponse response, HttpControl control) {
+        try {
+            next.handleHttpRequest(request, response, control);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        command.run();
+    }
+
+}
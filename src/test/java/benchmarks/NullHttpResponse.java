@@ -0,0 +1,77 @@
+package benchmarks;
+
+import org.webbitserver.HttpResponse;
+
+import java.net.HttpCookie;
+import java.nio.charset.Charset;
+
+/**
+ * Response that discards everything, so only the work in front of it is measured.
+ */
+public class NullHttpResponse implements HttpResponse {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private int status = 200;
+    private long bytes;
+
+    public HttpResponse charset(Charset charset) {
+        return this;
+    }
+
+    public Charset charset() {
+        return UTF8;
+    }
+
+    public HttpResponse status(int status) {
+        this.status = status;
+        return this;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    public HttpResponse header(String name, String value) {
+        return this;
+    }
+
+    public HttpResponse header(String name, long value) {
+        return this;
+    }
+
+    public HttpResponse cookie(HttpCookie httpCookie) {
+        return this;
+    }
+
+    public HttpResponse content(String content) {
+        bytes += content.length();
+        return this;
+    }
+
+    public HttpResponse write(String content) {
+        bytes += content.length();
+        return this;
+    }
+
+    public HttpResponse content(byte[] content) {
+        bytes += content.length;
+        return this;
+    }
+
+    public HttpResponse error(Throwable error) {
+        throw new RuntimeException(error);
+    }
+
+    public HttpResponse end() {
+        return this;
+    }
+
+    /**
+     * Amount of content written: bytes, or chars for strings.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+/**
+ * Generated HTML content and decorators for benchmarks.
+ */
+public class Pages {
+
+    /**
+     * A content page of roughly the given size in bytes.
+     */
+    public static String content(int size) {
+        StringBuilder page = new StringBuilder(size + 256);
+        page.append("<html><head><title>Benchmark page</title>")
+                .append("<meta name=\"description\" content=\"benchmark\"></head><body>");
+        int paragraph = 0;
+        while (page.length() < size) {
+            page.append("<p class=\"p").append(paragraph++ % 7).append("\">")
+                    .append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.")
+                    .append("</p>\n");
+        }
+        return page.append("</body></html>").toString();
+    }
+
+    /**
+     * A decorator with a few KB of layout around the title, head and body properties.
+     */
+    public static String decorator(int level) {
+        StringBuilder page = new StringBuilder(4096);
+        page.append("<!DOCTYPE html><html><head><title>Level ").append(level)
+                .append(": <sitemesh:write property=\"title\"/></title>")
+                .append("<sitemesh:write property=\"head\"/><style>");
+        for (int i = 0; i < 40; i++) {
+            page.append(".rule").append(i).append(" { margin: ").append(i).append("px; padding: 0; }\n");
+        }
+        page.append("</style></head><body><header><h1>Site</h1><nav><ul>");
+        for (int i = 0; i < 20; i++) {
+            page.append("<li><a href=\"/section").append(i).append("\">Section ").append(i).append("</a></li>");
+        }
+        return page.append("</ul></nav></header><div id=\"content\"><sitemesh:write property=\"body\"/></div>")
+                .append("<footer>Footer</footer></body></html>").toString();
+    }
+
+}
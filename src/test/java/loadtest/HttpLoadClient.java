@@ -0,0 +1,200 @@
+package loadtest;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.webbitserver.sitemesh.metrics.LatencyHistogram;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop HTTP load generator on Netty's non-blocking client. Each of {@link #concurrency} users sends
+ * a request, waits for the response, and immediately sends the next one, so the server always has that
+ * many requests in flight. Webbit closes the connection after every response, so each request is made
+ * on a new connection, and its latency includes connecting.
+ *
+ * <p>Only responses that complete while {@link #record(boolean) recording} is on are counted.</p>
+ */
+public class HttpLoadClient {
+
+    private static final int MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+
+    private final InetSocketAddress address;
+    private final String path;
+    private final Map<String, String> headers;
+    private final int concurrency;
+    private final ClientBootstrap bootstrap;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean recording;
+    private volatile boolean running;
+    private CountDownLatch stopped;
+
+    public HttpLoadClient(InetSocketAddress address, String path, Map<String, String> headers, int concurrency) {
+        this.address = address;
+        this.path = path;
+        this.headers = headers;
+        this.concurrency = concurrency;
+        this.bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(
+                        new HttpClientCodec(), new HttpChunkAggregator(MAX_RESPONSE_SIZE), new Exchange());
+            }
+        });
+    }
+
+    public void start() {
+        running = true;
+        stopped = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            send();
+        }
+    }
+
+    /**
+     * Stop sending, and wait for the requests in flight to complete.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        stopped.await();
+    }
+
+    public void release() {
+        bootstrap.releaseExternalResources();
+    }
+
+    /**
+     * Start (and clear the figures) or stop counting responses.
+     */
+    public void record(boolean recording) {
+        if (recording) {
+            latencies.reset();
+            errors.set(0);
+            bytes.set(0);
+        }
+        this.recording = recording;
+    }
+
+    /**
+     * Latency of successful requests.
+     */
+    public LatencyHistogram latencies() {
+        return latencies;
+    }
+
+    /**
+     * Requests that failed, or did not get a 200 response.
+     */
+    public long errors() {
+        return errors.get();
+    }
+
+    /**
+     * Total size of the bodies of successful responses.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    private void send() {
+        if (!running) {
+            stopped.countDown();
+            return;
+        }
+        final long start = System.nanoTime();
+        bootstrap.connect(address).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    completed(start, -1);
+                    return;
+                }
+                Channel channel = future.getChannel();
+                ((Exchange) channel.getPipeline().getLast()).start = start;
+                HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+                request.setHeader("Host", address.getHostName() + ":" + address.getPort());
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    request.setHeader(header.getKey(), header.getValue());
+                }
+                channel.write(request);
+            }
+        });
+    }
+
+    /**
+     * @param size Size of the response body, or -1 if the request failed.
+     */
+    private void completed(long start, long size) {
+        if (recording) {
+            if (size < 0) {
+                errors.incrementAndGet();
+            } else {
+                latencies.record(System.nanoTime() - start);
+                bytes.addAndGet(size);
+            }
+        }
+        send();
+    }
+
+    /**
+     * One request on one connection. Completes when the response arrives, or the connection fails or closes
+     * without one, whichever is first.
+     */
+    private class Exchange extends SimpleChannelUpstreamHandler {
+        volatile long start;
+        private boolean done;
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            HttpResponse response = (HttpResponse) e.getMessage();
+            complete(response.getStatus().getCode() == 200 ? response.getContent().readableBytes() : -1);
+            ctx.getChannel().close();
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            complete(-1);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            ctx.getChannel().close();
+        }
+
+        private void complete(long size) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+            }
+            completed(start, size);
+        }
+    }
+
+}
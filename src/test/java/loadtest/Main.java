@@ -0,0 +1,379 @@
+package loadtest;
+
+import benchmarks.Pages;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.WebServer;
+import org.webbitserver.handler.StringHttpHandler;
+import org.webbitserver.handler.exceptions.SilentExceptionHandler;
+import org.webbitserver.sitemesh.HeaderFragmentSelector;
+import org.webbitserver.sitemesh.SiteMeshHandlerBuilder;
+import org.webbitserver.sitemesh.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.webbitserver.WebServers.createWebServer;
+
+/**
+ * End to end load test: starts Webbit with a {@link org.webbitserver.sitemesh.SiteMeshHandler} on loopback,
+ * drives it with an {@link HttpLoadClient}, and prints throughput, latency percentiles and GC activity
+ * as JSON on stdout, so runs against different builds can be compared.
+ *
+ * <p>Options are given as <code>name=value</code> arguments:</p>
+ * <ul>
+ * <li><code>pageSize</code>: size of the content page in bytes (default 16384).</li>
+ * <li><code>decorators</code>: number of decorators applied to each page (default 1).</li>
+ * <li><code>concurrency</code>: requests in flight at once (default 16).</li>
+ * <li><code>warmup</code>, <code>duration</code>: seconds to warm up for, then to measure for (default 5 and 10).</li>
+ * <li><code>features</code>: comma separated builder options to turn on, from {@link #FEATURES}, e.g.
+ * <code>features=cache,compiled,streaming</code>. <code>pjax</code> also makes every request a pjax request,
+ * and <code>contentCache</code> gives the page an ETag.</li>
+ * </ul>
+ *
+ * <p>e.g. <code>make loadtest LOADTEST="pageSize=65536 decorators=2 concurrency=64 features=cache,compiled"</code></p>
+ */
+public class Main {
+
+    static final List<String> FEATURES = Arrays.asList(
+            "cache", "compiled", "streaming", "prefetch", "output", "compression", "pageCache", "contentCache", "executor", "pjax");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put("pageSize", "16384");
+        options.put("decorators", "1");
+        options.put("concurrency", "16");
+        options.put("warmup", "5");
+        options.put("duration", "10");
+        options.put("features", "");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals == -1 || !options.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown option: " + arg + ". Options are " + options.keySet());
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        int pageSize = Integer.parseInt(options.get("pageSize"));
+        int decorators = Integer.parseInt(options.get("decorators"));
+        int concurrency = Integer.parseInt(options.get("concurrency"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int duration = Integer.parseInt(options.get("duration"));
+        List<String> features = new ArrayList<String>();
+        for (String feature : options.get("features").split(",")) {
+            if (feature.length() == 0) {
+                continue;
+            }
+            if (!FEATURES.contains(feature)) {
+                throw new IllegalArgumentException("Unknown feature: " + feature + ". Features are " + FEATURES);
+            }
+            features.add(feature);
+        }
+
+        ExecutorService processingExecutor = features.contains("executor")
+                ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : null;
+        ExecutorService webbitExecutor = Executors.newSingleThreadExecutor();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", freePort());
+        WebServer webServer = createWebServer(webbitExecutor, address, URI.create("http://127.0.0.1:" + address.getPort()))
+                .connectionExceptionHandler(new SilentExceptionHandler())
+                .add(siteMeshHandler(decorators, features, processingExecutor))
+                .add("/page.html", pageHandler(pageSize, features.contains("contentCache")))
+                .start();
+
+        Map<String, String> headers = new HashMap<String, String>();
+        if (features.contains("compression")) {
+            headers.put("Accept-Encoding", "gzip");
+        }
+        if (features.contains("pjax")) {
+            headers.put(HeaderFragmentSelector.PJAX_HEADER, "true");
+        }
+        HttpLoadClient client = new HttpLoadClient(address, "/page.html", headers, concurrency);
+        client.start();
+        System.err.println("Warming up for " + warmup + "s");
+        Thread.sleep(warmup * 1000L);
+
+        System.err.println("Measuring for " + duration + "s");
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long[] collectorCounts = collectorCounts();
+        long[] collectorTimes = collectorTimes();
+        long cpuTime = cpuTime();
+        client.record(true);
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        client.record(false);
+        long elapsed = System.nanoTime() - start;
+        cpuTime = cpuTime() - cpuTime;
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+        long[] collectorCountsAfter = collectorCounts();
+        long[] collectorTimesAfter = collectorTimes();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        client.stop();
+        client.release();
+        webServer.stop();
+        webbitExecutor.shutdown();
+        if (processingExecutor != null) {
+            processingExecutor.shutdown();
+        }
+
+        LatencyHistogram latencies = client.latencies();
+        double seconds = elapsed / 1e9;
+        Json json = new Json();
+        json.open();
+        json.key("config").open()
+                .field("pageSize", pageSize)
+                .field("decorators", decorators)
+                .field("concurrency", concurrency)
+                .field("warmupSeconds", warmup)
+                .field("durationSeconds", duration)
+                .key("features").strings(features)
+                .close();
+        json.key("jvm").open()
+                .field("version", System.getProperty("java.version"))
+                .field("vm", System.getProperty("java.vm.name"))
+                .field("processors", Runtime.getRuntime().availableProcessors())
+                .field("maxHeapBytes", Runtime.getRuntime().maxMemory())
+                .close();
+        json.field("requests", latencies.count())
+                .field("errors", client.errors())
+                .field("requestsPerSecond", latencies.count() / seconds)
+                .field("bytesPerSecond", client.bytes() / seconds)
+                .field("cpuMillisPerRequest", latencies.count() == 0 ? 0 : cpuTime / 1e6 / latencies.count());
+        json.key("latencyMicros").open()
+                .field("mean", latencies.mean() / 1000)
+                .field("p50", latencies.percentile(50) / 1000.0)
+                .field("p90", latencies.percentile(90) / 1000.0)
+                .field("p99", latencies.percentile(99) / 1000.0)
+                .field("p999", latencies.percentile(99.9) / 1000.0)
+                .field("max", latencies.max() / 1000.0)
+                .close();
+        json.key("gc").open()
+                .field("count", gcCount)
+                .field("timeMillis", gcTime)
+                .field("heapUsedBytes", heap.getUsed())
+                .key("collectors").open();
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (int i = 0; i < collectors.size(); i++) {
+            json.key(collectors.get(i).getName()).open()
+                    .field("count", collectorCountsAfter[i] - collectorCounts[i])
+                    .field("timeMillis", collectorTimesAfter[i] - collectorTimes[i])
+                    .close();
+        }
+        json.close().close();
+        json.close();
+        System.out.println(json);
+        System.exit(0);
+    }
+
+    private static HttpHandler siteMeshHandler(int decoratorCount, List<String> features, ExecutorService processingExecutor) {
+        final Map<String, HttpHandler> decoratorsByPath = new HashMap<String, HttpHandler>();
+        String[] decoratorPaths = new String[decoratorCount];
+        for (int i = 0; i < decoratorCount; i++) {
+            decoratorPaths[i] = "/decorators/" + i + ".html";
+            decoratorsByPath.put(decoratorPaths[i], new StringHttpHandler("text/html", Pages.decorator(i)));
+        }
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(new HttpHandler() {
+                    public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) throws Exception {
+                        decoratorsByPath.get(request.uri()).handleHttpRequest(request, response, control);
+                    }
+                })
+                .addDecoratorPaths("/*", decoratorPaths);
+        if (features.contains("cache")) {
+            builder.enableDecoratorCache();
+        }
+        if (features.contains("compiled")) {
+            builder.enableCompiledDecorators();
+        }
+        if (features.contains("streaming")) {
+            builder.enableStreamingExtraction();
+        }
+        if (features.contains("prefetch")) {
+            builder.enableDecoratorPrefetch();
+        }
+        if (features.contains("output")) {
+            builder.enableStreamingOutput();
+        }
+        if (features.contains("compression")) {
+            builder.enableCompression();
+        }
+        if (features.contains("pageCache")) {
+            builder.enablePageCache(1024, 64 * 1024 * 1024);
+        }
+        if (features.contains("contentCache")) {
+            builder.enableContentCache(64 * 1024 * 1024);
+        }
+        if (features.contains("pjax")) {
+            builder.enablePjaxFragments();
+        }
+        builder.setProcessingExecutor(processingExecutor);
+        return builder.create();
+    }
+
+    private static HttpHandler pageHandler(int pageSize, boolean entityTag) {
+        final HttpHandler page = new StringHttpHandler("text/html", Pages.content(pageSize));
+        if (!entityTag) {
+            return page;
+        }
+        return new HttpHandler() {
+            public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) throws Exception {
+                response.header("ETag", "\"1\"");
+                page.handleHttpRequest(request, response, control);
+            }
+        };
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static long cpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (long collectorCount : collectorCounts()) {
+            count += collectorCount;
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (long collectorTime : collectorTimes()) {
+            time += collectorTime;
+        }
+        return time;
+    }
+
+    private static long[] collectorCounts() {
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        long[] counts = new long[collectors.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = Math.max(0, collectors.get(i).getCollectionCount());
+        }
+        return counts;
+    }
+
+    private static long[] collectorTimes() {
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        long[] times = new long[collectors.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = Math.max(0, collectors.get(i).getCollectionTime());
+        }
+        return times;
+    }
+
+    /**
+     * Just enough of a JSON writer for the report.
+     */
+    private static class Json {
+        private final StringBuilder out = new StringBuilder();
+        private boolean first = true;
+
+        Json open() {
+            comma();
+            out.append('{');
+            first = true;
+            return this;
+        }
+
+        Json close() {
+            out.append('}');
+            first = false;
+            return this;
+        }
+
+        Json key(String key) {
+            comma();
+            string(key).append(':');
+            first = true; // The value follows without a comma.
+            return this;
+        }
+
+        Json field(String key, String value) {
+            key(key);
+            first = false;
+            string(value);
+            return this;
+        }
+
+        Json field(String key, long value) {
+            key(key);
+            first = false;
+            out.append(value);
+            return this;
+        }
+
+        Json field(String key, double value) {
+            key(key);
+            first = false;
+            out.append(String.format(Locale.ROOT, "%.3f", value));
+            return this;
+        }
+
+        Json strings(List<String> values) {
+            comma();
+            out.append('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                string(values.get(i));
+            }
+            out.append(']');
+            return this;
+        }
+
+        private void comma() {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+        }
+
+        private StringBuilder string(String value) {
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+
+}
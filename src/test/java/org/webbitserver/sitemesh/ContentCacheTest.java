@@ -0,0 +1,115 @@
+package org.webbitserver.sitemesh;
+
+import benchmarks.InlineHttpControl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ContentCacheTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("content-cache", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void validatesPagesServedFromFiles() throws IOException {
+        write("index.html", "<html/>");
+        ContentCache cache = new ContentCache(1 << 20, directory);
+
+        String validator = cache.fileValidator("/index.html");
+        assertNotNull(validator);
+        assertEquals(validator, cache.fileValidator("/index.html"));
+
+        write("index.html", "<html>changed</html>");
+        assertEquals(false, validator.equals(cache.fileValidator("/index.html")));
+    }
+
+    @Test
+    public void doesNotValidatePathsThatAreNotRegularFiles() throws IOException {
+        write("index.html", "<html/>");
+        new File(directory, "sub").mkdir();
+        ContentCache cache = new ContentCache(1 << 20, directory);
+
+        assertNull(cache.fileValidator("/"));
+        assertNull(cache.fileValidator("/sub"));
+        assertNull(cache.fileValidator("/sub/"));
+        assertNull(cache.fileValidator("/missing.html"));
+        assertNull(cache.fileValidator("/sub/../index.html"));
+        assertNull(new ContentCache(1 << 20, null).fileValidator("/index.html"));
+    }
+
+    @Test
+    public void doesNotCacheDynamicPagesAtDirectoryPaths() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final String[] bodies = {"one", "two"};
+        HttpHandler handler = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(new HttpHandler() {
+                    public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+                        response.header("Content-Type", "text/html")
+                                .content("<html><body>[<sitemesh:write property='body'/>]</body></html>")
+                                .end();
+                    }
+                })
+                .addDecoratorPath("/*", "/decorator.html")
+                .enableContentCache(1 << 20, directory)
+                .create();
+        HttpControl control = new InlineHttpControl(new HttpHandler() {
+            public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+                response.header("Content-Type", "text/html")
+                        .content("<html><body>" + bodies[requests.getAndIncrement()] + "</body></html>")
+                        .end();
+            }
+        });
+
+        assertEquals("<html><body>[one]</body></html>", get(handler, control, "/"));
+        assertEquals("<html><body>[two]</body></html>", get(handler, control, "/"));
+    }
+
+    private String get(HttpHandler handler, HttpControl control, String uri) throws Exception {
+        StubHttpResponse response = new StubHttpResponse();
+        handler.handleHttpRequest(new StubHttpRequest(uri), response, control);
+        return response.contentsString();
+    }
+
+    private void write(String name, String content) throws IOException {
+        File file = new File(directory, name);
+        long previous = file.lastModified();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        // Make sure a rewrite is visible, even where modification times are coarse.
+        file.setLastModified(Math.max(System.currentTimeMillis(), previous + 1000));
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.webbitserver.sitemesh;
+
+import org.junit.Test;
+import org.sitemesh.content.Content;
+import org.sitemesh.content.ContentProcessor;
+import org.sitemesh.content.ContentProperty;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentExtractorTest {
+
+    private final ContentProcessor contentProcessor = new SiteMeshHandlerBuilder().getContentProcessor();
+
+    @Test
+    public void extractsTheSamePropertiesAsSiteMesh() throws IOException {
+        String page = "<!DOCTYPE html><html lang='en'><head><title>T</title>"
+                + "<meta name=\"author\" content=\"me\"><meta http-equiv='Refresh' content='5'>"
+                + "<script>if (a < b) document.write('<title>x</title>')</script></head>"
+                + "<body class=main><!-- <body> -->Hello</body></html>";
+
+        Content extracted = extract(page, 7);
+        assertNotNull(extracted);
+        assertEquals(properties(parse(page)), properties(extracted));
+        assertEquals("T", extracted.getExtractedProperties().getChild("title").getValue());
+    }
+
+    @Test
+    public void leavesSelfClosingScriptsAndXmpToSiteMesh() {
+        assertNull(extract("<html><head><script src=\"/a.js\"/><meta name=\"author\" content=\"me\">"
+                + "<title>T</title></head><body>x</body></html>", 1000));
+        assertNull(extract("<html><body><xmp><title>T</title></xmp></body></html>", 1000));
+    }
+
+    @Test
+    public void readsTagsInStyleElementsAsSiteMeshDoes() throws IOException {
+        String page = "<html><head><style>p {}<title>T</title></style></head><body>x</body></html>";
+
+        Content extracted = extract(page, 3);
+        assertNotNull(extracted);
+        assertEquals("T", extracted.getExtractedProperties().getChild("title").getValue());
+        assertEquals(properties(parse(page)), properties(extracted));
+    }
+
+    @Test
+    public void readsScriptsInXmlBlocksAsRawText() throws IOException {
+        String page = "<xml><script>a</xml>b</script>c</xml>d<title>T</title>";
+
+        Content extracted = extract(page, 5);
+        assertNotNull(extracted);
+        assertEquals(properties(parse(page)), properties(extracted));
+    }
+
+    /**
+     * Differential test against SiteMesh: pages made of random snippets of (mostly) HTML, fed to the extractor
+     * in random chunks. Whenever the extractor does not give up, it must agree with SiteMesh.
+     */
+    @Test
+    public void agreesWithSiteMeshOnFuzzedPages() throws IOException {
+        Random random = new Random(20111018);
+        int extracted = 0;
+        int pages = 20000;
+        for (int i = 0; i < pages; i++) {
+            String page = fuzzedPage(random);
+            Content content = extract(page, 1 + random.nextInt(16));
+            if (content != null) {
+                assertEquals(page, properties(parse(page)), properties(content));
+                extracted++;
+            }
+        }
+        // Otherwise the extractor could simply give up on everything.
+        assertTrue("Only extracted " + extracted + " pages", extracted > pages / 10);
+    }
+
+    private static final String[] SNIPPETS = {
+            "<html>", "</html>", "<html lang='en'>", "<head>", "</head>", "<title>", "</title>",
+            "<body>", "</body>", "<body class=main onload=\"init()\">", "<BODY>", "<Title>",
+            "<meta name=\"author\" content=\"me\">", "<meta name=description content=hello>",
+            "<meta http-equiv='Content-Type' content='text/html'>", "<meta name=\"x\"/>",
+            "<script>", "</script>", "<script src='/a.js'/>", "<script type=\"text/javascript\">",
+            "<style>", "</style>", "<style/>", "</script >", "<xmp>", "</xmp>", "<textarea>", "</textarea>",
+            "<!-- comment -->", "<!---->", "<!-->", "<!-- <title>x</title> -->", "<!DOCTYPE html>", "<![CDATA[x]]>",
+            "<xml>", "</xml>", "<sitemesh:write property='title'/>",
+            "<p>", "</p>", "<br/>", "<br />", "<a href='/x'>", "<a href=/>", "<a href=x>", "</a>", "<div id=\"d\">",
+            "<div", ">", "\"", "'", "<", "/", "=", "text", " ", "\n", "a < b", "&amp;", "\u00e9",
+    };
+
+    private static String fuzzedPage(Random random) {
+        StringBuilder page = new StringBuilder();
+        int snippets = random.nextInt(24);
+        for (int i = 0; i < snippets; i++) {
+            page.append(SNIPPETS[random.nextInt(SNIPPETS.length)]);
+        }
+        return page.toString();
+    }
+
+    private static Content extract(String page, int chunkSize) {
+        ContentExtractor extractor = new ContentExtractor();
+        for (int i = 0; i < page.length(); i += chunkSize) {
+            extractor.buffered(page.substring(i, Math.min(page.length(), i + chunkSize)));
+        }
+        return extractor.extract(page);
+    }
+
+    private Content parse(String page) throws IOException {
+        return contentProcessor.build(CharBuffer.wrap(page), new WebbitSiteMeshContext(null, null, contentProcessor));
+    }
+
+    /**
+     * Every property with a value, by its path.
+     */
+    private static Map<String, String> properties(Content content) {
+        Map<String, String> properties = new TreeMap<String, String>();
+        collect(content.getExtractedProperties(), "", properties);
+        return properties;
+    }
+
+    private static void collect(ContentProperty property, String path, Map<String, String> properties) {
+        if (property.hasValue()) {
+            properties.put(path, property.getValue());
+        }
+        for (ContentProperty child : property.getChildren()) {
+            collect(child, path + '/' + child.getName(), properties);
+        }
+    }
+
+}
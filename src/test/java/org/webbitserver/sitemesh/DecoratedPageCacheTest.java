@@ -0,0 +1,127 @@
+package org.webbitserver.sitemesh;
+
+import benchmarks.InlineHttpControl;
+import org.junit.Test;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.sitemesh.contentbuffer.SelectorBuilder;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DecoratedPageCacheTest {
+
+    private final AtomicInteger decoratorRequests = new AtomicInteger();
+    private int status = 200;
+
+    /**
+     * Serves the decorator with a different greeting each time, as a decorator that shows the user would.
+     */
+    private final HttpHandler decorators = new HttpHandler() {
+        public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+            response.header("Content-Type", "text/html")
+                    .content("<html><body>user" + decoratorRequests.getAndIncrement()
+                            + " <sitemesh:write property='body'/></body></html>")
+                    .end();
+        }
+    };
+
+    private final HttpControl control = new InlineHttpControl(new HttpHandler() {
+        public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+            response.status(status)
+                    .header("Content-Type", "text/html")
+                    .content("<html><body>Hello</body></html>")
+                    .end();
+        }
+    });
+
+    @Test
+    public void cachesPagesWhoseDecoratorsAreCached() throws Exception {
+        HttpHandler handler = builder().enableDecoratorCache().create();
+
+        StubHttpResponse first = get(handler, "/page.html", null);
+        StubHttpResponse second = get(handler, "/page.html", null);
+
+        assertEquals("<html><body>user0 Hello</body></html>", first.contentsString());
+        assertEquals("<html><body>user0 Hello</body></html>", second.contentsString());
+        assertEquals(1, decoratorRequests.get());
+        assertNotNull(first.header("ETag"));
+        assertEquals(first.header("ETag"), second.header("ETag"));
+
+        StubHttpResponse notModified = get(handler, "/page.html", first.header("ETag"));
+        assertEquals(304, notModified.status());
+        assertEquals(first.header("ETag"), notModified.header("ETag"));
+    }
+
+    @Test
+    public void doesNotCachePagesWhoseDecoratorsHaveNoVersion() throws Exception {
+        HttpHandler handler = builder().create();
+
+        StubHttpResponse first = get(handler, "/page.html", null);
+        StubHttpResponse second = get(handler, "/page.html", null);
+
+        assertEquals("<html><body>user0 Hello</body></html>", first.contentsString());
+        assertEquals("<html><body>user1 Hello</body></html>", second.contentsString());
+        assertNull(first.header("ETag"));
+        assertNull(second.header("ETag"));
+    }
+
+    @Test
+    public void doesNotAnswerErrorPagesWithNotModified() throws Exception {
+        HttpHandler handler = builder()
+                .setSelectorRules(new SelectorBuilder().includeErrorPages())
+                .enableDecoratorCache()
+                .create();
+
+        StubHttpResponse ok = get(handler, "/page.html", null);
+        status = 503;
+        StubHttpResponse failing = get(handler, "/page.html", ok.header("ETag"));
+
+        assertEquals(503, failing.status());
+        assertEquals("<html><body>user0 Hello</body></html>", failing.contentsString());
+        assertNull(failing.header("ETag"));
+    }
+
+    @Test
+    public void doesNotAnswerUndecoratedErrorPagesWithNotModified() throws Exception {
+        HttpHandler handler = builder()
+                .setSelectorRules(new SelectorBuilder().includeErrorPages())
+                .enableDecoratorCache()
+                .create();
+
+        StubHttpResponse ok = get(handler, "/plain/page.html", null);
+        assertNotNull(ok.header("ETag"));
+        status = 503;
+        StubHttpResponse failing = get(handler, "/plain/page.html", ok.header("ETag"));
+
+        assertEquals(503, failing.status());
+        assertEquals("<html><body>Hello</body></html>", failing.contentsString());
+        assertNull(failing.header("ETag"));
+    }
+
+    private SiteMeshHandlerBuilder builder() {
+        return new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorators)
+                .addDecoratorPath("/*", "/decorator.html")
+                .addDecoratorPaths("/plain/*")
+                .enablePageCache(100, 1 << 20);
+    }
+
+    private StubHttpResponse get(HttpHandler handler, String uri, String ifNoneMatch) throws Exception {
+        StubHttpRequest request = new StubHttpRequest(uri);
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        StubHttpResponse response = new StubHttpResponse();
+        handler.handleHttpRequest(request, response, control);
+        return response;
+    }
+
+}
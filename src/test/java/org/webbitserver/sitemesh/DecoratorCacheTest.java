@@ -0,0 +1,119 @@
+package org.webbitserver.sitemesh;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DecoratorCacheTest {
+
+    private File directory;
+    private File file;
+    private DecoratorCache cache;
+
+    @Before
+    public void createDecorator() throws IOException {
+        directory = File.createTempFile("decorators", "");
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "decorator.html");
+        write("old");
+        cache = new DecoratorCache(0, TimeUnit.MILLISECONDS, directory);
+        cache.put("/decorator.html", CharBuffer.wrap("old"));
+    }
+
+    @After
+    public void deleteDecorator() {
+        file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void holdsDecoratorsUntilInvalidated() {
+        assertEquals("old", cache.get("/decorator.html").toString());
+        assertTrue(cache.version("/decorator.html") != 0);
+        assertNull(cache.get("/other.html"));
+        assertEquals(0, cache.version("/other.html"));
+
+        cache.invalidate("/decorator.html");
+        assertNull(cache.get("/decorator.html"));
+    }
+
+    @Test
+    public void expiresDecoratorsAfterTheirTimeToLive() throws InterruptedException {
+        DecoratorCache expiring = new DecoratorCache(20, TimeUnit.MILLISECONDS, null);
+        expiring.put("/decorator.html", CharBuffer.wrap("old"));
+        Thread.sleep(40);
+
+        assertEquals(0, expiring.version("/decorator.html"));
+        assertNull(expiring.get("/decorator.html"));
+    }
+
+    /**
+     * The page cache asks for the version before the decorator: whichever finds the file has changed must
+     * discard the entry, as the next check is a while off.
+     */
+    @Test
+    public void discardsChangedDecoratorsFoundByVersion() throws Exception {
+        changeFile();
+
+        assertEquals(0, cache.version("/decorator.html"));
+        assertNull(cache.get("/decorator.html"));
+
+        cache.put("/decorator.html", CharBuffer.wrap("new"));
+        assertEquals("new", cache.get("/decorator.html").toString());
+    }
+
+    @Test
+    public void discardsChangedDecoratorsFoundByGet() throws Exception {
+        changeFile();
+
+        assertNull(cache.get("/decorator.html"));
+        assertEquals(0, cache.version("/decorator.html"));
+    }
+
+    @Test
+    public void compilesEachDecoratorOnce() {
+        cache.put("/page.html", CharBuffer.wrap("<html><body><sitemesh:write property='body'/></body></html>"));
+
+        assertNotNull(cache.template("/page.html"));
+        assertSame(cache.template("/page.html"), cache.template("/page.html"));
+        assertNull(cache.template("/other.html"));
+    }
+
+    @Test
+    public void discardsChangedDecoratorsFoundByTemplate() throws Exception {
+        changeFile();
+
+        assertNull(cache.template("/decorator.html"));
+        assertNull(cache.get("/decorator.html"));
+        assertEquals(0, cache.version("/decorator.html"));
+    }
+
+    private void changeFile() throws Exception {
+        Thread.sleep(DecoratorCache.MODIFICATION_CHECK_INTERVAL_MILLIS + 50);
+        write("new");
+        assertTrue(file.setLastModified(file.lastModified() + 10000));
+    }
+
+    private void write(String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}
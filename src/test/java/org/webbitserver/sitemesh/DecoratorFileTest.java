@@ -0,0 +1,95 @@
+package org.webbitserver.sitemesh;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DecoratorFileTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("decorator", ".html");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void readsTheFileInItsCharset() throws IOException {
+        write("<html><body>Caf\u00e9 <sitemesh:write property='body'/></body></html>".getBytes("UTF-8"));
+
+        DecoratorFile decorator = new DecoratorFile(file);
+        assertEquals("<html><body>Caf\u00e9 <sitemesh:write property='body'/></body></html>",
+                decorator.decorator().toString());
+        assertTrue(decorator.version() != 0);
+
+        write("Caf\u00e9".getBytes("ISO-8859-1"));
+        assertEquals("Caf\u00e9", new DecoratorFile(file, Charset.forName("ISO-8859-1")).decorator().toString());
+    }
+
+    @Test
+    public void readsFilesOfAnySize() throws IOException {
+        for (int length : new int[]{0, 1, 8191, 8192, 100000}) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                text.append((char) ('a' + i % 26));
+            }
+            write(text.toString().getBytes("UTF-8"));
+            assertEquals(text.toString(), new DecoratorFile(file).decorator().toString());
+        }
+    }
+
+    @Test
+    public void replacesMalformedInput() throws IOException {
+        write(new byte[]{'a', (byte) 0xff, 'b'});
+
+        assertEquals("a\ufffdb", new DecoratorFile(file).decorator().toString());
+    }
+
+    @Test
+    public void readsTheFileAgainOnceInvalidated() throws IOException {
+        write("first".getBytes("UTF-8"));
+        DecoratorFile decorator = new DecoratorFile(file);
+        long version = decorator.version();
+        assertEquals("first", decorator.decorator().toString());
+
+        write("second, which is longer".getBytes("UTF-8"));
+        decorator.invalidate();
+
+        assertEquals("second, which is longer", decorator.decorator().toString());
+        assertTrue(decorator.version() != version);
+    }
+
+    @Test
+    public void hasNoDecoratorIfTheFileCannotBeRead() {
+        file.delete();
+        DecoratorFile decorator = new DecoratorFile(file);
+
+        assertNull(decorator.decorator());
+        assertNull(decorator.template());
+        assertEquals(0, decorator.version());
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+}
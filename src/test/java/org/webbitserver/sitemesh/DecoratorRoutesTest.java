@@ -0,0 +1,171 @@
+package org.webbitserver.sitemesh;
+
+import benchmarks.InlineHttpControl;
+import org.junit.Test;
+import org.sitemesh.config.PathMapper;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.handler.StringHttpHandler;
+import org.webbitserver.sitemesh.contentbuffer.SelectorBuilder;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DecoratorRoutesTest {
+
+    private static final String[] PATTERNS = {
+            "/", "*", "/*", "/index.html", "/a/b.html", "/A/B.html", "/a/*", "/a/b/*", "/A/*", "*.html", "*.HTM",
+            "*.jsp", "/a/*/c.html", "/a?b.html", "/a/*.html", "*/b.html", "/*/*", "/a/b.html?x=1", "/a//b.html",
+    };
+
+    private static final String[] SEGMENTS = {"a", "A", "b", "b.html", "B.HTML", "c.html", "index.html", "x.jsp", "", "ab.html"};
+    private static final String[] SUFFIXES = {"", "?x=1", "?x=/a/b.html", "#top", "?y=1#f", "/"};
+
+    /**
+     * Random mappings and paths (including query strings, fragments, repeated slashes and mixed case), routed
+     * both as they are and normalised, must give the same decorators as {@link PathMapper}.
+     */
+    @Test
+    public void routesAsPathMapperDoes() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            Map<String, HttpHandler[]> decorators = new LinkedHashMap<String, HttpHandler[]>();
+            PathMapper<HttpHandler[]> mapper = new PathMapper<HttpHandler[]>();
+            int count = random.nextInt(8);
+            for (int i = 0; i < count; i++) {
+                String pattern = PATTERNS[random.nextInt(PATTERNS.length)];
+                HttpHandler[] handlers = new HttpHandler[]{new StringHttpHandler("text/html", pattern)};
+                decorators.put(pattern, handlers);
+                mapper.put(pattern, handlers);
+            }
+            DecoratorRoutes uncached = new DecoratorRoutes(decorators, Collections.<String>emptySet(), 0);
+            DecoratorRoutes cached = new DecoratorRoutes(decorators, Collections.<String>emptySet(), 4);
+            for (int i = 0; i < 50; i++) {
+                String uri = uri(random);
+                for (String path : new String[]{uri, WebbitSiteMeshContext.normalisePath(uri)}) {
+                    HttpHandler[] expected = mapper.get(path);
+                    String message = decorators.keySet() + " " + path;
+                    assertSame(message, expected == null ? 0 : expected.length, uncached.route(path).getDecorators().length);
+                    if (expected != null) {
+                        assertSame(message, expected, uncached.route(path).getDecorators());
+                        assertSame(message, expected, cached.route(path).getDecorators());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void routesEachPatternForm() {
+        HttpHandler[] exact = decorators(), prefix = decorators(), suffix = decorators(), wildcard = decorators(),
+                fallback = decorators();
+        Map<String, HttpHandler[]> mappings = new LinkedHashMap<String, HttpHandler[]>();
+        mappings.put("/docs/index.html", exact);
+        mappings.put("/docs/*", prefix);
+        mappings.put("*.pdf.html", suffix);
+        mappings.put("/docs/?/*.html", wildcard);
+        mappings.put("/*", fallback);
+        DecoratorRoutes routes = new DecoratorRoutes(mappings, Arrays.asList("/static/*", "*.txt"), 16);
+
+        assertSame(exact, routes.route("/docs/index.html").getDecorators());
+        assertSame(prefix, routes.route("/DOCS/Guide.html").getDecorators());
+        assertSame(suffix, routes.route("/docs/report.PDF.html").getDecorators());
+        assertSame(wildcard, routes.route("/docs/a/deep/page.html").getDecorators());
+        assertSame(fallback, routes.route("/other.html").getDecorators());
+        assertSame(fallback, routes.route(null).getDecorators());
+
+        assertTrue(routes.route("/static/app.css").isExcluded());
+        assertTrue(routes.route("/notes.txt").isExcluded());
+        assertFalse(routes.route("/docs/index.html").isExcluded());
+    }
+
+    @Test
+    public void routesNothingWithoutMappings() {
+        DecoratorRoutes routes = new DecoratorRoutes(Collections.<String, HttpHandler[]>emptyMap(),
+                Collections.<String>emptySet(), 0);
+
+        assertEquals(0, routes.route("/page.html").getDecorators().length);
+        assertFalse(routes.route("/page.html").isExcluded());
+    }
+
+    @Test
+    public void routesThroughAPathMapper() {
+        HttpHandler[] docs = decorators(), fallback = decorators();
+        PathMapper<HttpHandler[]> mapper = new PathMapper<HttpHandler[]>();
+        mapper.put("/docs/*", docs);
+        mapper.put("/*", fallback);
+        DecoratorRoutes routes = new DecoratorRoutes(mapper, 16);
+
+        assertSame(docs, routes.route("/docs/a.html").getDecorators());
+        assertSame(fallback, routes.route("/a.html").getDecorators());
+        assertFalse(routes.route("/a.html").isExcluded());
+    }
+
+    @Test
+    public void normalisesRequestPaths() {
+        assertEquals("/a/b.html", WebbitSiteMeshContext.normalisePath("/a/b.html"));
+        assertEquals("/a/b.html", WebbitSiteMeshContext.normalisePath("/a/b.html?x=1"));
+        assertEquals("/a/b.html", WebbitSiteMeshContext.normalisePath("/a/b.html#top"));
+        assertEquals("/a/b.html", WebbitSiteMeshContext.normalisePath("/a/b.html?x=/c//d#e"));
+        assertEquals("/a/b.html", WebbitSiteMeshContext.normalisePath("//a///b.html"));
+        assertEquals("/", WebbitSiteMeshContext.normalisePath("?x=1"));
+        assertEquals("/", WebbitSiteMeshContext.normalisePath(""));
+        assertEquals("/", WebbitSiteMeshContext.normalisePath(null));
+    }
+
+    @Test
+    public void decoratesWithAPathMapperGivenToTheHandler() throws Exception {
+        PathMapper<HttpHandler[]> mapper = new PathMapper<HttpHandler[]>();
+        mapper.put("/*", new HttpHandler[]{new StringHttpHandler("text/html",
+                "<html><body>[<sitemesh:write property='body'/>]</body></html>")});
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder();
+        HttpHandler handler = new SiteMeshHandler(new SelectorBuilder().create(), builder.getContentProcessor(), mapper);
+
+        StubHttpResponse response = new StubHttpResponse();
+        handler.handleHttpRequest(new StubHttpRequest("/page.html?x=1"), response, new InlineHttpControl(new HttpHandler() {
+            public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+                response.header("Content-Type", "text/html").content("<html><body>Hello</body></html>").end();
+            }
+        }));
+
+        assertEquals("<html><body>[Hello]</body></html>", response.contentsString());
+    }
+
+    @Test
+    public void keepsDecoratorOrder() {
+        HttpHandler outer = new StringHttpHandler("text/html", "outer");
+        HttpHandler inner = new StringHttpHandler("text/html", "inner");
+        Map<String, HttpHandler[]> mappings = new LinkedHashMap<String, HttpHandler[]>();
+        mappings.put("/*", new HttpHandler[]{inner, outer});
+        DecoratorRoutes routes = new DecoratorRoutes(mappings, Collections.<String>emptySet(), 0);
+
+        assertArrayEquals(new HttpHandler[]{inner, outer}, routes.route("/page.html").getDecorators());
+    }
+
+    private static String uri(Random random) {
+        StringBuilder uri = new StringBuilder();
+        int segments = 1 + random.nextInt(3);
+        for (int i = 0; i < segments; i++) {
+            uri.append(random.nextInt(5) == 0 ? "//" : "/").append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+        }
+        return uri.append(SUFFIXES[random.nextInt(SUFFIXES.length)]).toString();
+    }
+
+    private static HttpHandler[] decorators() {
+        return new HttpHandler[]{new StringHttpHandler("text/html", "")};
+    }
+
+}
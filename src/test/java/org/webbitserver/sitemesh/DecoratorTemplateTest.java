@@ -0,0 +1,109 @@
+package org.webbitserver.sitemesh;
+
+import benchmarks.InlineHttpControl;
+import org.junit.Test;
+import org.sitemesh.SiteMeshContext;
+import org.sitemesh.content.ContentProperty;
+import org.sitemesh.content.tagrules.TagRuleBundle;
+import org.sitemesh.tagprocessor.BasicRule;
+import org.sitemesh.tagprocessor.State;
+import org.sitemesh.tagprocessor.Tag;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DecoratorTemplateTest {
+
+    private static final String DECORATOR = "<html><head><title>Site: <sitemesh:write property='title'/></title></head>"
+            + "<body><a href='/home'>Home</a> <sitemesh:write property='body'/></body></html>";
+
+    private final HttpControl control = new InlineHttpControl(new HttpHandler() {
+        public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+            response.header("Content-Type", "text/html")
+                    .content("<html><head><title>Page</title></head><body>Hello</body></html>")
+                    .end();
+        }
+    });
+
+    @Test
+    public void rendersTheSamePageAsTheContentProcessor() throws Exception {
+        String processed = get(new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorator())
+                .addDecoratorPath("/*", "/decorator.html")
+                .enableDecoratorCache());
+        String compiled = get(new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorator())
+                .addDecoratorPath("/*", "/decorator.html")
+                .enableDecoratorCache()
+                .enableCompiledDecorators());
+
+        assertEquals("<html><head><title>Site: Page</title></head><body><a href='/home'>Home</a> Hello</body></html>",
+                processed);
+        assertEquals(processed, compiled);
+    }
+
+    @Test
+    public void appliesCustomTagRulesToTheDecorator() throws Exception {
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorator())
+                .addDecoratorPath("/*", "/decorator.html")
+                .addTagRuleBundle(new LinkRewriter())
+                .enableDecoratorCache()
+                .enableCompiledDecorators();
+
+        assertEquals(false, builder.isCompiledDecoratorsEnabled());
+        assertEquals("<html><head><title>Site: Page</title></head><body><a href=\"/app/home\">Home</a> Hello</body></html>",
+                get(builder));
+    }
+
+    @Test
+    public void doesNotCompileDecoratorsWithOtherSiteMeshTags() {
+        assertNull(DecoratorTemplate.compile("<html><body><sitemesh:decorate decorator='/x'/></body></html>"));
+        assertNull(DecoratorTemplate.compile("<html><body><sitemesh:write/></body></html>"));
+    }
+
+    private String get(SiteMeshHandlerBuilder builder) throws Exception {
+        StubHttpResponse response = new StubHttpResponse();
+        builder.create().handleHttpRequest(new StubHttpRequest("/page.html"), response, control);
+        return response.contentsString();
+    }
+
+    private static HttpHandler decorator() {
+        return new HttpHandler() {
+            public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+                response.header("Content-Type", "text/html").content(DECORATOR).end();
+            }
+        };
+    }
+
+    /**
+     * Prefixes the href of every link with the application's context path.
+     */
+    private static class LinkRewriter implements TagRuleBundle {
+        public void install(State defaultState, ContentProperty contentProperty, SiteMeshContext siteMeshContext) {
+            defaultState.addRule("a", new BasicRule() {
+                @Override
+                public void process(Tag tag) throws IOException {
+                    if (tag.getType() == Tag.Type.OPEN && tag.hasAttribute("href", false)) {
+                        tagProcessorContext.currentBuffer()
+                                .append("<a href=\"/app").append(tag.getAttributeValue("href", false)).append("\">");
+                    } else {
+                        tag.writeTo(tagProcessorContext.currentBuffer());
+                    }
+                }
+            });
+        }
+
+        public void cleanUp(State defaultState, ContentProperty contentProperty, SiteMeshContext siteMeshContext) {
+        }
+    }
+
+}
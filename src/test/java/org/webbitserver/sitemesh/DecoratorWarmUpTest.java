@@ -0,0 +1,127 @@
+package org.webbitserver.sitemesh;
+
+import benchmarks.InlineHttpControl;
+import org.junit.Test;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DecoratorWarmUpTest {
+
+    private final AtomicInteger decoratorRequests = new AtomicInteger();
+
+    private final HttpHandler decorators = new HttpHandler() {
+        public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+            decoratorRequests.incrementAndGet();
+            if (request.uri().equals("/decorator.html")) {
+                response.header("Content-Type", "text/html")
+                        .content("<html><body>[<sitemesh:write property='body'/>]</body></html>")
+                        .end();
+            } else if (request.uri().equals("/broken.html")) {
+                response.status(500).end();
+            } else {
+                control.nextHandler(); // As StaticFileHandler does for a missing file.
+            }
+        }
+    };
+
+    private final HttpControl control = new InlineHttpControl(new HttpHandler() {
+        public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+            response.header("Content-Type", "text/html").content("<html><body>Hello</body></html>").end();
+        }
+    });
+
+    @Test
+    public void loadsAndCompilesEachDecoratorIntoTheCache() throws Exception {
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorators)
+                .addDecoratorPath("/*", "/decorator.html")
+                .addDecoratorPath("/blog/*", "/decorator.html")
+                .enableDecoratorCache()
+                .enableCompiledDecorators()
+                .enableWarmUp(20);
+        HttpHandler handler = builder.create();
+        DecoratorWarmUp warmUp = builder.getWarmUp();
+
+        assertEquals(1, warmUp.getDecoratorLoads().size());
+        DecoratorWarmUp.DecoratorLoad load = warmUp.getDecoratorLoads().get(0);
+        assertEquals("/decorator.html", load.getName());
+        assertEquals(61, load.getLength());
+        assertTrue(load.isCompiled());
+        assertNull(load.getFailure());
+        assertEquals(20, warmUp.getDecorations());
+        assertEquals(0, warmUp.getDecorationFailures());
+        assertFalse(warmUp.hasFailures());
+        assertTrue(warmUp.toString(), warmUp.toString().startsWith("/decorator.html: 61 chars, compiled in "));
+
+        DecoratorCache cache = builder.getDecoratorCache();
+        assertNotNull(cache.get("/decorator.html"));
+        assertNotNull(cache.template("/decorator.html"));
+        assertEquals(1, decoratorRequests.get());
+
+        assertEquals("<html><body>[Hello]</body></html>", get(handler, "/blog/page.html").contentsString());
+        assertEquals(1, decoratorRequests.get());
+    }
+
+    /**
+     * A decorator handler that passes the request on is answered as not found when serving pages, so warm-up
+     * reports it as such, and the synthetic pages are passed through undecorated.
+     */
+    @Test
+    public void reportsDecoratorsPassedOnToTheNextHandler() throws Exception {
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorators)
+                .addDecoratorPath("/*", "/missing.html")
+                .enableDecoratorCache()
+                .enableWarmUp(5);
+        HttpHandler handler = builder.create();
+        DecoratorWarmUp warmUp = builder.getWarmUp();
+
+        DecoratorWarmUp.DecoratorLoad load = warmUp.getDecoratorLoads().get(0);
+        assertEquals("not found (passed on to the next handler)", load.getFailure());
+        assertEquals(0, load.getLength());
+        assertTrue(warmUp.hasFailures());
+        assertEquals(5, warmUp.getDecorations());
+        assertEquals(0, warmUp.getDecorationFailures());
+        assertNull(builder.getDecoratorCache().get("/missing.html"));
+
+        assertEquals("<html><body>Hello</body></html>", get(handler, "/page.html").contentsString());
+    }
+
+    @Test
+    public void reportsDecoratorsThatFail() throws Exception {
+        SiteMeshHandlerBuilder builder = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorators)
+                .addDecoratorPath("/a/*", "/broken.html")
+                .addDecoratorPath("/b/*", "/decorator.html")
+                .enableWarmUp(4);
+        builder.create();
+        DecoratorWarmUp warmUp = builder.getWarmUp();
+
+        assertEquals("status 500", warmUp.getDecoratorLoads().get(0).getFailure());
+        assertNull(warmUp.getDecoratorLoads().get(1).getFailure());
+        assertFalse(warmUp.getDecoratorLoads().get(1).isCompiled());
+        assertTrue(warmUp.hasFailures());
+        assertTrue(warmUp.toString(), warmUp.toString().startsWith("/broken.html: FAILED (status 500) in "));
+        assertTrue(warmUp.toString(), warmUp.toString().endsWith("4 synthetic pages decorated in "
+                + warmUp.getDecorationNanos() / 1000000 + "ms, 0 failed"));
+    }
+
+    private StubHttpResponse get(HttpHandler handler, String uri) throws Exception {
+        StubHttpResponse response = new StubHttpResponse();
+        handler.handleHttpRequest(new StubHttpRequest(uri), response, control);
+        return response;
+    }
+
+}
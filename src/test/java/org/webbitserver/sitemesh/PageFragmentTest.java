@@ -0,0 +1,137 @@
+package org.webbitserver.sitemesh;
+
+import benchmarks.InlineHttpControl;
+import org.junit.Test;
+import org.sitemesh.content.Content;
+import org.sitemesh.content.ContentProcessor;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PageFragmentTest {
+
+    private static final String PAGE = "<html><head><title>Say \"hi\"</title>"
+            + "<meta name='description' content='C:\\pages'></head>"
+            + "<body><p class=\"x\">Hello\n\tthere\u2028\u0001</p></body></html>";
+
+    private final ContentProcessor contentProcessor = new SiteMeshHandlerBuilder().getContentProcessor();
+    private final AtomicInteger decoratorRequests = new AtomicInteger();
+
+    private final HttpHandler decorators = new HttpHandler() {
+        public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+            decoratorRequests.incrementAndGet();
+            response.header("Content-Type", "text/html")
+                    .content("<html><body>[<sitemesh:write property='body'/>]</body></html>")
+                    .end();
+        }
+    };
+
+    private final HttpControl control = new InlineHttpControl(new HttpHandler() {
+        public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+            response.header("Content-Type", "text/html").content("<html><head><title>T</title></head>"
+                    + "<body>Hello</body></html>").end();
+        }
+    });
+
+    @Test
+    public void selectsFragmentsByRequestHeader() {
+        PageFragment fragment = new PjaxFragment();
+        FragmentSelector selector = new HeaderFragmentSelector(HeaderFragmentSelector.PJAX_HEADER, fragment);
+
+        assertSame(fragment, selector.fragment(new StubHttpRequest("/").header("X-PJAX", "true")));
+        assertSame(fragment, selector.fragment(new StubHttpRequest("/").header("X-PJAX", "")));
+        assertNull(selector.fragment(new StubHttpRequest("/")));
+        assertNull(selector.fragment(new StubHttpRequest("/").header("X-Requested-With", "XMLHttpRequest")));
+    }
+
+    @Test
+    public void writesTheTitleThenTheBodyForPjax() throws IOException {
+        PjaxFragment fragment = new PjaxFragment();
+
+        assertEquals("text/html", fragment.getContentType());
+        assertEquals("<title>Say \"hi\"</title><p class=\"x\">Hello\n\tthere\u2028\u0001</p>", write(fragment, PAGE));
+        assertEquals("<p>Untitled</p>", write(fragment, "<html><body><p>Untitled</p></body></html>"));
+    }
+
+    @Test
+    public void writesPropertiesAsAJsonObject() throws IOException {
+        JsonFragment fragment = new JsonFragment("title", "meta.description", "body", "missing");
+
+        assertEquals("application/json", fragment.getContentType());
+        assertEquals("{\"title\":\"Say \\\"hi\\\"\","
+                + "\"meta.description\":\"C:\\\\pages\","
+                + "\"body\":\"<p class=\\\"x\\\">Hello\\n\\tthere\\u2028\\u0001</p>\","
+                + "\"missing\":null}", write(fragment, PAGE));
+        assertEquals("{}", write(new JsonFragment(), PAGE));
+    }
+
+    @Test
+    public void writesTheSameJsonToAnyAppendable() throws IOException {
+        JsonFragment fragment = new JsonFragment("title", "body");
+        StringWriter out = new StringWriter();
+        fragment.writeTo(parse(PAGE), out);
+
+        assertEquals(write(fragment, PAGE), out.toString());
+    }
+
+    @Test
+    public void sendsTheFragmentWithoutFetchingDecorators() throws Exception {
+        HttpHandler handler = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorators)
+                .addDecoratorPath("/*", "/decorator.html")
+                .setFragmentSelector(new HeaderFragmentSelector("X-Fragment", new JsonFragment("title", "body")))
+                .create();
+
+        StubHttpResponse fragment = get(handler, new StubHttpRequest("/page.html").header("X-Fragment", "1"));
+        assertEquals("{\"title\":\"T\",\"body\":\"Hello\"}", fragment.contentsString());
+        assertEquals("application/json; charset=UTF-8", fragment.header("Content-Type"));
+        assertEquals(0, decoratorRequests.get());
+
+        StubHttpResponse page = get(handler, new StubHttpRequest("/page.html"));
+        assertEquals("<html><body>[Hello]</body></html>", page.contentsString());
+        assertEquals(1, decoratorRequests.get());
+    }
+
+    @Test
+    public void sendsPjaxFragmentsOnceEnabled() throws Exception {
+        HttpHandler handler = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(decorators)
+                .addDecoratorPath("/*", "/decorator.html")
+                .enablePjaxFragments()
+                .create();
+
+        StubHttpResponse fragment = get(handler, new StubHttpRequest("/page.html").header("X-PJAX", "true"));
+        assertEquals("<title>T</title>Hello", fragment.contentsString());
+        assertEquals("text/html; charset=UTF-8", fragment.header("Content-Type"));
+        assertEquals(0, decoratorRequests.get());
+    }
+
+    private String write(PageFragment fragment, String page) throws IOException {
+        StringBuilder out = new StringBuilder();
+        fragment.writeTo(parse(page), out);
+        return out.toString();
+    }
+
+    private Content parse(String page) throws IOException {
+        return contentProcessor.build(CharBuffer.wrap(page), new WebbitSiteMeshContext(null, null, contentProcessor));
+    }
+
+    private StubHttpResponse get(HttpHandler handler, StubHttpRequest request) throws Exception {
+        StubHttpResponse response = new StubHttpResponse();
+        handler.handleHttpRequest(request, response, control);
+        return response;
+    }
+
+}
@@ -0,0 +1,146 @@
+package org.webbitserver.sitemesh;
+
+import benchmarks.InlineHttpControl;
+import org.junit.Test;
+import org.webbitserver.HttpControl;
+import org.webbitserver.HttpHandler;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+    @Test
+    public void tellsWaitersTheOutcomeOfTheLoadInProgress() {
+        SingleFlight<String> flight = new SingleFlight<String>(0);
+        Outcomes first = new Outcomes();
+        Outcomes second = new Outcomes();
+
+        SingleFlight.Load<String> load = flight.join("key", first);
+        assertNotNull(load);
+        assertNull(flight.join("key", second));
+        assertEquals(1, flight.size());
+
+        load.complete("value", null);
+        assertEquals("value", second.values.poll());
+        assertTrue(first.values.isEmpty());
+        assertFalse(load.isAbandoned());
+        assertEquals(0, flight.size());
+        assertNotNull(flight.join("key", first));
+    }
+
+    @Test
+    public void abandonsLoadsThatMissTheirDeadline() throws InterruptedException {
+        SingleFlight<String> flight = new SingleFlight<String>(50);
+        Outcomes waiter = new Outcomes();
+
+        Outcomes loader = new Outcomes();
+        SingleFlight.Load<String> hung = flight.join("key", loader);
+        assertNull(flight.join("key", waiter));
+
+        assertTrue(waiter.failures.poll(5, TimeUnit.SECONDS) instanceof TimeoutException);
+        assertTrue(loader.failures.poll(5, TimeUnit.SECONDS) instanceof TimeoutException);
+        assertTrue(hung.isAbandoned());
+        assertEquals(0, flight.size());
+
+        // The next caller loads it again, and the abandoned load completing late does not count.
+        Outcomes next = new Outcomes();
+        SingleFlight.Load<String> retry = flight.join("key", new Outcomes());
+        assertNotNull(retry);
+        assertNull(flight.join("key", next));
+        hung.complete("stale", null);
+        assertTrue(next.values.isEmpty());
+        assertTrue(loader.values.isEmpty());
+        retry.complete("fresh", null);
+        assertEquals("fresh", next.values.poll());
+    }
+
+    @Test
+    public void writesPagesUndecoratedWhileACachedDecoratorIsHung() throws Exception {
+        final AtomicInteger decoratorRequests = new AtomicInteger();
+        final BlockingQueue<HttpResponse> hungDecorators = new ArrayBlockingQueue<HttpResponse>(1);
+        HttpHandler handler = new SiteMeshHandlerBuilder()
+                .setDefaultHandler(new HttpHandler() {
+                    public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+                        if (decoratorRequests.getAndIncrement() == 0) {
+                            hungDecorators.add(response); // Hangs: does not end its response in time.
+                            return;
+                        }
+                        response.header("Content-Type", "text/html")
+                                .content("<html><body>[<sitemesh:write property='body'/>]</body></html>")
+                                .end();
+                    }
+                })
+                .addDecoratorPath("/*", "/decorator.html")
+                .enableDecoratorCache()
+                .setDecoratorFetchTimeout(50, TimeUnit.MILLISECONDS)
+                .create();
+
+        StubHttpResponse fetching = get(handler);
+        StubHttpResponse waiting = get(handler);
+        assertEquals(1, decoratorRequests.get());
+
+        // Both the request fetching the decorator and the one waiting for it give up on it.
+        for (StubHttpResponse response : new StubHttpResponse[]{fetching, waiting}) {
+            awaitEnd(response);
+            assertEquals("<html><body>Hello</body></html>", response.contentsString());
+        }
+
+        // The hung decorator ending late changes nothing, and is not cached.
+        hungDecorators.poll().header("Content-Type", "text/html")
+                .content("<html><body>{<sitemesh:write property='body'/>}</body></html>")
+                .end();
+        assertEquals("<html><body>Hello</body></html>", fetching.contentsString());
+
+        // The decorator has recovered, and is fetched again.
+        assertEquals("<html><body>[Hello]</body></html>", get(handler).contentsString());
+        assertEquals(2, decoratorRequests.get());
+        assertEquals("<html><body>[Hello]</body></html>", get(handler).contentsString());
+        assertEquals(2, decoratorRequests.get());
+    }
+
+    private static void awaitEnd(StubHttpResponse response) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!response.ended() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(response.ended());
+    }
+
+    private static StubHttpResponse get(HttpHandler handler) throws Exception {
+        StubHttpResponse response = new StubHttpResponse();
+        handler.handleHttpRequest(new StubHttpRequest("/page.html"), response, new InlineHttpControl(new HttpHandler() {
+            public void handleHttpRequest(HttpRequest request, HttpResponse response, HttpControl control) {
+                response.header("Content-Type", "text/html").content("<html><body>Hello</body></html>").end();
+            }
+        }));
+        return response;
+    }
+
+    private static class Outcomes implements SingleFlight.Waiter<String> {
+        final BlockingQueue<String> values = new ArrayBlockingQueue<String>(10);
+        final BlockingQueue<Throwable> failures = new ArrayBlockingQueue<Throwable>(10);
+
+        public void done(String value, Throwable failure) {
+            if (failure != null) {
+                failures.add(failure);
+            } else {
+                values.add(value);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.junit.Test;
+import org.webbitserver.HttpResponse;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedResponseTest {
+
+    private static final String TEXT = "<p>Caf\u00e9 \u20ac \ud83d\ude00 and more, past the first segment</p>";
+
+    private final ByteBufferPool pool = new ByteBufferPool(16, 4, false);
+
+    /**
+     * However the bytes of a multi-byte character are split between writes (and between segments), the
+     * listener and the buffer both get the character whole.
+     */
+    @Test
+    public void decodesCharactersSplitAcrossWrites() throws Exception {
+        byte[] bytes = TEXT.getBytes("UTF-8");
+        for (int split = 0; split <= bytes.length; split++) {
+            StringBuilder heard = new StringBuilder();
+            Response response = new Response(new StubHttpResponse(), BufferLimits.UNLIMITED).listening(heard);
+            response.header("Content-Type", "text/html; charset=UTF-8");
+            response.content(Arrays.copyOfRange(bytes, 0, split));
+            response.content(Arrays.copyOfRange(bytes, split, bytes.length));
+            response.end();
+
+            assertEquals("split at " + split, TEXT, heard.toString());
+            assertEquals("split at " + split, TEXT, response.processed);
+        }
+    }
+
+    @Test
+    public void decodesWhatIsLeftOfTheBytesBeforeAString() throws Exception {
+        byte[] bytes = "\u00e9\u20ac".getBytes("UTF-8");
+        StringBuilder heard = new StringBuilder();
+        Response response = new Response(new StubHttpResponse(), BufferLimits.UNLIMITED).listening(heard);
+        response.header("Content-Type", "text/html; charset=UTF-8");
+        response.content(Arrays.copyOfRange(bytes, 0, 3));
+        response.content("[string]");
+        response.content(Arrays.copyOfRange(bytes, 3, bytes.length));
+        response.end();
+
+        assertEquals("\u00e9\ufffd[string]\ufffd\ufffd", heard.toString());
+        assertEquals(response.processed, heard.toString());
+    }
+
+    /**
+     * Once a response goes over its maximum, what was held is written out in order, and the rest passes
+     * straight through.
+     */
+    @Test
+    public void passesThroughOnceOverTheMaximumBufferSize() throws Exception {
+        BufferLimits limits = new BufferLimits(20, 1000);
+        StubHttpResponse stub = new StubHttpResponse();
+        StringBuilder heard = new StringBuilder();
+        Response response = new Response(stub, limits).listening(heard);
+        response.header("Content-Type", "text/html; charset=UTF-8");
+        response.content("<p>".getBytes("UTF-8"));
+        response.content("Caf\u00e9");
+        assertEquals(7, limits.totalBytes());
+        assertEquals(0, stub.contents().length);
+
+        response.content("0123456789abcdef".getBytes("UTF-8"));
+        assertTrue(response.overflowed());
+        assertNull(response.listener());
+        assertEquals(0, limits.totalBytes());
+        assertEquals("<p>Caf\u00e90123456789abcdef", stub.contentsString());
+
+        response.content("</p>");
+        response.header("Content-Length", 100);
+        response.end();
+        assertEquals("<p>Caf\u00e90123456789abcdef</p>", stub.contentsString());
+        assertEquals("100", stub.header("Content-Length"));
+        assertTrue(response.ended);
+        assertNull(response.processed);
+        assertEquals(0, limits.totalBytes());
+    }
+
+    @Test
+    public void passesThroughOnceOverTheTotalBudget() {
+        BufferLimits limits = new BufferLimits(100, 30);
+        StubHttpResponse first = new StubHttpResponse(), second = new StubHttpResponse();
+        Response held = new Response(first, limits);
+        Response overflowing = new Response(second, limits);
+        held.header("Content-Type", "text/html").content("<p>held by the first</p>");
+        overflowing.header("Content-Type", "text/html").content("<p>12345</p>");
+
+        assertFalse(held.overflowed());
+        assertTrue(overflowing.overflowed());
+        assertEquals("<p>12345</p>", second.contentsString());
+        assertEquals(24, limits.totalBytes());
+
+        held.end();
+        assertEquals("<p>held by the first</p>", held.processed);
+        assertEquals(0, limits.totalBytes());
+    }
+
+    @Test
+    public void releasesItsReservationHoweverItFinishes() {
+        BufferLimits limits = new BufferLimits(1000, 10000);
+
+        Response ended = buffering(limits);
+        ended.end();
+        assertEquals(0, limits.totalBytes());
+        assertEquals(4, ended.bufferedBytes());
+
+        Response failed = buffering(limits);
+        failed.error(new RuntimeException());
+        assertEquals(500, failed.abortedForStatusCode());
+        assertEquals(0, limits.totalBytes());
+        failed.end();
+        assertEquals(0, limits.totalBytes());
+
+        Response disabled = buffering(limits);
+        disabled.disableBuffering();
+        assertEquals(0, limits.totalBytes());
+        disabled.content("more").end();
+        assertEquals(0, limits.totalBytes());
+
+        Response notHtml = buffering(limits);
+        notHtml.header("Content-Type", "text/plain");
+        assertEquals(0, limits.totalBytes());
+    }
+
+    @Test
+    public void leavesTheContentLengthToBeRecalculatedWhileBuffering() {
+        StubHttpResponse stub = new StubHttpResponse();
+        Response response = new Response(stub, BufferLimits.UNLIMITED);
+        response.header("Content-Type", "text/html").header("Content-Length", "10").header("Content-Length", 10);
+
+        assertNull(stub.header("Content-Length"));
+        assertSame(response, response.content("<p></p>"));
+    }
+
+    private Response buffering(BufferLimits limits) {
+        Response response = new Response(new StubHttpResponse(), limits);
+        response.header("Content-Type", "text/html").content("<p/>");
+        assertEquals(4, limits.totalBytes());
+        return response;
+    }
+
+    private class Response extends BufferedResponse {
+        final HttpResponse underlying;
+        String processed;
+        boolean ended;
+
+        Response(HttpResponse response, BufferLimits limits) {
+            super(new SelectorBuilder().create(), response, pool, limits);
+            underlying = response;
+        }
+
+        Response listening(final StringBuilder heard) {
+            listen(new BufferListener() {
+                public void buffered(CharSequence chars) {
+                    heard.append(chars);
+                }
+            });
+            return this;
+        }
+
+        @Override
+        protected void postProcess(CharBuffer buffer) {
+            processed = buffer == null ? null : buffer.toString();
+            ended = true;
+            underlying.end();
+        }
+    }
+
+}
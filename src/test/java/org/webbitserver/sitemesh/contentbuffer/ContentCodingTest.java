@@ -0,0 +1,78 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.junit.Test;
+import org.webbitserver.stub.StubHttpRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ContentCodingTest {
+
+    private static final String TEXT = "<html><body>Caf\u00e9, caf\u00e9, caf\u00e9</body></html>";
+
+    @Test
+    public void prefersGzipOverDeflate() {
+        assertSame(ContentCoding.IDENTITY, negotiate(null));
+        assertSame(ContentCoding.IDENTITY, negotiate(""));
+        assertSame(ContentCoding.IDENTITY, negotiate("br, identity"));
+        assertSame(ContentCoding.GZIP, negotiate("gzip"));
+        assertSame(ContentCoding.GZIP, negotiate("deflate, gzip"));
+        assertSame(ContentCoding.GZIP, negotiate(" GZIP ;q=0.5 , deflate"));
+        assertSame(ContentCoding.DEFLATE, negotiate("Deflate"));
+        assertSame(ContentCoding.DEFLATE, negotiate("gzip;q=0, deflate"));
+        assertSame(ContentCoding.IDENTITY, negotiate("gzip; q=0.0, deflate;q=0"));
+    }
+
+    @Test
+    public void picksFromAStarOnlyWhatWasNotRefused() {
+        assertSame(ContentCoding.GZIP, negotiate("*"));
+        assertSame(ContentCoding.GZIP, negotiate("deflate;q=0, *"));
+        assertSame(ContentCoding.DEFLATE, negotiate("gzip;q=0, *"));
+        assertSame(ContentCoding.DEFLATE, negotiate("*, gzip;q=0"));
+        assertSame(ContentCoding.IDENTITY, negotiate("gzip;q=0, deflate;q=0, *"));
+        assertSame(ContentCoding.IDENTITY, negotiate("*;q=0"));
+        assertSame(ContentCoding.DEFLATE, negotiate("*;q=0, deflate"));
+    }
+
+    @Test
+    public void compressesInTheNegotiatedCoding() throws IOException {
+        byte[] bytes = TEXT.getBytes("UTF-8");
+
+        assertSame(bytes, ContentCoding.IDENTITY.compress(bytes));
+        assertEquals(TEXT, read(new GZIPInputStream(new ByteArrayInputStream(ContentCoding.GZIP.compress(bytes)))));
+        assertEquals(TEXT, read(new InflaterInputStream(new ByteArrayInputStream(ContentCoding.DEFLATE.compress(bytes)))));
+    }
+
+    @Test
+    public void namesTheContentEncoding() {
+        assertNull(ContentCoding.IDENTITY.token());
+        assertEquals("gzip", ContentCoding.GZIP.token());
+        assertEquals("deflate", ContentCoding.DEFLATE.token());
+    }
+
+    private static ContentCoding negotiate(String acceptEncoding) {
+        StubHttpRequest request = new StubHttpRequest("/");
+        if (acceptEncoding != null) {
+            request.header("Accept-Encoding", acceptEncoding);
+        }
+        return ContentCoding.negotiate(request);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+}
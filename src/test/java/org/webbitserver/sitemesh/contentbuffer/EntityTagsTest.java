@@ -0,0 +1,185 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.junit.Test;
+import org.webbitserver.HttpRequest;
+import org.webbitserver.stub.StubHttpRequest;
+import org.webbitserver.stub.StubHttpResponse;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EntityTagsTest {
+
+    private static final String DATE = "Sat, 08 Oct 2011 00:00:00 GMT";
+
+    @Test
+    public void derivesTagsThatStayStrongOrWeak() {
+        assertEquals("\"abc.v1\"", EntityTags.derive("\"abc\"", "v1"));
+        assertEquals("W/\"abc.v1\"", EntityTags.derive("W/\"abc\"", "v1"));
+        assertEquals("\".v1\"", EntityTags.derive("\"\"", "v1"));
+    }
+
+    @Test
+    public void doesNotDeriveFromMalformedTags() {
+        for (String malformed : new String[]{"", "\"", "abc", "\"abc", "abc\"", "W/abc", "W/", "w/\"abc\""}) {
+            assertNull(malformed, EntityTags.derive(malformed, "v1"));
+        }
+    }
+
+    @Test
+    public void underivesWhatWasDerived() {
+        for (String entityTag : new String[]{"\"abc\"", "W/\"abc\"", "\"\"", "\"a.b.v1\"", "\"x-y\""}) {
+            String derived = EntityTags.derive(entityTag, "v1");
+            assertEquals(entityTag, Collections.singletonList(entityTag), EntityTags.underive(derived, "v1"));
+            assertEquals(entityTag, Collections.<String>emptyList(), EntityTags.underive(derived, "v2"));
+        }
+    }
+
+    @Test
+    public void underivesListsKeepingOnlyTagsForTheSuffix() {
+        assertEquals(Arrays.asList("\"a\"", "W/\"b\"", "*"),
+                EntityTags.underive(" \"a.v1\" ,W/\"b.v1\",\"c.v0\", \"d\", *, v1\", .v1\", x.v1\"", "v1"));
+        assertEquals(Collections.<String>emptyList(), EntityTags.underive(null, "v1"));
+        assertEquals(Collections.<String>emptyList(), EntityTags.underive("", "v1"));
+    }
+
+    @Test
+    public void roundTripsDates() {
+        String dateTag = EntityTags.fromDate(DATE);
+
+        assertEquals("\"@1318032000\"", dateTag);
+        assertEquals(DATE, EntityTags.toDate(dateTag));
+        assertEquals(DATE, EntityTags.toDate("W/" + dateTag));
+        assertEquals(DATE, EntityTags.toDate(EntityTags.underive(EntityTags.derive(dateTag, "v1"), "v1").get(0)));
+    }
+
+    @Test
+    public void doesNotTurnOtherTagsIntoDates() {
+        assertNull(EntityTags.fromDate("yesterday"));
+        for (String entityTag : new String[]{"\"abc\"", "\"@abc\"", "\"@1318032000", "@1318032000\"", "W/\"abc\""}) {
+            assertNull(entityTag, EntityTags.toDate(entityTag));
+        }
+    }
+
+    @Test
+    public void matchesIfNoneMatchWithWeakComparison() {
+        assertTrue(EntityTags.matches(ifNoneMatch("\"abc\""), "\"abc\""));
+        assertTrue(EntityTags.matches(ifNoneMatch("W/\"abc\""), "\"abc\""));
+        assertTrue(EntityTags.matches(ifNoneMatch("\"x\", \"abc\""), "\"abc\""));
+        assertTrue(EntityTags.matches(ifNoneMatch("*"), "\"abc\""));
+        assertFalse(EntityTags.matches(ifNoneMatch("\"abcd\""), "\"abc\""));
+        assertFalse(EntityTags.matches(ifNoneMatch(null), "\"abc\""));
+        assertFalse(EntityTags.matches(ifNoneMatch("*"), null));
+    }
+
+    @Test
+    public void formatsTagsPerContentCoding() {
+        assertEquals("\"ff\"", EntityTags.format(0xff));
+        assertEquals("\"ff\"", EntityTags.format(0xff, ContentCoding.IDENTITY));
+        assertEquals("\"ff-gzip\"", EntityTags.format(0xff, ContentCoding.GZIP));
+    }
+
+    @Test
+    public void derivesTheUpstreamValidators() {
+        assertEquals("\"abc.v1\"", derivedEntityTag("v1", "ETag", "\"abc\""));
+        assertEquals("W/\"abc.v1\"", derivedEntityTag("v1", "etag", "W/\"abc\""));
+        assertEquals("\"@1318032000.v1\"", derivedEntityTag("v1", "Last-Modified", DATE));
+        assertNull(derivedEntityTag("v1", "ETag", "abc"));
+        assertNull(derivedEntityTag("v1", "Last-Modified", "yesterday"));
+        assertNull(derivedEntityTag(null, "ETag", "\"abc\""));
+    }
+
+    @Test
+    public void prefersAnUpstreamTagToADate() {
+        StubHttpResponse dateFirst = new StubHttpResponse();
+        new DerivedValidatorResponse(dateFirst, "v1").header("Last-Modified", DATE).header("ETag", "\"abc\"");
+        StubHttpResponse tagFirst = new StubHttpResponse();
+        new DerivedValidatorResponse(tagFirst, "v1").header("ETag", "\"abc\"").header("Last-Modified", DATE);
+
+        for (StubHttpResponse response : new StubHttpResponse[]{dateFirst, tagFirst}) {
+            assertEquals("\"abc.v1\"", response.header("ETag"));
+            assertNull(response.header("Last-Modified"));
+        }
+    }
+
+    @Test
+    public void passesOtherHeadersThrough() {
+        StubHttpResponse response = new StubHttpResponse();
+        new DerivedValidatorResponse(response, null).header("Content-Type", "text/html");
+
+        assertEquals("text/html", response.header("Content-Type"));
+    }
+
+    /**
+     * What the upstream handler sees, once the client sends back the tag derived from its validator, is what
+     * it gave.
+     */
+    @Test
+    public void roundTripsValidatorsThroughTheClient() {
+        assertRoundTrips("ETag", "\"abc\"", "\"abc\"", null);
+        assertRoundTrips("ETag", "W/\"abc\"", "W/\"abc\"", null);
+        assertRoundTrips("Last-Modified", DATE, null, DATE);
+    }
+
+    @Test
+    public void roundTripsDatesThroughClientsThatWeakenTags() {
+        String derived = derivedEntityTag("v1", "Last-Modified", DATE);
+        HttpRequest upstream = ConditionalRequest.upstream(ifNoneMatch("W/" + derived), "v1");
+
+        assertNull(upstream.header(ConditionalRequest.IF_NONE_MATCH));
+        assertEquals(DATE, upstream.header(ConditionalRequest.IF_MODIFIED_SINCE));
+    }
+
+    @Test
+    public void passesUpstreamOnlyTheTagsForTheSuffix() {
+        HttpRequest request = ifNoneMatch("\"a.v1\", W/\"b.v1\", \"c.v0\", \"@1318032000.v1\"")
+                .header(ConditionalRequest.IF_MODIFIED_SINCE, "Sun, 09 Oct 2011 00:00:00 GMT");
+        HttpRequest upstream = ConditionalRequest.upstream(request, "v1");
+
+        assertEquals("\"a\", W/\"b\"", upstream.header("if-none-match"));
+        assertEquals(Arrays.asList("\"a\", W/\"b\""), upstream.headers(ConditionalRequest.IF_NONE_MATCH));
+        assertEquals(DATE, upstream.header("IF-MODIFIED-SINCE"));
+        assertTrue(ConditionalRequest.isConditional(upstream));
+    }
+
+    @Test
+    public void passesNoConditionsUpstreamForAnUnknownSuffix() {
+        HttpRequest request = ifNoneMatch("\"a.v1\"").header(ConditionalRequest.IF_MODIFIED_SINCE, DATE)
+                .header("Accept", "text/html");
+        HttpRequest upstream = ConditionalRequest.upstream(request, null);
+
+        assertTrue(ConditionalRequest.isConditional(request));
+        assertFalse(ConditionalRequest.isConditional(upstream));
+        assertNull(upstream.header(ConditionalRequest.IF_NONE_MATCH));
+        assertEquals(Collections.<String>emptyList(), upstream.headers(ConditionalRequest.IF_MODIFIED_SINCE));
+        assertEquals("text/html", upstream.header("Accept"));
+    }
+
+    private static void assertRoundTrips(String name, String value, String ifNoneMatch, String ifModifiedSince) {
+        HttpRequest upstream = ConditionalRequest.upstream(ifNoneMatch(derivedEntityTag("v1", name, value)), "v1");
+
+        assertEquals(ifNoneMatch, upstream.header(ConditionalRequest.IF_NONE_MATCH));
+        assertEquals(ifModifiedSince, upstream.header(ConditionalRequest.IF_MODIFIED_SINCE));
+    }
+
+    private static String derivedEntityTag(String suffix, String name, String value) {
+        StubHttpResponse response = new StubHttpResponse();
+        new DerivedValidatorResponse(response, suffix).header(name, value);
+        assertNull(response.header(name.equalsIgnoreCase("etag") ? "Last-Modified" : name));
+        return response.header("ETag");
+    }
+
+    private static StubHttpRequest ifNoneMatch(String value) {
+        StubHttpRequest request = new StubHttpRequest("/");
+        if (value != null) {
+            request.header(ConditionalRequest.IF_NONE_MATCH, value);
+        }
+        return request;
+    }
+
+}
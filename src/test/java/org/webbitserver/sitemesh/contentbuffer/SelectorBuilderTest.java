@@ -0,0 +1,264 @@
+package org.webbitserver.sitemesh.contentbuffer;
+
+import org.junit.Test;
+import org.webbitserver.stub.StubHttpRequest;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SelectorBuilderTest {
+
+    @Test
+    public void buffersHtmlWithStatus200ForAnyRequestByDefault() {
+        Selector selector = new SelectorBuilder().create();
+
+        assertTrue(selector.shouldBufferForContentType("text/html; charset=utf-8", "text/html", "utf-8"));
+        assertFalse(selector.shouldBufferForContentType("text/plain", "text/plain", null));
+        assertFalse(selector.shouldBufferForContentType(null, null, null));
+        assertFalse(selector.shouldAbortBufferingForHttpStatusCode(200));
+        assertTrue(selector.shouldAbortBufferingForHttpStatusCode(404));
+        assertTrue(selector.shouldAbortBufferingForHttpStatusCode(-1));
+        assertTrue(selector.shouldAbortBufferingForHttpStatusCode(1000));
+        assertTrue(selector.shouldBufferForRequest(new StubHttpRequest("/any/page.html")));
+        assertTrue(selector.shouldBufferForRequest(new StubHttpRequest("/any/page.html").method("DELETE")));
+    }
+
+    @Test
+    public void matchesExactPaths() {
+        Selector selector = new SelectorBuilder().excludePaths("/admin/login.html").create();
+
+        assertFalse(buffers(selector, "/admin/login.html"));
+        assertFalse(buffers(selector, "/Admin/LOGIN.html"));
+        assertFalse(buffers(selector, "/admin/login.html?next=/"));
+        assertFalse(buffers(selector, "/admin/login.html#form"));
+        assertTrue(buffers(selector, "/admin/login.html2"));
+        assertTrue(buffers(selector, "/admin/login.htm"));
+        assertTrue(buffers(selector, "/admin/"));
+    }
+
+    @Test
+    public void matchesPrefixPaths() {
+        Selector selector = new SelectorBuilder().excludePaths("/static/*").create();
+
+        assertFalse(buffers(selector, "/static/"));
+        assertFalse(buffers(selector, "/static/css/site.css"));
+        assertFalse(buffers(selector, "/STATIC/app.js?v=2"));
+        assertTrue(buffers(selector, "/static"));
+        assertTrue(buffers(selector, "/statics/page.html"));
+        assertTrue(buffers(selector, "/page.html?from=/static/"));
+    }
+
+    @Test
+    public void matchesSuffixPaths() {
+        Selector selector = new SelectorBuilder().excludePaths("*.txt").create();
+
+        assertFalse(buffers(selector, "/notes.txt"));
+        assertFalse(buffers(selector, "/a/b/NOTES.TXT?download=1"));
+        assertFalse(buffers(selector, ".txt"));
+        assertTrue(buffers(selector, "/notes.txt.html"));
+        assertTrue(buffers(selector, "/notes.html?as=.txt"));
+    }
+
+    @Test
+    public void matchesSuffixesContainingSlashes() {
+        Selector selector = new SelectorBuilder().excludePaths("*/print.html").create();
+
+        assertFalse(buffers(selector, "/docs/print.html"));
+        assertTrue(buffers(selector, "/docs/reprint.html"));
+    }
+
+    @Test
+    public void matchesEveryPathWithAStar() {
+        Selector selector = new SelectorBuilder().excludePaths("*").create();
+
+        assertFalse(buffers(selector, "/"));
+        assertFalse(buffers(selector, "/a/b.html?c"));
+        assertFalse(buffers(selector, ""));
+    }
+
+    @Test
+    public void onlyBuffersIncludedPathsThatAreNotExcluded() {
+        Selector selector = new SelectorBuilder()
+                .includePaths("/docs/*", "*.html", "/")
+                .excludePaths("/docs/raw/*")
+                .create();
+
+        assertTrue(buffers(selector, "/"));
+        assertTrue(buffers(selector, "/docs/guide"));
+        assertTrue(buffers(selector, "/shop/cart.html"));
+        assertFalse(buffers(selector, "/docs/raw/guide.html"));
+        assertFalse(buffers(selector, "/shop/cart"));
+        assertFalse(buffers(selector, "/index.htm"));
+    }
+
+    @Test
+    public void treatsAMissingUriAsTheRoot() {
+        assertTrue(buffers(new SelectorBuilder().includePaths("/").create(), null));
+        assertFalse(buffers(new SelectorBuilder().excludePaths("/").create(), null));
+    }
+
+    @Test
+    public void matchesEachMimeTypeForm() {
+        Selector exact = new SelectorBuilder().mimeTypes("application/xhtml+xml", " text/html ").create();
+        assertTrue(bufferable(exact, "application/xhtml+xml"));
+        assertTrue(bufferable(exact, "TEXT/HTML"));
+        assertFalse(bufferable(exact, "text/plain"));
+        assertFalse(bufferable(exact, "application/xhtml"));
+
+        Selector wholeType = new SelectorBuilder().mimeTypes("text/*").create();
+        assertTrue(bufferable(wholeType, "text/html"));
+        assertTrue(bufferable(wholeType, "text/plain"));
+        assertFalse(bufferable(wholeType, "application/json"));
+        assertFalse(bufferable(wholeType, "texts/html"));
+
+        for (String anyType : new String[]{"*/*", "*"}) {
+            Selector any = new SelectorBuilder().mimeTypes(anyType).create();
+            assertTrue(bufferable(any, "image/png"));
+            assertFalse(bufferable(any, null));
+        }
+    }
+
+    @Test
+    public void matchesMethodsInAnyCase() {
+        Selector selector = new SelectorBuilder().methods("get", "Post").create();
+
+        assertTrue(selector.shouldBufferForRequest(new StubHttpRequest("/").method("GET")));
+        assertTrue(selector.shouldBufferForRequest(new StubHttpRequest("/").method("post")));
+        assertFalse(selector.shouldBufferForRequest(new StubHttpRequest("/").method("HEAD")));
+        assertFalse(selector.shouldBufferForRequest(new StubHttpRequest("/").method(null)));
+    }
+
+    @Test
+    public void buffersStatusCodesInTheRangesGiven() {
+        Selector selector = new SelectorBuilder().statusCodes(201, 204).includeErrorPages().create();
+
+        for (int status : new int[]{200, 201, 204, 400, 404, 599}) {
+            assertFalse(String.valueOf(status), selector.shouldAbortBufferingForHttpStatusCode(status));
+        }
+        for (int status : new int[]{0, 199, 205, 304, 399, 600}) {
+            assertTrue(String.valueOf(status), selector.shouldAbortBufferingForHttpStatusCode(status));
+        }
+    }
+
+    @Test
+    public void appliesHeaderRules() {
+        Selector selector = new SelectorBuilder()
+                .excludeRequestsWithHeader("X-No-Decorate")
+                .excludeRequestsWithHeader("X-Requested-With", "XMLHttpRequest")
+                .requireRequestHeader("Accept", null)
+                .create();
+
+        assertTrue(selector.shouldBufferForRequest(new StubHttpRequest("/").header("Accept", "*/*")));
+        assertFalse(selector.shouldBufferForRequest(new StubHttpRequest("/")));
+        assertFalse(selector.shouldBufferForRequest(new StubHttpRequest("/")
+                .header("Accept", "*/*").header("X-No-Decorate", "")));
+        assertFalse(selector.shouldBufferForRequest(new StubHttpRequest("/")
+                .header("Accept", "*/*").header("X-Requested-With", " xmlhttprequest ")));
+        assertTrue(selector.shouldBufferForRequest(new StubHttpRequest("/")
+                .header("Accept", "*/*").header("X-Requested-With", "Flash")));
+
+        Selector requiresValue = new SelectorBuilder().requireRequestHeader("X-Decorate", "yes").create();
+        assertTrue(requiresValue.shouldBufferForRequest(new StubHttpRequest("/").header("X-Decorate", "YES")));
+        assertFalse(requiresValue.shouldBufferForRequest(new StubHttpRequest("/").header("X-Decorate", "no")));
+    }
+
+    @Test
+    public void isNotAffectedByRulesAddedAfterCreate() {
+        SelectorBuilder builder = new SelectorBuilder();
+        Selector before = builder.create();
+        builder.excludePaths("*");
+
+        assertTrue(buffers(before, "/page.html"));
+        assertFalse(buffers(builder.create(), "/page.html"));
+    }
+
+    @Test
+    public void rejectsUnsupportedPathPatterns() {
+        for (String pattern : new String[]{"/a/*/b", "/a?c", "*.html*", "**", "/a/*.html", "*/*.html", "/a/b?"}) {
+            assertRejected(new SelectorBuilder().excludePaths(pattern), pattern);
+            assertRejected(new SelectorBuilder().includePaths(pattern), pattern);
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedMimeTypes() {
+        for (String mimeType : new String[]{"*/html", "text/*html", "text/h?ml", "*/*/*"}) {
+            assertRejected(new SelectorBuilder().mimeTypes(mimeType), mimeType);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidStatusCodeRanges() {
+        int[][] ranges = {{-1, 200}, {500, 600}, {404, 400}};
+        for (int[] range : ranges) {
+            try {
+                new SelectorBuilder().statusCodes(range[0], range[1]);
+                fail("Accepted " + range[0] + "-" + range[1]);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    /**
+     * The trie should agree with plain string comparison, for random strings, prefixes and suffixes.
+     */
+    @Test
+    public void trieMatchesAsStringComparisonDoes() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            boolean reversed = random.nextBoolean();
+            CharTrie trie = new CharTrie(reversed);
+            String[] strings = new String[random.nextInt(5)];
+            boolean[] prefixes = new boolean[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = randomString(random);
+                prefixes[i] = random.nextBoolean();
+                trie.add(strings[i], prefixes[i]);
+            }
+            assertEquals(strings.length == 0, trie.isEmpty());
+            for (int i = 0; i < 100; i++) {
+                String input = "?" + randomString(random) + "#";
+                String text = input.substring(1, input.length() - 1);
+                boolean expected = false;
+                for (int j = 0; j < strings.length; j++) {
+                    String string = strings[j].toLowerCase(Locale.ENGLISH);
+                    String folded = text.toLowerCase(Locale.ENGLISH);
+                    expected |= prefixes[j]
+                            ? (reversed ? folded.endsWith(string) : folded.startsWith(string))
+                            : folded.equals(string);
+                }
+                assertEquals(text, expected, trie.matches(input, 1, input.length() - 1));
+            }
+        }
+    }
+
+    private static String randomString(Random random) {
+        char[] chars = new char[random.nextInt(4)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = "aAb/\u00e9\u00c9".charAt(random.nextInt(6));
+        }
+        return new String(chars);
+    }
+
+    private static void assertRejected(SelectorBuilder builder, String what) {
+        try {
+            builder.create();
+            fail("Accepted " + what);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static boolean buffers(Selector selector, String uri) {
+        return selector.shouldBufferForRequest(new StubHttpRequest(uri));
+    }
+
+    private static boolean bufferable(Selector selector, String mimeType) {
+        return selector.shouldBufferForContentType(mimeType, mimeType, null);
+    }
+
+}
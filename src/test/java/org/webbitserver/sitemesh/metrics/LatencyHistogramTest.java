@@ -0,0 +1,175 @@
+package org.webbitserver.sitemesh.metrics;
+
+import org.junit.Test;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.webbitserver.sitemesh.metrics.SiteMeshMetrics.Outcome;
+import static org.webbitserver.sitemesh.metrics.SiteMeshMetrics.Stage;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Each value falls in the bucket whose range holds it, and that range is never more than an eighth of
+     * the values in it wide.
+     */
+    @Test
+    public void bucketsValuesWithinAnEighth() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            long value = i < 50000 ? i : random.nextLong() >>> (64 - 40);
+            int bucket = LatencyHistogram.bucket(value);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            long lowerBound = bucket == 0 ? 0 : LatencyHistogram.upperBound(bucket - 1) + 1;
+
+            assertTrue(value + " <= " + upperBound, value <= upperBound);
+            assertTrue(value + " >= " + lowerBound, value >= lowerBound);
+            assertTrue(value + " in " + lowerBound + "-" + upperBound,
+                    upperBound - lowerBound <= lowerBound / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void bucketsEveryValueUpToTheLast() {
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(7, LatencyHistogram.bucket(7));
+        assertEquals(8, LatencyHistogram.bucket(8));
+        assertEquals(LatencyHistogram.bucket(16), LatencyHistogram.bucket(17));
+        assertEquals(LatencyHistogram.bucket(1L << 41), LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void reportsPercentilesOfWhatWasRecorded() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1000; i >= 1; i--) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(1000000, histogram.max());
+        assertEquals(500500, histogram.mean(), 0.001);
+        assertNear(500000, histogram.percentile(50));
+        assertNear(990000, histogram.percentile(99));
+        assertNear(999000, histogram.percentile(99.9));
+        assertEquals(1000000, histogram.percentile(100));
+        assertNear(1000, histogram.percentile(0));
+    }
+
+    @Test
+    public void neverReportsMoreThanTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.record(-5);
+
+        assertEquals(2, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(1000, histogram.percentile(99));
+        assertEquals(1000, histogram.max());
+    }
+
+    @Test
+    public void reportsNothingUntilRecordedAndAfterReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEmpty(histogram);
+
+        histogram.record(123456);
+        histogram.reset();
+        assertEmpty(histogram);
+    }
+
+    @Test
+    public void exposesMetricsAsMBeanAttributes() throws Exception {
+        JmxSiteMeshMetrics metrics = new JmxSiteMeshMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.stage(Stage.CONTENT_PARSE, i * 10000L);
+        }
+        metrics.outcome(Outcome.DECORATED);
+        metrics.outcome(Outcome.DECORATED);
+        metrics.outcome(Outcome.PAGE_CACHE_HIT);
+        metrics.buffered(2048);
+        metrics.decoratorCache(true);
+        metrics.decoratorCache(true);
+        metrics.decoratorCache(true);
+        metrics.decoratorCache(false);
+
+        assertEquals(2L, metrics.getAttribute("PagesDecorated"));
+        assertEquals(1L, metrics.getAttribute("PagesPageCacheHit"));
+        assertEquals(0L, metrics.getAttribute("PagesOverflowed"));
+        assertEquals(2048L, metrics.getAttribute("BufferedBytes"));
+        assertEquals(3L, metrics.getAttribute("DecoratorCacheHits"));
+        assertEquals(1L, metrics.getAttribute("DecoratorCacheMisses"));
+        assertEquals(0.75, metrics.getAttribute("DecoratorCacheHitRatio"));
+        assertEquals(100L, metrics.getAttribute("ContentParseCount"));
+        assertEquals(505.0, metrics.getAttribute("ContentParseMeanMicros"));
+        assertNear(500, (Long) metrics.getAttribute("ContentParseP50Micros"));
+        assertNear(990, (Long) metrics.getAttribute("ContentParseP99Micros"));
+        assertEquals(1000L, metrics.getAttribute("ContentParseP999Micros"));
+        assertEquals(1000L, metrics.getAttribute("ContentParseMaxMicros"));
+        assertEquals(0L, metrics.getAttribute("UpstreamCount"));
+        assertEquals(0L, metrics.getAttribute("DecoratorFetchP99Micros"));
+
+        metrics.invoke("reset", null, null);
+        assertEquals(0L, metrics.getAttribute("PagesDecorated"));
+        assertEquals(0L, metrics.getAttribute("ContentParseCount"));
+        assertEquals(0.0, metrics.getAttribute("DecoratorCacheHitRatio"));
+    }
+
+    @Test
+    public void describesEachAttribute() throws Exception {
+        JmxSiteMeshMetrics metrics = new JmxSiteMeshMetrics();
+        Set<String> names = new HashSet<String>();
+        for (MBeanAttributeInfo info : metrics.getMBeanInfo().getAttributes()) {
+            names.add(info.getName());
+            assertTrue(info.isReadable());
+            assertEquals(info.getName(), info.getType().equals("double") ? Double.class : Long.class,
+                    metrics.getAttribute(info.getName()).getClass());
+        }
+
+        assertTrue(names.contains("PagesPassedThrough"));
+        assertTrue(names.contains("DecoratorMergeP999Micros"));
+        assertEquals(names.size(), metrics.getAttributes(names.toArray(new String[names.size()])).size());
+        try {
+            metrics.getAttribute("NoSuchAttribute");
+            fail();
+        } catch (AttributeNotFoundException expected) {
+        }
+    }
+
+    @Test
+    public void registersWithThePlatformMBeanServer() throws Exception {
+        JmxSiteMeshMetrics metrics = new JmxSiteMeshMetrics().register("test");
+        new JmxSiteMeshMetrics().register("test").outcome(Outcome.ABORTED);
+        metrics.outcome(Outcome.DECORATED);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(JmxSiteMeshMetrics.DOMAIN + ":type=SiteMeshHandler,name=\"test\"");
+        try {
+            assertEquals(0L, server.getAttribute(name, "PagesDecorated"));
+            assertEquals(1L, server.getAttribute(name, "PagesAborted"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(actual + " for " + expected, actual >= expected && actual <= expected + expected / 8);
+    }
+
+    private static void assertEmpty(LatencyHistogram histogram) {
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.mean(), 0);
+        assertEquals(0, histogram.percentile(99));
+    }
+
+}